@@ -0,0 +1,12 @@
+package AttitudeTracker;
+
+/**
+ * An attitude estimate and the time of the reading it was computed from.  Mutable
+ * so readers can reuse one instance rather than allocate; see PublishedAttitudeEstimate.
+ */
+public class AttitudeEstimate {
+	/** As passed to AttitudeTracker.updateSensorData(), in ms */
+	public double time;
+	public double roll, pitch, yaw;
+	public double rollRate, pitchRate, yawRate;
+}
@@ -0,0 +1,57 @@
+package AttitudeTracker;
+
+/**
+ * Connects sensor driver threads to an AttitudeTracker running on its own thread,
+ * as SensorRingFeed does for FilteredCompassReader.  The magnetometer driver and
+ * the gyro driver each push three-axis readings into their own SensorSampleRing.
+ * The filter thread calls drain() and, if anything arrived,
+ * AttitudeTracker.updateSensorData(feed), which takes the newest reading from each
+ * sensor and the newest timestamp seen from either.
+ *
+ * Other threads read the result through AttitudeTracker.getPublishedEstimate(), so
+ * nothing on either side of the filter takes a lock.
+ *
+ * <pre>
+ * // driver threads
+ * feed.magRing.offer(t, mag_x, mag_y, mag_z);
+ * feed.gyroRing.offer(t, gyro_x, gyro_y, gyro_z);
+ * // filter thread
+ * if(feed.drain()) { tracker.updateSensorData(feed); }
+ * </pre>
+ */
+public class AttitudeSensorFeed {
+	public final SensorSampleRing magRing;
+	public final SensorSampleRing gyroRing;
+	double latestTime = 0;
+	double magX, magY, magZ;
+	double gyroX, gyroY, gyroZ;
+
+	// Handlers are fields so draining doesn't allocate
+	private final SensorSampleRing.VectorSampleHandler onMag = (time, x, y, z) -> {
+		magX = x; magY = y; magZ = z;
+		latestTime = Math.max(latestTime, time);
+	};
+	private final SensorSampleRing.VectorSampleHandler onGyro = (time, x, y, z) -> {
+		gyroX = x; gyroY = y; gyroZ = z;
+		latestTime = Math.max(latestTime, time);
+	};
+
+	public AttitudeSensorFeed(int capacity) {
+		magRing = new SensorSampleRing(capacity, 3);
+		gyroRing = new SensorSampleRing(capacity, 3);
+	}
+
+	/**
+	 * Take everything the drivers have pushed since the last call.  Filter thread only.
+	 *
+	 * @return true if any new reading arrived
+	 */
+	public boolean drain() {
+		int n = magRing.drain(onMag);
+		n += gyroRing.drain(onGyro);
+		return n > 0;
+	}
+
+	/** @return the newest timestamp from either sensor, in ms */
+	public double getTime() { return latestTime; }
+}
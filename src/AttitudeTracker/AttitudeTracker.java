@@ -8,7 +8,12 @@
  * 
  * This particular implementation suffers from gimbal lock.  That is, accuracy degrades dramatically
  * under extreme roll/pitch.  This isn't a huge issue for ground-based vehicles but is prohibitive 
- * for aerial and submarine vehicles.
+ * for aerial and submarine vehicles.  QuaternionAttitudeTracker takes the same inputs and
+ * tracks the attitude as a whole, without that limitation.
+ * 
+ * updateSensorData() and the getters are for the one thread that runs the filter.
+ * Other threads read getPublishedEstimate() instead, and sensor driver threads can
+ * hand readings over through an AttitudeSensorFeed, so neither side needs a lock.
  * 
  * The core KF was developed by Peter Abeles under the Apache License as example code for his EJML
  * matrix library.
@@ -67,6 +72,10 @@ public class AttitudeTracker {
 	private SingleAxisRotatingObjectTracker yawTracker   = new SingleAxisRotatingObjectTracker();
 	private boolean haveFirstReading = false;
 	private double timeNow;
+	// Optional instrumentation; see setMetrics()
+	private FilterMetrics metrics = null;
+	// For other threads to read; see getPublishedEstimate()
+	private final PublishedAttitudeEstimate publishedEstimate = new PublishedAttitudeEstimate();
 	
 	public AttitudeTracker() {
 		// Currently all handled in member initializers
@@ -88,9 +97,10 @@ public class AttitudeTracker {
 	public void updateSensorData(double timeNow, 
 			double magX,  double magY,  double magZ,
 			double gyroX, double gyroY, double gyroZ) {
-		// TODO
-		if(haveFirstReading) {
-			double dt = timeNow - this.timeNow;
+		if(metrics != null && haveFirstReading) {
+			updateSensorDataMeasured(timeNow, magX, magY, magZ, gyroX, gyroY, gyroZ);
+		} else if(haveFirstReading) {
+			double dt = (timeNow - this.timeNow) / 1000.0; // ms to s
 			rollTracker .updateSensorData(dt, gyroX, magX);
 			pitchTracker.updateSensorData(dt, gyroY, magY);
 			yawTracker  .updateSensorData(dt, gyroZ, magZ);
@@ -102,8 +112,62 @@ public class AttitudeTracker {
 			
 			haveFirstReading = true;
 		}
+		this.timeNow = timeNow;
+		publishedEstimate.publish(timeNow, getRoll(), getPitch(), getYaw(), getRollRate(), getPitchRate(), getYawRate());
+	}
+	
+	/**
+	 * Update from the newest readings drained from a feed; see AttitudeSensorFeed.
+	 */
+	public void updateSensorData(AttitudeSensorFeed feed) {
+		updateSensorData(feed.latestTime, feed.magX, feed.magY, feed.magZ, feed.gyroX, feed.gyroY, feed.gyroZ);
+	}
+	
+	/**
+	 * The latest estimate, for threads other than the one calling
+	 * updateSensorData() to read without locking.
+	 */
+	public PublishedAttitudeEstimate getPublishedEstimate() {
+		return publishedEstimate;
 	}
 	
+	/**
+	 * Record latency and dt of every update, and yaw wraps and innovation
+	 * statistics, into the given metrics, or stop recording if null.
+	 */
+	public void setMetrics(FilterMetrics metrics) {
+		this.metrics = metrics;
+	}
 	
+	private void updateSensorDataMeasured(double timeNow, 
+			double magX,  double magY,  double magZ,
+			double gyroX, double gyroY, double gyroZ) {
+		long start = System.nanoTime();
+		double dt = (timeNow - this.timeNow) / 1000.0;
+		double innovation = yawTracker.innovation(dt, magZ);
+		double nis = yawTracker.nis(dt, gyroZ, magZ);
+		double turn = Math.rint(yawTracker.getUnwrappedAngleEstimate() / (2 * Math.PI));
+		rollTracker .updateSensorData(dt, gyroX, magX);
+		pitchTracker.updateSensorData(dt, gyroY, magY);
+		yawTracker  .updateSensorData(dt, gyroZ, magZ);
+		this.timeNow = timeNow;
+		boolean wrapped = Math.rint(yawTracker.getUnwrappedAngleEstimate() / (2 * Math.PI)) != turn;
+		metrics.record(System.nanoTime() - start, dt, wrapped, innovation, nis, 2);
+	}
+	
+	/** @return roll angle estimate, in radians from -pi to pi */
+	public double getRoll()  { return rollTracker .getAngleEstimate(); }
+	/** @return pitch angle estimate, in radians from -pi to pi */
+	public double getPitch() { return pitchTracker.getAngleEstimate(); }
+	/** @return yaw angle estimate, in radians from -pi to pi */
+	public double getYaw()   { return yawTracker  .getAngleEstimate(); }
+	
+	/** @return roll rate estimate, in radians per second */
+	public double getRollRate()  { return rollTracker .getRateEstimate(); }
+	/** @return pitch rate estimate, in radians per second */
+	public double getPitchRate() { return pitchTracker.getRateEstimate(); }
+	/** @return yaw rate estimate, in radians per second */
+	public double getYawRate()   { return yawTracker  .getRateEstimate(); }
+
 
 }
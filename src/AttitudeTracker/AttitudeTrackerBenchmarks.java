@@ -0,0 +1,548 @@
+package AttitudeTracker;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import org.ejml.data.DenseMatrix64F;
+import org.ejml.ops.CommonOps;
+
+/**
+ * Microbenchmarks for the filters and the recorded-data replay path.  Each benchmark
+ * is warmed up, then timed over several fixed-length iterations, and reports time
+ * per operation, throughput, and how much it allocated (bytes per operation and the
+ * resulting allocation rate, as the JMH "gc" profiler would).
+ *
+ * Run from the project directory so the recordings can be found.  An optional
+ * argument restricts the run to benchmarks whose name contains it, e.g.
+ *   java AttitudeTracker.AttitudeTrackerBenchmarks Kalman
+ */
+public class AttitudeTrackerBenchmarks {
+	public static final int WARMUP_ITERATIONS = 5;
+	public static final int MEASUREMENT_ITERATIONS = 5;
+	public static final long ITERATION_NANOS = 200 * 1000 * 1000;
+
+	/** Results are written here so the JIT can't discard the work being timed */
+	public static volatile double sink;
+
+	/** The unit of work being timed.  Return something derived from the result. */
+	interface Operation {
+		double run();
+	}
+
+	private static class Benchmark {
+		final String name;
+		final Operation op;
+		Benchmark(String name, Operation op) { this.name = name; this.op = op; }
+	}
+
+	public static void main(String[] args) throws IOException {
+		String filter = (args.length > 0) ? args[0] : "";
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		addFilterBenchmarks(benchmarks);
+		addFilterBankBenchmarks(benchmarks);
+		addAttitudeBenchmarks(benchmarks);
+		addReplayBenchmarks(benchmarks);
+		addSnapshotBenchmarks(benchmarks);
+
+		System.out.println(String.format("%-60s %14s %14s %12s %12s %6s",
+				"Benchmark", "ns/op", "ops/s", "B/op", "alloc MB/s", "GCs"));
+		for(Benchmark b : benchmarks) {
+			if(b.name.contains(filter)) {
+				run(b);
+			}
+		}
+	}
+
+	private static void addFilterBenchmarks(List<Benchmark> benchmarks) {
+		// Same configuration as FilteredCompassReader
+		DenseMatrix64F F = new DenseMatrix64F(new double[][]{
+			{1.0, 0.02 / 45},
+			{0.0, 1.0},
+		});
+		DenseMatrix64F Q = new DenseMatrix64F(new double[][]{
+			{0.05, 0.0},
+			{0.0,  0.0001},
+		});
+		DenseMatrix64F H = new DenseMatrix64F(new double[][]{
+			{1.0, 0.0},
+			{0.0, 1.0},
+			{0.0, 1.0},
+		});
+		final DenseMatrix64F R = new DenseMatrix64F(new double[][]{
+			{10.0, 0.0, 0.0},
+			{ 0.0, 1.0, 0.0},
+			{ 0.0, 0.0, 0.001},
+		});
+		final DenseMatrix64F z = new DenseMatrix64F(new double[][]{
+			{0.5},
+			{0.0},
+			{0.1},
+		});
+		DenseMatrix64F x_init = new DenseMatrix64F(2, 1);
+		DenseMatrix64F p_init = new DenseMatrix64F(new double[][]{
+			{1, 0},
+			{0, 1},
+		});
+
+		final KalmanFilterSimple simple = new KalmanFilterSimple();
+		simple.configure(F, Q, H);
+		simple.setState(x_init, p_init);
+		benchmarks.add(new Benchmark("KalmanFilterSimple.predict", () -> {
+			simple.predict();
+			return simple.getState().data[0];
+		}));
+		benchmarks.add(new Benchmark("KalmanFilterSimple.update", () -> {
+			simple.update(z, R);
+			return simple.getState().data[0];
+		}));
+
+		final TwoStateKalmanFilter twoState = new TwoStateKalmanFilter();
+		twoState.configure(F, Q, H);
+		twoState.setState(x_init, p_init);
+		benchmarks.add(new Benchmark("TwoStateKalmanFilter.predict", () -> {
+			twoState.predict();
+			return twoState.getX0();
+		}));
+		benchmarks.add(new Benchmark("TwoStateKalmanFilter.update", () -> {
+			twoState.update(0.5, 0.0, 0.1, R);
+			return twoState.getX0();
+		}));
+
+		// Same configuration as AttitudeTrackerTests.testTankSteerWithControl
+		DenseMatrix64F F_c = new DenseMatrix64F(new double[][]{
+			{1.0, 0.1},
+			{0.0, 0.9},
+		});
+		DenseMatrix64F Q_c = new DenseMatrix64F(new double[][]{
+			{0.0218, 0.0},
+			{0.0, 0.0218},
+		});
+		DenseMatrix64F H_c = new DenseMatrix64F(new double[][]{
+			{1.0, 0.0},
+			{0.0, 1.0},
+		});
+		DenseMatrix64F B_c = new DenseMatrix64F(new double[][]{
+			{0.0, 0.0},
+			{0.1, -0.1},
+		});
+		final DenseMatrix64F R_c = new DenseMatrix64F(new double[][]{
+			{0.131, 0.0},
+			{0.0, 0.0873},
+		});
+		final DenseMatrix64F z_c = new DenseMatrix64F(new double[][]{
+			{0.5},
+			{0.1},
+		});
+		final DenseMatrix64F u_c = new DenseMatrix64F(new double[][]{
+			{1.0},
+			{-1.0},
+		});
+		final KalmanFilterWithControl withControl = new KalmanFilterWithControl();
+		withControl.configure(F_c, Q_c, H_c, B_c);
+		withControl.setState(x_init, p_init);
+		benchmarks.add(new Benchmark("KalmanFilterWithControl.predict", () -> {
+			withControl.predict(u_c);
+			return withControl.getState().data[0];
+		}));
+		benchmarks.add(new Benchmark("KalmanFilterWithControl.update", () -> {
+			withControl.update(z_c, R_c);
+			return withControl.getState().data[0];
+		}));
+		// The same without the fixed-size implementation
+		final KalmanFilterWithControl generic = new KalmanFilterWithControl(false);
+		generic.configure(F_c, Q_c, H_c, B_c);
+		generic.setState(x_init, p_init);
+		benchmarks.add(new Benchmark("KalmanFilterWithControl.predict (generic)", () -> {
+			generic.predict(u_c);
+			return generic.getState().data[0];
+		}));
+		benchmarks.add(new Benchmark("KalmanFilterWithControl.update (generic)", () -> {
+			generic.update(z_c, R_c);
+			return generic.getState().data[0];
+		}));
+
+		final ScalarKalmanFilter scalar = new ScalarKalmanFilter();
+		scalar.configure(1, 0.05, 1);
+		benchmarks.add(new Benchmark("ScalarKalmanFilter.predict+update", () -> {
+			scalar.predict();
+			scalar.update(0.5, 10);
+			return scalar.getState();
+		}));
+
+		final MagnetometerCalibrator calibrator = new MagnetometerCalibrator(-164.0, -25.0);
+		final double[] turn = new double[1];
+		benchmarks.add(new Benchmark("MagnetometerCalibrator.addSample+getHeading", () -> {
+			double heading = turn[0] += 0.05;
+			double mag_a = -211 + 250 * Math.sin(heading), mag_b = 29 + 200 * Math.cos(heading);
+			calibrator.addSample(mag_a, mag_b);
+			return calibrator.getHeading(mag_a, mag_b);
+		}));
+
+		final ArrayReplay replay = new ArrayReplay(RecordedSession.ALL[4]);
+		final FilteredCompassReader reader = new FilteredCompassReader();
+		reader.setDataSources(replay, replay, replay);
+		benchmarks.add(new Benchmark("FilteredCompassReader.updateEstimate", () -> {
+			reader.updateEstimate();
+			replay.advance();
+			return reader.getFilteredHeading();
+		}));
+
+		final ArrayReplay provider_replay = new ArrayReplay(RecordedSession.ALL[4]);
+		final FilteredCompassReader provider_reader = new FilteredCompassReader();
+		provider_reader.setSampleSource(new ProviderSampleSource(provider_replay, provider_replay, provider_replay));
+		benchmarks.add(new Benchmark("FilteredCompassReader.updateEstimate (three providers)", () -> {
+			provider_reader.updateEstimate();
+			provider_replay.advance();
+			return provider_reader.getFilteredHeading();
+		}));
+
+		final ArrayReplay metrics_replay = new ArrayReplay(RecordedSession.ALL[4]);
+		final FilteredCompassReader metrics_reader = new FilteredCompassReader();
+		metrics_reader.setDataSources(metrics_replay, metrics_replay, metrics_replay);
+		metrics_reader.setMetrics(new FilterMetrics(5 * 1000 * 1000));
+		benchmarks.add(new Benchmark("FilteredCompassReader.updateEstimate (with metrics)", () -> {
+			metrics_reader.updateEstimate();
+			metrics_replay.advance();
+			return metrics_reader.getFilteredHeading();
+		}));
+
+		final ArrayReplay lag_replay = new ArrayReplay(RecordedSession.ALL[4]);
+		final FilteredCompassReader lag_reader = new FilteredCompassReader();
+		lag_reader.setDataSources(lag_replay, lag_replay, lag_replay);
+		lag_reader.setSmoothingLag(10);
+		benchmarks.add(new Benchmark("FilteredCompassReader.updateEstimate (lag 10)", () -> {
+			lag_reader.updateEstimate();
+			lag_replay.advance();
+			return lag_reader.getSmoothedHeading();
+		}));
+
+		// A 200Hz gyro and a 20Hz compass; one op is one gyro tick
+		final MultiRateCompassFilter multi = new MultiRateCompassFilter();
+		final double[] tick = new double[1];
+		benchmarks.add(new Benchmark("MultiRateCompassFilter, per gyro tick (compass every 10)", () -> {
+			int i = (int)tick[0]++;
+			double t = i * 0.005;
+			multi.addGyroSample(t, 10.0);
+			if(i % 10 == 0) {
+				multi.addCompassSample(t, Math.IEEEremainder(t * 10.0 / 45, 2 * Math.PI));
+			}
+			multi.processPending();
+			return multi.getFilteredHeading();
+		}));
+		final FilteredCompassReader polled = new FilteredCompassReader();
+		final double[] latest = new double[3];
+		polled.setDataSources(() -> latest[1], () -> latest[2], () -> latest[0]);
+		benchmarks.add(new Benchmark("FilteredCompassReader, per gyro tick (compass every 10)", () -> {
+			int i = (int)tick[0]++;
+			latest[0] = i * 0.005;
+			latest[2] = 10.0;
+			if(i % 10 == 0) {
+				latest[1] = Math.IEEEremainder(latest[0] * 10.0 / 45, 2 * Math.PI);
+			}
+			polled.updateEstimate();
+			return polled.getFilteredHeading();
+		}));
+
+		// One op is a whole recording; compare ns/op divided by its length to the above
+		final CsvDataPlayer player = RecordedSession.ALL[4].openPreparsedPlayer();
+		final int n = player.getNumRecords() - 1;
+		final double[] time = new double[n], heading = new double[n], w = new double[n];
+		for(int i = 0; i < n; ++i) {
+			time[i] = player.getTime();
+			heading[i] = player.getHeading();
+			w[i] = player.getW();
+			player.advancePlayback();
+		}
+		final double[] heading_out = new double[n], w_out = new double[n];
+		benchmarks.add(new Benchmark("FilteredCompassReader.updateEstimates (" + n + " samples)", () -> {
+			FilteredCompassReader batch_reader = new FilteredCompassReader();
+			batch_reader.updateEstimates(time, heading, w, n, heading_out, w_out);
+			return heading_out[n - 1];
+		}));
+		benchmarks.add(new Benchmark("FilteredCompassReader.updateEstimate (" + n + " samples)", () -> {
+			FilteredCompassReader sample_reader = new FilteredCompassReader();
+			sample_reader.setDataSources(player, player, player);
+			player.rewindPlayback();
+			while(player.hasMoreData()) {
+				sample_reader.updateEstimate();
+				player.advancePlayback();
+			}
+			return sample_reader.getFilteredHeading();
+		}));
+	}
+
+	private static void addFilterBankBenchmarks(List<Benchmark> benchmarks) {
+		final int LANES = 4096;
+		final double[] time = new double[LANES], heading = new double[LANES], w = new double[LANES];
+		final CompassFilterBank bank = new CompassFilterBank(LANES);
+		final FilteredCompassReader[] readers = new FilteredCompassReader[LANES];
+		final ArrayReplay replay = new ArrayReplay(RecordedSession.ALL[4]);
+		for(int lane = 0; lane < LANES; ++lane) {
+			readers[lane] = new FilteredCompassReader();
+			readers[lane].setDataSources(replay, replay, replay);
+		}
+		benchmarks.add(new Benchmark("CompassFilterBank.updateEstimates (" + LANES + " lanes)", () -> {
+			replay.advance();
+			Arrays.fill(time, replay.getTime());
+			Arrays.fill(heading, replay.getHeading());
+			Arrays.fill(w, replay.getW());
+			bank.updateEstimates(time, heading, w);
+			return bank.getFilteredHeading(0);
+		}));
+		final ForkJoinPool pool = ForkJoinPool.commonPool();
+		benchmarks.add(new Benchmark("CompassFilterBank.updateEstimates (" + LANES + " lanes, fork-join)", () -> {
+			replay.advance();
+			Arrays.fill(time, replay.getTime());
+			Arrays.fill(heading, replay.getHeading());
+			Arrays.fill(w, replay.getW());
+			bank.updateEstimates(time, heading, w, pool);
+			return bank.getFilteredHeading(0);
+		}));
+		benchmarks.add(new Benchmark("FilteredCompassReader.updateEstimate (" + LANES + " instances)", () -> {
+			replay.advance();
+			for(FilteredCompassReader reader : readers) {
+				reader.updateEstimate();
+			}
+			return readers[0].getFilteredHeading();
+		}));
+	}
+
+	private static void addAttitudeBenchmarks(List<Benchmark> benchmarks) {
+		// A slow tumble, one sample every 10ms
+		final double[] t = new double[1];
+		final AttitudeTracker per_axis = new AttitudeTracker();
+		benchmarks.add(new Benchmark("AttitudeTracker.updateSensorData", () -> {
+			double s = t[0] += 0.01;
+			per_axis.updateSensorData(s * 1000, 0.3 * s, 0.2 * s, 0.1 * s, 0.3, 0.2, 0.1);
+			return per_axis.getYaw();
+		}));
+		final QuaternionAttitudeTracker fused = new QuaternionAttitudeTracker();
+		benchmarks.add(new Benchmark("QuaternionAttitudeTracker.updateSensorData", () -> {
+			double s = t[0] += 0.01;
+			fused.updateSensorData(s * 1000, 0.3 * s, 0.2 * s, 0.1 * s, 0.3, 0.2, 0.1);
+			return fused.getQuaternionW();
+		}));
+
+		// What AttitudeTracker would cost with a matrix-library filter per axis
+		final KalmanFilterSimple[] axes = new KalmanFilterSimple[3];
+		final DenseMatrix64F F = new DenseMatrix64F(new double[][]{{1.0, 0.01}, {0.0, 1.0}});
+		final DenseMatrix64F R = new DenseMatrix64F(new double[][]{{0.0076, 0.0}, {0.0, 4e-4}});
+		final DenseMatrix64F z = new DenseMatrix64F(2, 1);
+		for(int a = 0; a < 3; ++a) {
+			axes[a] = new KalmanFilterSimple();
+			axes[a].configure(F, new DenseMatrix64F(new double[][]{{1e-6, 0.0}, {0.0, 0.01}}), CommonOps.identity(2));
+			axes[a].setState(new DenseMatrix64F(2, 1), CommonOps.identity(2));
+		}
+		benchmarks.add(new Benchmark("3 x KalmanFilterSimple predict+update", () -> {
+			double s = t[0] += 0.01;
+			for(int a = 0; a < 3; ++a) {
+				z.data[0] = 0.1 * (a + 1) * s;
+				z.data[1] = 0.1 * (a + 1);
+				axes[a].predict();
+				axes[a].update(z, R);
+			}
+			return axes[2].getState().data[0];
+		}));
+	}
+
+	private static void addReplayBenchmarks(List<Benchmark> benchmarks) throws IOException {
+		for(RecordedSession session : RecordedSession.ALL) {
+			benchmarks.add(new Benchmark("replay " + session.filename, replay(session.openPlayer())));
+		}
+		for(RecordedSession session : RecordedSession.ALL) {
+			benchmarks.add(new Benchmark("replay (preparsed) " + session.filename, replay(session.openPreparsedPlayer())));
+		}
+		for(RecordedSession session : RecordedSession.ALL) {
+			benchmarks.add(new Benchmark("replay (binary) " + session.filename,
+					replay(session.openBinaryPlayer(binaryCopy(session, 8)), false)));
+		}
+		for(RecordedSession session : RecordedSession.ALL) {
+			benchmarks.add(new Benchmark("replay (binary float32) " + session.filename,
+					replay(session.openBinaryPlayer(binaryCopy(session, 4)), true)));
+		}
+		for(final RecordedSession session : RecordedSession.ALL) {
+			benchmarks.add(new Benchmark("load " + session.filename, () -> {
+				return session.openPlayer().getNumRecords();
+			}));
+		}
+		for(final RecordedSession session : RecordedSession.ALL) {
+			benchmarks.add(new Benchmark("load (preparsed) " + session.filename, () -> {
+				return session.openPreparsedPlayer().getNumRecords();
+			}));
+		}
+		for(final RecordedSession session : RecordedSession.ALL) {
+			final String bin = binaryCopy(session, 8);
+			benchmarks.add(new Benchmark("load (binary) " + session.filename, () -> {
+				try {
+					return session.openBinaryPlayer(bin).getNumRecords();
+				} catch(IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}));
+		}
+	}
+
+	private static void addSnapshotBenchmarks(List<Benchmark> benchmarks) throws IOException {
+		final ArrayReplay replay = new ArrayReplay(RecordedSession.ALL[4]);
+		final FilteredCompassReader reader = new FilteredCompassReader();
+		reader.setSampleSource(replay);
+		for(int i = 0; i < 100; ++i) {
+			reader.updateEstimate();
+			replay.advance();
+		}
+		File file = File.createTempFile("filter", ".snap");
+		file.deleteOnExit();
+		final FilterStateSnapshot snapshot = new FilterStateSnapshot(file.getPath(), false);
+		benchmarks.add(new Benchmark("FilterStateSnapshot.write", () -> {
+			try {
+				snapshot.write(reader);
+			} catch(IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			return snapshot.getSequence();
+		}));
+	}
+
+	/** Convert a recording to the binary format, with values of the given size, in a temporary file */
+	private static String binaryCopy(RecordedSession session, int bytesPerValue) throws IOException {
+		File bin = File.createTempFile("session", ".atsn");
+		bin.deleteOnExit();
+		session.convertToBinary(bin.getPath(), bytesPerValue);
+		return bin.getPath();
+	}
+
+	private static Operation replay(final BinarySessionPlayer player, final boolean singlePrecision) {
+		return () -> {
+			FilteredCompassReader reader = new FilteredCompassReader();
+			reader.setSinglePrecision(singlePrecision);
+			reader.setDataSources(player, player, player);
+			player.rewindPlayback();
+			double sum = 0;
+			while(player.hasMoreData()) {
+				reader.updateEstimate();
+				sum += reader.getFilteredHeading();
+				player.advancePlayback();
+			}
+			return sum;
+		};
+	}
+
+	private static Operation replay(final CsvDataPlayer player) {
+		return () -> {
+			FilteredCompassReader reader = new FilteredCompassReader();
+			reader.setDataSources(player, player, player);
+			player.rewindPlayback();
+			double sum = 0;
+			while(player.hasMoreData()) {
+				reader.updateEstimate();
+				sum += reader.getFilteredHeading();
+				player.advancePlayback();
+			}
+			return sum;
+		};
+	}
+
+	private static void run(Benchmark b) {
+		for(int i = 0; i < WARMUP_ITERATIONS; ++i) {
+			runIteration(b.op);
+		}
+		long ops = 0, nanos = 0, bytes = 0, gcs = 0;
+		for(int i = 0; i < MEASUREMENT_ITERATIONS; ++i) {
+			long gcs_before = gcCount();
+			long bytes_before = allocatedBytes();
+			long start = System.nanoTime();
+			ops += runIteration(b.op);
+			nanos += System.nanoTime() - start;
+			bytes += allocatedBytes() - bytes_before;
+			gcs += gcCount() - gcs_before;
+		}
+		double ns_per_op = (double)nanos / ops;
+		System.out.println(String.format("%-60s %14.1f %14.1f %12.1f %12.1f %6d",
+				b.name, ns_per_op, 1e9 / ns_per_op, (double)bytes / ops, bytes / (nanos / 1e9) / 1e6, gcs));
+	}
+
+	/** Run the operation repeatedly for about ITERATION_NANOS and return how many times it ran */
+	private static long runIteration(Operation op) {
+		long ops = 0;
+		double acc = 0;
+		long deadline = System.nanoTime() + ITERATION_NANOS;
+		do {
+			// Check the clock every so often rather than every call
+			for(int i = 0; i < 64; ++i) {
+				acc += op.run();
+			}
+			ops += 64;
+		} while(System.nanoTime() < deadline);
+		sink = acc;
+		return ops;
+	}
+
+	static long allocatedBytes() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if(bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return 0;
+	}
+
+	private static long gcCount() {
+		long count = 0;
+		for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			count += Math.max(0, gc.getCollectionCount());
+		}
+		return count;
+	}
+
+	/**
+	 * Serves a recording from arrays, looping forever, so FilteredCompassReader can be
+	 * timed without the cost of the CSV player.  Time keeps increasing across loops.
+	 */
+	private static class ArrayReplay implements HeadingProvider, HeadingRateProvider, TimeProvider, CompassSampleSource {
+		final double[] time, heading, w;
+		final double duration;
+		int cur = 0;
+		double timeOffset = 0;
+
+		ArrayReplay(RecordedSession session) {
+			CsvDataPlayer player = session.openPreparsedPlayer();
+			int n = player.getNumRecords() - 1;
+			time = new double[n];
+			heading = new double[n];
+			w = new double[n];
+			for(int i = 0; i < n; ++i) {
+				time[i] = player.getTime();
+				heading[i] = player.getHeading();
+				w[i] = player.getW();
+				player.advancePlayback();
+			}
+			duration = time[n - 1] - time[0] + (time[n - 1] - time[n - 2]);
+		}
+
+		void advance() {
+			if(++cur >= time.length) {
+				cur = 0;
+				timeOffset += duration;
+			}
+		}
+
+		@Override
+		public double getTime() { return time[cur] + timeOffset; }
+		@Override
+		public double getHeading() { return heading[cur]; }
+		@Override
+		public double getW() { return w[cur]; }
+		@Override
+		public void readSample(CompassSample sample) {
+			sample.time = time[cur] + timeOffset;
+			sample.heading = heading[cur];
+			sample.w = w[cur];
+		}
+	}
+}
@@ -27,11 +27,23 @@
 package AttitudeTracker;
 
 import java.awt.Dimension;
+import java.awt.GraphicsEnvironment;
 import java.awt.event.WindowEvent;
 import java.awt.event.WindowListener;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.swing.JDialog;
 
@@ -39,6 +51,7 @@ import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVParser;
 import org.apache.commons.csv.CSVRecord;
 import org.ejml.data.DenseMatrix64F;
+import org.ejml.ops.CommonOps;
 import org.jfree.chart.ChartFactory;
 import org.jfree.chart.ChartPanel;
 import org.jfree.chart.JFreeChart;
@@ -56,31 +69,27 @@ public class AttitudeTrackerTests {
 	public static final double PROCESS_RATE = 1-10.0/NUM_DATAPOINTS; // the only parameter of this fictional process
 
 	public static void main(String[] args) {
-//		testTankSteerWithControl(true);
+//		testTankSteerWithControl(true, 0);
 		testKfWithRecordedData(true);
 	}
 	
 	/**
 	 * Simulate a tank-drive robot
 	 * 
+	 * @param seed for the simulated noise; the same seed gives the same run
 	 */
-	public static void testTankSteerWithControl(boolean terminateAfter) {
-		// Generate simulated sensor data for a robot that:
-		/* - Sits still for 1s
-		 * - Pivots right for 2s
-		 * - Drives straight for 1s
-		 * - Curves left for 3s
-		 * - Drives straight back for 1s
-		 * - Tries to pivot for 2s but the robot is held fixed in place
-		 * - Drives straight forward for 5s
-		 */
+	public static void testTankSteerWithControl(boolean terminateAfter, long seed) {
+		// Simulated sensor data for a robot that sits still, pivots, drives, and tries to
+		// pivot while held in place; see TankDriveScenario.standard()
+		TankDriveScenario scenario = TankDriveScenario.standard(DT);
 		// Shadow some of the default values
-		final int NUM_DATAPOINTS = (int)((1+2+1+3+1+2+5) / DT);
-		final double MAX_VEHICLE_PIVOT_RATE_RAD_PER_S = Math.PI;
+		final int NUM_DATAPOINTS = scenario.getSamplesPerPass();
 		final double YAW_PROCESS_NOISE_MAGNITUDE_RAD = 5 * Math.PI / 180;
 		final double YAW_RATE_PROCESS_NOISE_MAGNITUDE_RAD_S = 5 * Math.PI / 180;
 		final double YAW_MEASUREMENT_NOISE_MAGNITUDE_RAD = 15 * Math.PI / 180;
 		final double YAW_RATE_MEASUREMENT_NOISE_MAGNITUDE_RAD_PER_S = 10 * Math.PI / 180;
+		scenario.setNoise(TankDriveScenario.NoiseModel.UNIFORM, YAW_PROCESS_NOISE_MAGNITUDE_RAD, YAW_RATE_PROCESS_NOISE_MAGNITUDE_RAD_S,
+				YAW_MEASUREMENT_NOISE_MAGNITUDE_RAD, YAW_RATE_MEASUREMENT_NOISE_MAGNITUDE_RAD_PER_S);
 
 		double[] time          = new double[NUM_DATAPOINTS];
 		// Control input
@@ -101,62 +110,18 @@ public class AttitudeTrackerTests {
 		double   yaw_rate_cum_error = 0; // cumulative error = estimated - actual
 		double   yaw_rate_cum_pred_error = 0; // cumulative predicted error = predicted - actual
 
-		for(int i = 0; i < NUM_DATAPOINTS; ++i) {
-			time[i] = i * DT;
-			boolean moving = true;
-			boolean wheels_slipping = false;
-			if(time[i] < 1.0) {
-				// Sit still to start out
-				moving = false;
-				left_wheel_speed [i] = 0.0;
-				right_wheel_speed[i] = 0.0;
-			} else if(time[i] < 3.0) {
-				// Pivot right
-				left_wheel_speed [i] = +1.0;
-				right_wheel_speed[i] = -1.0;
-				
-			} else if(time[i] < 5.0) {
-				// Go straight
-				left_wheel_speed [i] = +1.0;
-				right_wheel_speed[i] = +1.0;
-			} else if(time[i] < 8.0) {
-				// Curve left
-				left_wheel_speed [i] =  0.0;
-				right_wheel_speed[i] = +1.0;
-			} else if(time[i] < 9.0) {
-				// Straight back
-				left_wheel_speed [i] = -1.0;
-				right_wheel_speed[i] = -1.0;
-			} else if(time[i] < 11.0) {
-				// Get stuck trying to turn
-				wheels_slipping = true;
-				yaw_rate_ideal[i] = 0;
-				left_wheel_speed [i] = -1.0;
-				right_wheel_speed[i] = +1.0;
-			} else if(time[i] < 16.0) {
-				// Straight forward
-				left_wheel_speed [i] = +1.0;
-				right_wheel_speed[i] = +1.0;
-			}
-			
-			// Compute turning equation
-			if(!wheels_slipping) {
-				yaw_rate_ideal[i] = MAX_VEHICLE_PIVOT_RATE_RAD_PER_S * (left_wheel_speed[i] - right_wheel_speed[i]) / 2;
-			}
-			double yaw = (i == 0)? 0 : yaw_ideal[i - 1];
-			yaw_ideal[i] = yaw + yaw_rate_ideal[i] * DT;
-			
-			// There's no wobbling when the vehicle's stationary
-			yaw_actual[i]      = yaw_ideal[i];
-			yaw_rate_actual[i] = yaw_rate_ideal[i];
-			if(moving) {
-				yaw_actual[i]      += (2 * Math.random() - 1) * YAW_PROCESS_NOISE_MAGNITUDE_RAD;
-				yaw_rate_actual[i] += (2 * Math.random() - 1) * YAW_RATE_PROCESS_NOISE_MAGNITUDE_RAD_S;
-			}
-			
-			// There's always sensor noise
-			yaw_measured[i]      = yaw_actual[i]      + (2 * Math.random() - 1) * YAW_MEASUREMENT_NOISE_MAGNITUDE_RAD;
-			yaw_rate_measured[i] = yaw_rate_actual[i] + (2 * Math.random() - 1) * YAW_RATE_MEASUREMENT_NOISE_MAGNITUDE_RAD_PER_S;
+		TankDriveScenario.Run run = scenario.start(new SplittableRandom(seed), false);
+		TankDriveScenario.TankDriveSample sample = new TankDriveScenario.TankDriveSample();
+		for(int i = 0; run.next(sample); ++i) {
+			time[i]               = sample.time;
+			left_wheel_speed [i]  = sample.leftWheelSpeed;
+			right_wheel_speed[i]  = sample.rightWheelSpeed;
+			yaw_ideal[i]          = sample.yawIdeal;
+			yaw_actual[i]         = sample.yawActual;
+			yaw_measured[i]       = sample.yawMeasured;
+			yaw_rate_ideal[i]     = sample.yawRateIdeal;
+			yaw_rate_actual[i]    = sample.yawRateActual;
+			yaw_rate_measured[i]  = sample.yawRateMeasured;
 		}
 		
 		// Configure filter
@@ -267,6 +232,17 @@ public class AttitudeTrackerTests {
 	 * @param terminateAfter
 	 */
 	private static void showChart(JFreeChart chart, boolean terminateAfter) {
+		if(GraphicsEnvironment.isHeadless()) {
+			// No display, e.g. on a build machine; save the chart instead
+			File file = new File(chart.getTitle().getText().replaceAll("[^A-Za-z0-9 .-]", "_") + ".png");
+			try {
+				SessionChartReport.writePng(chart, file);
+				System.out.println("Chart saved to " + file);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			return;
+		}
 		ChartPanel panel = new ChartPanel(chart);
         panel.setFillZoomRectangle(true);
         panel.setMouseWheelEnabled(true);
@@ -299,11 +275,13 @@ public class AttitudeTrackerTests {
 		// CSV columns in "2017-1-19 recording.csv": mag xyz, gyro xyz, corrected heading, time
 		// At this point yz on the magnetometer represent the yaw, and x on the gyro
 		CsvDataPlayer player = new CsvDataPlayer("2017-1-28 jerky turns.csv", 1, 2, -164.0, -25.0, 4, -0.10, 30.0, 7);
+		player.preparse(); // each sample is read twice below, once here and once by the filter
 		FilteredCompassReader frc = new FilteredCompassReader();
 		frc.setDataSources(player, player, player);
 		
 		
-		final int NUM_DATAPOINTS = 7162;
+		// The last record is never played back; see CsvDataPlayer.hasMoreData()
+		final int NUM_DATAPOINTS = player.getNumRecords() - 1;
 		// t for Theta, the heading to magnetic north
 		// w for lowercase omega, angular velocity
 		double[] time        = new double[NUM_DATAPOINTS];
@@ -363,10 +341,1099 @@ public class AttitudeTrackerTests {
 
 	}
 
+	/**
+	 * Run TwoStateKalmanFilter and KalmanFilterSimple side by side over recorded data
+	 * and report how far apart their estimates get.  They should only differ by
+	 * floating point rounding.
+	 */
+	public static void testTwoStateKfMatchesSimpleKf() {
+		CsvDataPlayer player = new CsvDataPlayer("2017-1-28 jerky turns.csv", 1, 2, -164.0, -25.0, 4, -0.10, 30.0, 7);
+		DenseMatrix64F Q = new DenseMatrix64F(new double[][]{
+			{0.05, 0.0},
+			{0.0,  0.0001},
+		});
+		DenseMatrix64F H = new DenseMatrix64F(new double[][]{
+			{1.0, 0.0},
+			{0.0, 1.0},
+			{0.0, 1.0},
+		});
+		DenseMatrix64F R = new DenseMatrix64F(new double[][]{
+			{10.0, 0.0, 0.0},
+			{ 0.0, 1.0, 0.0},
+			{ 0.0, 0.0, 0.001},
+		});
+		DenseMatrix64F x_init = new DenseMatrix64F(2, 1);
+		DenseMatrix64F p_init = CommonOps.identity(2);
+		KalmanFilterSimple reference = new KalmanFilterSimple();
+		TwoStateKalmanFilter fixed = new TwoStateKalmanFilter();
+		reference.configure(CommonOps.identity(2), Q, H);
+		fixed.configure(CommonOps.identity(2), Q, H);
+		reference.setState(x_init, p_init);
+		fixed.setState(x_init, p_init);
+
+		double max_err = 0;
+		double last_time = player.getTime();
+		while(player.hasMoreData()) {
+			double dt = player.getTime() - last_time;
+			last_time = player.getTime();
+			double theta = player.getHeading();
+			double w = player.getW();
+
+			reference.setF(new DenseMatrix64F(new double[][]{{1.0, dt / 45}, {0.0, 1.0}}));
+			fixed.setF(1.0, dt / 45, 0.0, 1.0);
+			reference.predict();
+			fixed.predict();
+			reference.update(new DenseMatrix64F(new double[][]{{theta}, {0.0}, {w}}), R);
+			fixed.update(theta, 0.0, w, R);
+
+			for(int j = 0; j < 2; ++j) {
+				max_err = Math.max(max_err, Math.abs(reference.getState().get(j) - fixed.getState().get(j)));
+			}
+			for(int j = 0; j < 4; ++j) {
+				max_err = Math.max(max_err, Math.abs(reference.getCovariance().get(j) - fixed.getCovariance().get(j)));
+			}
+			player.advancePlayback();
+		}
+		System.out.println("Two-state KF vs simple KF: max difference " + max_err);
+	}
+
+	/**
+	 * Run KalmanFilterWithControl's row-by-row update for diagonal R against its full
+	 * matrix update, which a negligible off-diagonal term in R forces.  Every third
+	 * sample drops the rate measurement, which for the full update is stood in for by
+	 * a huge variance, so differences there are a little above rounding.
+	 */
+	public static void testSequentialUpdateMatchesFull() {
+		DenseMatrix64F F = new DenseMatrix64F(new double[][]{{1.0, 0.1}, {0.0, 0.9}});
+		DenseMatrix64F Q = new DenseMatrix64F(new double[][]{{0.0218, 0.0}, {0.0, 0.0218}});
+		DenseMatrix64F B = new DenseMatrix64F(new double[][]{{0.0, 0.0}, {0.1, -0.1}});
+		DenseMatrix64F R = new DenseMatrix64F(new double[][]{{0.131, 0.0}, {0.0, 0.0873}});
+		DenseMatrix64F R_full = new DenseMatrix64F(new double[][]{{0.131, 1e-300}, {1e-300, 0.0873}});
+		DenseMatrix64F R_missing = new DenseMatrix64F(new double[][]{{0.131, 1e-300}, {1e-300, 1e12}});
+		KalmanFilterWithControl sequential = new KalmanFilterWithControl();
+		KalmanFilterWithControl full = new KalmanFilterWithControl();
+		sequential.configure(F, Q, CommonOps.identity(2), B);
+		full.configure(F, Q, CommonOps.identity(2), B);
+		sequential.setState(new DenseMatrix64F(2, 1), CommonOps.identity(2));
+		full.setState(new DenseMatrix64F(2, 1), CommonOps.identity(2));
+
+		Random random = new Random(2);
+		DenseMatrix64F u = new DenseMatrix64F(2, 1);
+		DenseMatrix64F z = new DenseMatrix64F(2, 1);
+		DenseMatrix64F z_missing = new DenseMatrix64F(2, 1);
+		double max_err = 0, max_err_missing = 0;
+		for(int i = 0; i < 1000; ++i) {
+			u.data[0] = random.nextDouble() * 2 - 1;
+			u.data[1] = random.nextDouble() * 2 - 1;
+			z.data[0] = i * 0.01 + random.nextGaussian() * 0.3;
+			z.data[1] = 0.2 + random.nextGaussian() * 0.3;
+			sequential.predict(u);
+			full.predict(u);
+			boolean missing = (i % 3 == 0);
+			if(missing) {
+				z_missing.data[0] = z.data[0];
+				z_missing.data[1] = Double.NaN;
+				sequential.update(z_missing, R);
+				full.update(z, R_missing);
+			} else {
+				sequential.update(z, R);
+				full.update(z, R_full);
+			}
+			double err = 0;
+			for(int j = 0; j < 2; ++j) {
+				err = Math.max(err, Math.abs(sequential.getState().get(j) - full.getState().get(j)));
+			}
+			for(int j = 0; j < 4; ++j) {
+				err = Math.max(err, Math.abs(sequential.getCovariance().get(j) - full.getCovariance().get(j)));
+			}
+			if(missing) {
+				max_err_missing = Math.max(max_err_missing, err);
+			} else {
+				max_err = Math.max(max_err, err);
+			}
+		}
+		System.out.println("Sequential vs full update: max difference " + max_err
+				+ ", " + max_err_missing + " with a measurement missing");
+	}
+
+	/**
+	 * Run the fixed-size KalmanFilterWithControl for 2, 3 and 4 states against the
+	 * generic one on random, stable models, with diagonal R (the row-by-row update)
+	 * and with a full R.  Differences should be at the level of rounding error.
+	 */
+	public static void testFixedKalmanFilterMatchesGeneric() {
+		Random random = new Random(23);
+		for(int n = 2; n <= 4; ++n) {
+			DenseMatrix64F F = CommonOps.identity(n);
+			DenseMatrix64F Q = CommonOps.identity(n);
+			DenseMatrix64F H = new DenseMatrix64F(n, n);
+			DenseMatrix64F B = new DenseMatrix64F(n, n);
+			DenseMatrix64F R_diag = new DenseMatrix64F(n, n);
+			DenseMatrix64F L = new DenseMatrix64F(n, n);
+			for(int i = 0; i < n; ++i) {
+				for(int j = 0; j < n; ++j) {
+					F.set(i, j, F.get(i, j) * 0.95 + random.nextGaussian() * 0.05);
+					H.set(i, j, (i == j ? 1 : 0) + random.nextGaussian() * 0.2);
+					B.set(i, j, random.nextGaussian() * 0.1);
+					L.set(i, j, (i >= j) ? random.nextDouble() : 0);
+				}
+				Q.set(i, i, 0.01 + random.nextDouble() * 0.01);
+				R_diag.set(i, i, 0.1 + random.nextDouble());
+			}
+			DenseMatrix64F R_full = new DenseMatrix64F(n, n);
+			CommonOps.multTransB(L, L, R_full);
+			CommonOps.addEquals(R_full, R_diag);
+
+			for(DenseMatrix64F R : new DenseMatrix64F[]{ R_diag, R_full }) {
+				KalmanFilterWithControl generic = new KalmanFilterWithControl(false);
+				KalmanFilterWithControl fixed = new KalmanFilterWithControl();
+				generic.configure(F, Q, H, B);
+				fixed.configure(F, Q, H, B);
+				generic.setState(new DenseMatrix64F(n, 1), CommonOps.identity(n));
+				fixed.setState(new DenseMatrix64F(n, 1), CommonOps.identity(n));
+				DenseMatrix64F u = new DenseMatrix64F(n, 1);
+				DenseMatrix64F z = new DenseMatrix64F(n, 1);
+				double max_err = 0;
+				for(int step = 0; step < 1000; ++step) {
+					for(int i = 0; i < n; ++i) {
+						u.data[i] = random.nextDouble() * 2 - 1;
+						z.data[i] = Math.sin(step * 0.01 * (i + 1)) + random.nextGaussian() * 0.3;
+					}
+					generic.predict(u);
+					fixed.predict(u);
+					generic.update(z, R);
+					fixed.update(z, R);
+					for(int j = 0; j < n; ++j) {
+						max_err = Math.max(max_err, Math.abs(generic.getState().get(j) - fixed.getState().get(j)));
+					}
+					for(int j = 0; j < n * n; ++j) {
+						max_err = Math.max(max_err, Math.abs(generic.getCovariance().get(j) - fixed.getCovariance().get(j)));
+					}
+				}
+				System.out.println("Fixed vs generic KF, " + n + " states, " + (R == R_diag ? "diagonal" : "full")
+						+ " R: max difference " + max_err);
+			}
+		}
+	}
+
+	/**
+	 * Reconfigure the fixed-size and the generic KalmanFilterWithControl part way
+	 * through a run, as a caller changing Q does, and check both keep their estimate
+	 * and still agree afterwards.
+	 */
+	public static void testReconfigureKeepsState() {
+		int n = 2;
+		DenseMatrix64F F = new DenseMatrix64F(new double[][]{{1, DT}, {0, 1}});
+		DenseMatrix64F Q = CommonOps.identity(n);
+		CommonOps.scale(0.01, Q);
+		DenseMatrix64F H = CommonOps.identity(n);
+		DenseMatrix64F B = new DenseMatrix64F(n, n);
+		DenseMatrix64F R = CommonOps.identity(n);
+		KalmanFilterWithControl generic = new KalmanFilterWithControl(false);
+		KalmanFilterWithControl fixed = new KalmanFilterWithControl();
+		generic.configure(F, Q, H, B);
+		fixed.configure(F, Q, H, B);
+		generic.setState(new DenseMatrix64F(n, 1), CommonOps.identity(n));
+		fixed.setState(new DenseMatrix64F(n, 1), CommonOps.identity(n));
+		DenseMatrix64F u = new DenseMatrix64F(n, 1);
+		DenseMatrix64F z = new DenseMatrix64F(new double[][]{{5}, {0}});
+		double max_err = 0;
+		for(int step = 0; step < 40; ++step) {
+			if(step == 20) {
+				double before = fixed.getState().get(0);
+				generic.configure(F, Q, H, B);
+				fixed.configure(F, Q, H, B);
+				System.out.println(String.format("Reconfigured after 20 steps: x0 generic %.3f, fixed %.3f (was %.3f)",
+						generic.getState().get(0), fixed.getState().get(0), before));
+			}
+			generic.predict(u);
+			fixed.predict(u);
+			generic.update(z, R);
+			fixed.update(z, R);
+			for(int j = 0; j < n; ++j) {
+				max_err = Math.max(max_err, Math.abs(generic.getState().get(j) - fixed.getState().get(j)));
+			}
+			for(int j = 0; j < n * n; ++j) {
+				max_err = Math.max(max_err, Math.abs(generic.getCovariance().get(j) - fixed.getCovariance().get(j)));
+			}
+		}
+		System.out.println("Reconfigured fixed vs generic KF: max difference " + max_err);
+	}
+
+	/**
+	 * Reconfigure a 3-state KalmanFilterWithControl part way through a run to 2
+	 * states, as the generic one has always allowed, and check the fixed-size and
+	 * generic implementations both carry on from the new setState() and agree.
+	 */
+	public static void testReconfigureToOtherSize() {
+		double max_err = 0;
+		KalmanFilterWithControl generic = new KalmanFilterWithControl(false);
+		KalmanFilterWithControl fixed = new KalmanFilterWithControl();
+		for(int n = 3; n >= 2; --n) {
+			DenseMatrix64F F = CommonOps.identity(n);
+			F.set(0, 1, DT);
+			DenseMatrix64F Q = CommonOps.identity(n);
+			CommonOps.scale(0.01, Q);
+			DenseMatrix64F H = CommonOps.identity(n);
+			DenseMatrix64F B = new DenseMatrix64F(n, n);
+			DenseMatrix64F R = CommonOps.identity(n);
+			generic.configure(F, Q, H, B);
+			fixed.configure(F, Q, H, B);
+			generic.setState(new DenseMatrix64F(n, 1), CommonOps.identity(n));
+			fixed.setState(new DenseMatrix64F(n, 1), CommonOps.identity(n));
+			DenseMatrix64F u = new DenseMatrix64F(n, 1);
+			DenseMatrix64F z = new DenseMatrix64F(n, 1);
+			z.set(0, 5);
+			for(int step = 0; step < 20; ++step) {
+				generic.predict(u);
+				fixed.predict(u);
+				generic.update(z, R);
+				fixed.update(z, R);
+				for(int j = 0; j < n; ++j) {
+					max_err = Math.max(max_err, Math.abs(generic.getState().get(j) - fixed.getState().get(j)));
+				}
+				for(int j = 0; j < n * n; ++j) {
+					max_err = Math.max(max_err, Math.abs(generic.getCovariance().get(j) - fixed.getCovariance().get(j)));
+				}
+			}
+		}
+		System.out.println("Reconfigured from 3 to 2 states: x0 " + fixed.getState().get(0)
+				+ ", fixed vs generic max difference " + max_err);
+	}
+
+	/**
+	 * Store every recording as floats in the binary session format, check the file is
+	 * about half the size of the double one, and that the single-precision reader
+	 * playing it stays within RegressionRunner's tolerance of double precision.
+	 */
+	public static void testSinglePrecision() throws IOException {
+		RecordedSession session = RecordedSession.ALL[4];
+		File doubles = File.createTempFile("session", ".atsn");
+		File floats = File.createTempFile("session", ".atsn");
+		try {
+			session.convertToBinary(doubles.getPath(), 8);
+			session.convertToBinary(floats.getPath(), 4);
+			BinarySessionPlayer d = session.openBinaryPlayer(doubles.getPath());
+			BinarySessionPlayer f = session.openBinaryPlayer(floats.getPath());
+			double max_rel = 0;
+			for(long i = 0; i < d.getNumRecords(); ++i) {
+				double a = d.getMagA(), b = f.getMagA();
+				if(a != 0) {
+					max_rel = Math.max(max_rel, Math.abs((b - a) / a));
+				}
+				d.advancePlayback();
+				f.advancePlayback();
+			}
+			System.out.println(String.format("Float session file: %d bytes vs %d as doubles, max relative difference %.2g",
+					floats.length(), doubles.length(), max_rel));
+		} finally {
+			doubles.delete();
+			floats.delete();
+		}
+		List<String> failures = RegressionRunner.checkSinglePrecision(Arrays.asList(RecordedSession.ALL),
+				RegressionRunner.SINGLE_PRECISION_TOLERANCE_DEG);
+		System.out.println("Single precision: " + (failures.isEmpty() ? "all recordings within tolerance" : failures));
+	}
+
+	/**
+	 * Play the jerky turns recording, snapshotting the filter every 10 samples, and
+	 * "restart" just after a snapshot: one reader restored from the snapshot file and
+	 * one started cold both pick up from there, and are compared with a reader that
+	 * ran throughout.  The restored one should match it exactly.  Then damage the
+	 * newest snapshot and check restore() falls back to the older one.
+	 */
+	public static void testWarmRestart() throws IOException {
+		final int SNAPSHOT_EVERY = 10;
+		RecordedSession session = RecordedSession.ALL[4];
+		CsvDataPlayer player = session.openPreparsedPlayer();
+		int restart = player.getNumRecords() / 2 / SNAPSHOT_EVERY * SNAPSHOT_EVERY;
+		File file = File.createTempFile("filter", ".snap");
+		try {
+			FilteredCompassReader throughout = new FilteredCompassReader();
+			throughout.setSampleSource(player);
+			FilterStateSnapshot snapshot = new FilterStateSnapshot(file.getPath(), false);
+			int i = 0;
+			for(; i < restart && player.hasMoreData(); ++i) {
+				throughout.updateEstimate();
+				if((i + 1) % SNAPSHOT_EVERY == 0) {
+					snapshot.write(throughout);
+				}
+				player.advancePlayback();
+			}
+			snapshot.close();
+
+			snapshot = new FilterStateSnapshot(file.getPath(), false);
+			FilteredCompassReader warm = new FilteredCompassReader();
+			warm.setSampleSource(player);
+			boolean restored = snapshot.restore(warm, 60 * 1000);
+			FilteredCompassReader cold = new FilteredCompassReader();
+			cold.setSampleSource(player);
+			double warm_first = 0, cold_first = 0, warm_max = 0, cold_max = 0;
+			int after = 0;
+			for(; player.hasMoreData(); ++i, ++after) {
+				throughout.updateEstimate();
+				warm.updateEstimate();
+				cold.updateEstimate();
+				double warm_err = Math.abs(Math.IEEEremainder(warm.getFilteredHeading() - throughout.getFilteredHeading(), 2 * Math.PI));
+				double cold_err = Math.abs(Math.IEEEremainder(cold.getFilteredHeading() - throughout.getFilteredHeading(), 2 * Math.PI));
+				if(after == 1) {
+					// The first update of a cold reader only initializes it
+					warm_first = warm_err;
+					cold_first = cold_err;
+				}
+				if(after >= 1 && after <= 50) {
+					warm_max = Math.max(warm_max, warm_err);
+					cold_max = Math.max(cold_max, cold_err);
+				}
+				player.advancePlayback();
+			}
+			System.out.println(String.format("Warm restart (restored %b, snapshot %d): heading off by %.3f deg on the first update, "
+					+ "at most %.3f over the next 50; cold start %.3f and %.3f deg", restored, snapshot.getSequence(),
+					Math.toDegrees(warm_first), Math.toDegrees(warm_max), Math.toDegrees(cold_first), Math.toDegrees(cold_max)));
+
+			// Tear the newest snapshot; the other slot must be used instead
+			long newest = snapshot.getSequence();
+			snapshot.close();
+			RandomAccessFile raw = new RandomAccessFile(file, "rw");
+			long slot = (newest % 2 == 1) ? 0 : FilterStateSnapshot.SLOT_BYTES;
+			raw.seek(slot + 40);
+			raw.write(0x5a);
+			raw.close();
+			snapshot = new FilterStateSnapshot(file.getPath(), false);
+			boolean fallback = snapshot.restore(new FilteredCompassReader(), 60 * 1000);
+			System.out.println("Torn snapshot " + newest + ": restored from " + snapshot.getSequence() + " instead: " + fallback);
+			snapshot.close();
+		} finally {
+			file.delete();
+		}
+	}
+
+	/**
+	 * Check FilteredCompassReader.updateEstimates() against per-sample updates
+	 * over every recording.  Differences should be at the level of rounding error.
+	 */
+	public static void testBatchUpdateMatchesPerSample() {
+		for(RecordedSession session : RecordedSession.ALL) {
+			CsvDataPlayer player = session.openPreparsedPlayer();
+			int n = player.getNumRecords() - 1;
+			double[] time    = new double[n];
+			double[] heading = new double[n];
+			double[] w       = new double[n];
+			double[] t_batch = new double[n];
+			double[] w_batch = new double[n];
+			FilteredCompassReader per_sample = new FilteredCompassReader();
+			per_sample.setDataSources(player, player, player);
+			double max_err = 0;
+			for(int i = 0; i < n; ++i) {
+				time[i]    = player.getTime();
+				heading[i] = player.getHeading();
+				w[i]       = player.getW();
+				player.advancePlayback();
+			}
+			new FilteredCompassReader().updateEstimates(time, heading, w, n, t_batch, w_batch);
+			player.rewindPlayback();
+			for(int i = 0; i < n; ++i) {
+				per_sample.updateEstimate();
+				player.advancePlayback();
+				double t_err = Math.abs(per_sample.getFilteredHeading() - t_batch[i]);
+				max_err = Math.max(max_err, Math.min(t_err, 2 * Math.PI - t_err));
+				max_err = Math.max(max_err, Math.abs(per_sample.getFilteredAngularVelocity() - w_batch[i]));
+			}
+			System.out.println("Batch vs per-sample, " + session + ": max difference " + max_err);
+		}
+	}
+
+	/**
+	 * Read every recording through CsvDataPlayer.readSample(), both from the CSV
+	 * records and preparsed, and through the three separate providers, and count the
+	 * filtered estimates that differ at all.
+	 */
+	public static void testSampleSourceMatchesProviders() {
+		for(RecordedSession session : RecordedSession.ALL) {
+			CsvDataPlayer raw = session.openPlayer();
+			CsvDataPlayer preparsed = session.openPreparsedPlayer();
+			CsvDataPlayer providers = session.openPlayer();
+			FilteredCompassReader from_raw = new FilteredCompassReader();
+			FilteredCompassReader from_preparsed = new FilteredCompassReader();
+			FilteredCompassReader from_providers = new FilteredCompassReader();
+			from_raw.setSampleSource(raw);
+			from_preparsed.setSampleSource(preparsed);
+			from_providers.setSampleSource(new ProviderSampleSource(providers, providers, providers));
+			int n = 0, mismatches = 0;
+			while(raw.hasMoreData()) {
+				from_raw.updateEstimate();
+				from_preparsed.updateEstimate();
+				from_providers.updateEstimate();
+				raw.advancePlayback();
+				preparsed.advancePlayback();
+				providers.advancePlayback();
+				double heading = from_providers.getFilteredHeading();
+				double w = from_providers.getFilteredAngularVelocity();
+				if(from_raw.getFilteredHeading() != heading || from_raw.getFilteredAngularVelocity() != w
+						|| from_preparsed.getFilteredHeading() != heading || from_preparsed.getFilteredAngularVelocity() != w) {
+					++mismatches;
+				}
+				++n;
+			}
+			System.out.println("Sample source vs providers, " + session + ": " + mismatches + " of " + n + " estimates differ");
+		}
+	}
+
+	/**
+	 * Downsample a noisy recording-length series with a few spikes in it, and check
+	 * that the ends and every spike survive.
+	 */
+	public static void testSeriesDownsampler() {
+		final int N = 100000, POINTS = 1000;
+		Random random = new Random(1);
+		double[] x = new double[N], y = new double[N];
+		for(int i = 0; i < N; ++i) {
+			x[i] = i * 0.01;
+			y[i] = Math.sin(x[i] / 10) + 0.05 * random.nextGaussian();
+		}
+		int[] spikes = { 1234, 45678, 87654 };
+		for(int spike : spikes) { y[spike] = 5; }
+		double[] x_out = new double[POINTS], y_out = new double[POINTS];
+		int kept = SeriesDownsampler.lttb(x, y, N, POINTS, x_out, y_out);
+		int spikes_kept = 0;
+		for(int i = 0; i < kept; ++i) {
+			if(y_out[i] == 5) { ++spikes_kept; }
+		}
+		System.out.println("LTTB: kept " + kept + " of " + N + " points, " + spikes_kept + " of " + spikes.length
+				+ " spikes, ends " + (x_out[0] == x[0] && x_out[kept - 1] == x[N - 1] ? "kept" : "LOST"));
+	}
+
+	/**
+	 * Run a CompassFilterBank with a spread of parameters against one
+	 * FilteredCompassReader per lane, and count the estimates that differ at all.
+	 */
+	public static void testFilterBankMatchesReaders() {
+		final int LANES = 64;
+		CsvDataPlayer player = RecordedSession.ALL[4].openPreparsedPlayer();
+		CompassFilterBank bank = new CompassFilterBank(LANES);
+		FilteredCompassReader[] readers = new FilteredCompassReader[LANES];
+		for(int lane = 0; lane < LANES; ++lane) {
+			double scale = 1 + lane / 8.0;
+			readers[lane] = new FilteredCompassReader(0.05 * scale, 0.0001 * scale, 10 / scale, 1.0, 0.001 * scale, 45 / scale);
+			readers[lane].setDataSources(player, player, player);
+			bank.setParameters(lane, 0.05 * scale, 0.0001 * scale, 10 / scale, 1.0, 0.001 * scale, 45 / scale);
+		}
+		double[] time    = new double[LANES];
+		double[] heading = new double[LANES];
+		double[] w       = new double[LANES];
+		int mismatches = 0;
+		while(player.hasMoreData()) {
+			for(int lane = 0; lane < LANES; ++lane) {
+				readers[lane].updateEstimate();
+				time[lane]    = player.getTime();
+				heading[lane] = player.getHeading();
+				w[lane]       = player.getW();
+			}
+			bank.updateEstimates(time, heading, w);
+			for(int lane = 0; lane < LANES; ++lane) {
+				if(bank.getFilteredHeading(lane) != readers[lane].getFilteredHeading() ||
+				   bank.getFilteredAngularVelocity(lane) != readers[lane].getFilteredAngularVelocity()) {
+					++mismatches;
+				}
+			}
+			player.advancePlayback();
+		}
+		System.out.println("Filter bank vs readers: " + mismatches + " mismatched estimates");
+	}
+
+	/**
+	 * Push a recording through SensorRingFeed from two driver threads while a filter
+	 * thread updates and several reader threads poll the published estimate.  Every
+	 * snapshot a reader saw must be one the filter actually published, and time must
+	 * never go backwards for any reader.
+	 */
+	public static void testConcurrentFeedAndPublish() throws InterruptedException {
+		final CsvDataPlayer player = RecordedSession.ALL[4].openPreparsedPlayer();
+		final int n = player.getNumRecords() - 1;
+		final double[] time = new double[n], heading = new double[n], w = new double[n];
+		for(int i = 0; i < n; ++i) {
+			time[i] = player.getTime();
+			heading[i] = player.getHeading();
+			w[i] = player.getW();
+			player.advancePlayback();
+		}
+		final SensorRingFeed feed = new SensorRingFeed(64);
+		final FilteredCompassReader reader = new FilteredCompassReader();
+		reader.setDataSources(feed, feed, feed);
+		final Set<String> published = new HashSet<String>();
+		final AtomicBoolean done = new AtomicBoolean();
+
+		Thread compass = new Thread(() -> {
+			for(int i = 0; i < n; ++i) { while(!feed.compassRing.offer(time[i], heading[i])) { Thread.yield(); } }
+		});
+		Thread gyro = new Thread(() -> {
+			for(int i = 0; i < n; ++i) { while(!feed.gyroRing.offer(time[i], w[i])) { Thread.yield(); } }
+		});
+		Thread filter = new Thread(() -> {
+			while(compass.isAlive() || gyro.isAlive() || feed.compassRing.size() > 0 || feed.gyroRing.size() > 0) {
+				if(feed.drain()) {
+					reader.updateEstimate();
+					published.add(feed.getTime() + " " + reader.getFilteredHeading() + " " + reader.getFilteredAngularVelocity());
+				}
+			}
+			done.set(true);
+		});
+		final List<List<String>> seen = new ArrayList<List<String>>();
+		final long[] backwards = new long[1];
+		Thread[] readers = new Thread[3];
+		for(int r = 0; r < readers.length; ++r) {
+			final List<String> mine = new ArrayList<String>();
+			seen.add(mine);
+			readers[r] = new Thread(() -> {
+				HeadingEstimate est = new HeadingEstimate();
+				double last_time = Double.NEGATIVE_INFINITY;
+				while(!done.get()) {
+					if(reader.getPublishedEstimate().read(est) && mine.size() < 100000) {
+						if(est.time < last_time) { synchronized(backwards) { ++backwards[0]; } }
+						last_time = est.time;
+						mine.add(est.time + " " + est.heading + " " + est.angularVelocity);
+					}
+				}
+			});
+		}
+		for(Thread r : readers) { r.start(); }
+		compass.start();
+		gyro.start();
+		filter.start();
+		compass.join();
+		gyro.join();
+		filter.join();
+		for(Thread r : readers) { r.join(); }
+
+		long reads = 0, torn = 0;
+		for(List<String> mine : seen) {
+			for(String snapshot : mine) {
+				++reads;
+				if(!published.contains(snapshot)) { ++torn; }
+			}
+		}
+		System.out.println("Concurrent feed: " + published.size() + " updates, " + reads + " reads, "
+				+ torn + " inconsistent, " + backwards[0] + " out of order");
+	}
+
+	/**
+	 * As testConcurrentFeedAndPublish(), for AttitudeTracker: a magnetometer and a
+	 * gyro driver thread push simulated three-axis readings through an
+	 * AttitudeSensorFeed while a filter thread updates and several reader threads
+	 * poll the published attitude.  Every snapshot read must be one the filter
+	 * published, with all three axes from the same update.
+	 */
+	public static void testConcurrentAttitudeFeed() throws InterruptedException {
+		final int n = 50000;
+		final double[] time = new double[n];
+		final double[][] mag = new double[n][3], gyro = new double[n][3];
+		Random random = new Random(8);
+		for(int i = 0; i < n; ++i) {
+			double t = i * 0.01;
+			time[i] = t * 1000; // ms
+			mag[i][0] = 0.3 * Math.sin(t) + 0.02 * random.nextGaussian();
+			mag[i][1] = 0.2 * Math.cos(0.7 * t) + 0.02 * random.nextGaussian();
+			mag[i][2] = Math.IEEEremainder(0.5 * t, 2 * Math.PI) + 0.02 * random.nextGaussian();
+			gyro[i][0] = 0.3 * Math.cos(t) + 0.01 * random.nextGaussian();
+			gyro[i][1] = -0.14 * Math.sin(0.7 * t) + 0.01 * random.nextGaussian();
+			gyro[i][2] = 0.5 + 0.01 * random.nextGaussian();
+		}
+		final AttitudeSensorFeed feed = new AttitudeSensorFeed(64);
+		final AttitudeTracker tracker = new AttitudeTracker();
+		final Set<String> published = new HashSet<String>();
+		final AtomicBoolean done = new AtomicBoolean();
+
+		Thread mag_driver = new Thread(() -> {
+			for(int i = 0; i < n; ++i) { while(!feed.magRing.offer(time[i], mag[i][0], mag[i][1], mag[i][2])) { Thread.yield(); } }
+		});
+		Thread gyro_driver = new Thread(() -> {
+			for(int i = 0; i < n; ++i) { while(!feed.gyroRing.offer(time[i], gyro[i][0], gyro[i][1], gyro[i][2])) { Thread.yield(); } }
+		});
+		Thread filter = new Thread(() -> {
+			while(mag_driver.isAlive() || gyro_driver.isAlive() || feed.magRing.size() > 0 || feed.gyroRing.size() > 0) {
+				if(feed.drain()) {
+					tracker.updateSensorData(feed);
+					published.add(feed.getTime() + " " + tracker.getRoll() + " " + tracker.getPitch() + " " + tracker.getYaw()
+							+ " " + tracker.getRollRate() + " " + tracker.getPitchRate() + " " + tracker.getYawRate());
+				}
+			}
+			done.set(true);
+		});
+		final List<List<String>> seen = new ArrayList<List<String>>();
+		Thread[] readers = new Thread[3];
+		for(int r = 0; r < readers.length; ++r) {
+			final List<String> mine = new ArrayList<String>();
+			seen.add(mine);
+			readers[r] = new Thread(() -> {
+				AttitudeEstimate est = new AttitudeEstimate();
+				while(!done.get()) {
+					if(tracker.getPublishedEstimate().read(est) && mine.size() < 100000) {
+						mine.add(est.time + " " + est.roll + " " + est.pitch + " " + est.yaw
+								+ " " + est.rollRate + " " + est.pitchRate + " " + est.yawRate);
+					}
+				}
+			});
+		}
+		for(Thread r : readers) { r.start(); }
+		mag_driver.start();
+		gyro_driver.start();
+		filter.start();
+		mag_driver.join();
+		gyro_driver.join();
+		filter.join();
+		for(Thread r : readers) { r.join(); }
+
+		long reads = 0, torn = 0;
+		for(List<String> mine : seen) {
+			for(String snapshot : mine) {
+				++reads;
+				if(!published.contains(snapshot)) { ++torn; }
+			}
+		}
+		System.out.println("Concurrent attitude feed: " + published.size() + " updates, " + reads + " reads, "
+				+ torn + " inconsistent");
+	}
+
+	/**
+	 * Tumble a simulated body through every roll and pitch, including straight up and
+	 * down, and compare the attitude error of QuaternionAttitudeTracker with that of
+	 * AttitudeTracker.  The simulated gyro is biased and both sensors are noisy.
+	 */
+	public static void testQuaternionTrackerAtExtremeAttitudes() {
+		final int STEPS = 20000;
+		final double DT = 0.01;
+		Random random = new Random(1);
+		QuaternionAttitudeTracker fused = new QuaternionAttitudeTracker();
+		AttitudeTracker per_axis = new AttitudeTracker();
+		double qw = 1, qx = 0, qy = 0, qz = 0;
+		double fused_sq = 0, per_axis_sq = 0, fused_max = 0;
+		for(int i = 0; i < STEPS; ++i) {
+			double t = i * DT;
+			double wx = 1.3, wy = 0.9 * Math.sin(0.3 * t), wz = 0.4;
+			// Truth: dq/dt = q * (0, w) / 2
+			double nw = qw + 0.5 * DT * (-qx * wx - qy * wy - qz * wz);
+			double nx = qx + 0.5 * DT * ( qw * wx + qy * wz - qz * wy);
+			double ny = qy + 0.5 * DT * ( qw * wy - qx * wz + qz * wx);
+			double nz = qz + 0.5 * DT * ( qw * wz + qx * wy - qy * wx);
+			double norm = Math.sqrt(nw * nw + nx * nx + ny * ny + nz * nz);
+			qw = nw / norm; qx = nx / norm; qy = ny / norm; qz = nz / norm;
+
+			double roll  = Math.atan2(2 * (qw * qx + qy * qz), 1 - 2 * (qx * qx + qy * qy));
+			double pitch = Math.asin(Math.max(-1, Math.min(1, 2 * (qw * qy - qz * qx))));
+			double yaw   = Math.atan2(2 * (qw * qz + qx * qy), 1 - 2 * (qy * qy + qz * qz));
+			double mx = roll  + 0.03 * random.nextGaussian();
+			double my = pitch + 0.03 * random.nextGaussian();
+			double mz = yaw   + 0.03 * random.nextGaussian();
+			double gx = wx + 0.02 + 0.01 * random.nextGaussian();
+			double gy = wy - 0.01 + 0.01 * random.nextGaussian();
+			double gz = wz + 0.03 + 0.01 * random.nextGaussian();
+			fused.updateSensorData(t * 1000, mx, my, mz, gx, gy, gz);
+			per_axis.updateSensorData(t * 1000, mx, my, mz, gx, gy, gz);
+			if(i < STEPS / 10) {
+				continue; // let the bias estimate settle
+			}
+
+			double fused_err = QuaternionAttitudeTracker.angleBetween(qw, qx, qy, qz,
+					fused.getQuaternionW(), fused.getQuaternionX(), fused.getQuaternionY(), fused.getQuaternionZ());
+			QuaternionAttitudeTracker from_euler = new QuaternionAttitudeTracker();
+			from_euler.updateSensorData(0, per_axis.getRoll(), per_axis.getPitch(), per_axis.getYaw(), 0, 0, 0);
+			double per_axis_err = QuaternionAttitudeTracker.angleBetween(qw, qx, qy, qz,
+					from_euler.getQuaternionW(), from_euler.getQuaternionX(), from_euler.getQuaternionY(), from_euler.getQuaternionZ());
+			fused_sq += fused_err * fused_err;
+			per_axis_sq += per_axis_err * per_axis_err;
+			fused_max = Math.max(fused_max, fused_err);
+		}
+		int n = STEPS - STEPS / 10;
+		System.out.println("Tumbling body: quaternion tracker RMS error " + Math.toDegrees(Math.sqrt(fused_sq / n))
+				+ " deg (max " + Math.toDegrees(fused_max) + "), per-axis tracker RMS error "
+				+ Math.toDegrees(Math.sqrt(per_axis_sq / n)) + " deg");
+	}
+
+	/**
+	 * Replay every recording through an instrumented and an uninstrumented
+	 * FilteredCompassReader, check the estimates are the same, and print the metrics.
+	 */
+	public static void testFilterMetrics() {
+		for(RecordedSession session : RecordedSession.ALL) {
+			CsvDataPlayer player = session.openPreparsedPlayer();
+			FilteredCompassReader plain = new FilteredCompassReader();
+			FilteredCompassReader instrumented = new FilteredCompassReader();
+			FilterMetrics metrics = new FilterMetrics(5 * 1000 * 1000);
+			plain.setDataSources(player, player, player);
+			instrumented.setDataSources(player, player, player);
+			instrumented.setMetrics(metrics);
+			int mismatches = 0;
+			while(player.hasMoreData()) {
+				plain.updateEstimate();
+				instrumented.updateEstimate();
+				if(plain.getFilteredHeading() != instrumented.getFilteredHeading()) { ++mismatches; }
+				player.advancePlayback();
+			}
+			FilterMetricsSnapshot snapshot = metrics.snapshot(new FilterMetricsSnapshot());
+			System.out.println("Metrics, " + session + ": " + mismatches + " mismatches; " + snapshot);
+		}
+	}
+
+	/**
+	 * Smooth every recording twice, once in memory and once spilling through a temp
+	 * file in small chunks, and check the results are identical.  Also report how far
+	 * the smoothed heading is from the filtered one, and the time each took.
+	 */
+	public static void testSmootherChunking() throws IOException {
+		for(RecordedSession session : RecordedSession.ALL) {
+			CsvDataPlayer player = session.openPreparsedPlayer();
+			final int n = player.getNumRecords() - 1;
+			final double[] heading = new double[n];
+			final double[] filtered = new double[n];
+			final int[] i = new int[1];
+			long start = System.nanoTime();
+			new HeadingSmoother().smooth(player, (time, h, w, var) -> heading[i[0]++] = h);
+			double smooth_ms = (System.nanoTime() - start) / 1e6;
+
+			player.rewindPlayback();
+			i[0] = 0;
+			final int[] mismatches = new int[1];
+			HeadingSmoother chunked = new HeadingSmoother(FilteredCompassReader.DEFAULT_Q_HEADING,
+					FilteredCompassReader.DEFAULT_Q_RATE, FilteredCompassReader.DEFAULT_R_HEADING,
+					FilteredCompassReader.DEFAULT_R_DTHETA, FilteredCompassReader.DEFAULT_R_RATE,
+					FilteredCompassReader.DEFAULT_MODEL_SCALE, 100);
+			chunked.smooth(player, (time, h, w, var) -> {
+				if(Double.compare(h, heading[i[0]++]) != 0) { ++mismatches[0]; }
+			});
+
+			player.rewindPlayback();
+			double[] t = new double[n], h = new double[n], w = new double[n], w_out = new double[n];
+			for(int j = 0; j < n; ++j) {
+				t[j] = player.getTime();
+				h[j] = player.getHeading();
+				w[j] = player.getW();
+				player.advancePlayback();
+			}
+			start = System.nanoTime();
+			new FilteredCompassReader().updateEstimates(t, h, w, n, filtered, w_out);
+			double filter_ms = (System.nanoTime() - start) / 1e6;
+			double sum_sq = 0;
+			for(int j = 0; j < n; ++j) {
+				double d = Math.IEEEremainder(heading[j] - filtered[j], 2 * Math.PI);
+				sum_sq += d * d;
+			}
+			System.out.println("Smoother, " + session + ": " + mismatches[0] + " chunked mismatches, RMS smoothed - filtered "
+					+ Math.toDegrees(Math.sqrt(sum_sq / n)) + " deg, smoothing " + smooth_ms + " ms, filtering " + filter_ms + " ms");
+		}
+	}
+
+	/**
+	 * Run FilteredCompassReader's fixed-lag smoother with a range of lags over a
+	 * recording, and compare the lagged estimates with the full offline smoother.
+	 * The difference should shrink as the lag grows.
+	 */
+	public static void testFixedLagSmoother() throws IOException {
+		CsvDataPlayer player = RecordedSession.ALL[4].openPreparsedPlayer();
+		final int n = player.getNumRecords() - 1;
+		final double[] time = new double[n];
+		final double[] full = new double[n];
+		final double[] causal = new double[n];
+		final int[] count = new int[1];
+		new HeadingSmoother().smooth(player, (t, h, w, var) -> {
+			time[count[0]] = t;
+			full[count[0]++] = h;
+		});
+		for(int lag : new int[]{ 1, 5, 10, 25, 100 }) {
+			player.rewindPlayback();
+			FilteredCompassReader reader = new FilteredCompassReader();
+			reader.setDataSources(player, player, player);
+			reader.setSmoothingLag(lag);
+			double sum_sq = 0, causal_sum_sq = 0;
+			int compared = 0;
+			int j = 0;
+			for(int i = 0; i < n; ++i) {
+				reader.updateEstimate();
+				causal[i] = reader.getFilteredHeading();
+				player.advancePlayback();
+				double t = reader.getSmoothedTime();
+				if(t != t) { continue; }
+				while(time[j] < t) { ++j; }
+				double d = Math.IEEEremainder(reader.getSmoothedHeading() - full[j], 2 * Math.PI);
+				double c = Math.IEEEremainder(causal[j] - full[j], 2 * Math.PI);
+				sum_sq += d * d;
+				causal_sum_sq += c * c;
+				++compared;
+			}
+			System.out.println("Fixed-lag smoother, lag " + lag + ": RMS difference from full smoother "
+					+ Math.toDegrees(Math.sqrt(sum_sq / compared)) + " deg, causal filter "
+					+ Math.toDegrees(Math.sqrt(causal_sum_sq / compared)) + " deg");
+		}
+	}
+
+	/**
+	 * Simulate a 200Hz gyro and a 20Hz compass on a robot making turns, and compare
+	 * MultiRateCompassFilter with FilteredCompassReader polling the latest reading of
+	 * each sensor at the gyro rate, as it would through a SensorRingFeed.  See
+	 * AttitudeTrackerBenchmarks for the cost of each.
+	 */
+	public static void testMultiRateFilter() {
+		final double GYRO_DT = 0.005;
+		final int COMPASS_EVERY = 10;
+		final int STEPS = 12000;
+		final double SCALE = FilteredCompassReader.DEFAULT_MODEL_SCALE;
+		Random random = new Random(3);
+		MultiRateCompassFilter multi = new MultiRateCompassFilter();
+		FilteredCompassReader polled = new FilteredCompassReader();
+		double[] latest = new double[3]; // time, heading, rate
+		polled.setDataSources(() -> latest[1], () -> latest[2], () -> latest[0]);
+
+		double theta = 0;
+		double multi_sq = 0, polled_sq = 0;
+		for(int i = 0; i < STEPS; ++i) {
+			double t = i * GYRO_DT;
+			// Alternate 3s turns and 2s straights, at up to 2 rad/s
+			double rate = ((int)(t / 5) % 2 == 0 ? 1 : -1) * ((t % 5) < 3 ? 2.0 * Math.sin(Math.PI * (t % 5) / 3) : 0.0);
+			theta += rate * GYRO_DT;
+			double w = rate * SCALE + random.nextGaussian();
+			latest[0] = t;
+			latest[2] = w;
+			multi.addGyroSample(t, w);
+			if(i % COMPASS_EVERY == 0) {
+				double heading = Math.IEEEremainder(theta + 0.05 * random.nextGaussian(), 2 * Math.PI);
+				latest[1] = heading;
+				multi.addCompassSample(t, heading);
+			}
+			multi.processPending();
+			polled.updateEstimate();
+
+			if(i > STEPS / 10) {
+				double m = Math.IEEEremainder(multi.getFilteredHeading() - theta, 2 * Math.PI);
+				double p = Math.IEEEremainder(polled.getFilteredHeading() - theta, 2 * Math.PI);
+				multi_sq += m * m;
+				polled_sq += p * p;
+			}
+		}
+		int n = STEPS - STEPS / 10 - 1;
+		System.out.println("Multi-rate filter: RMS heading error " + Math.toDegrees(Math.sqrt(multi_sq / n))
+				+ " deg; polled FilteredCompassReader " + Math.toDegrees(Math.sqrt(polled_sq / n)) + " deg");
+	}
+
+	/**
+	 * Deliver simulated 20Hz compass readings 0-80ms late, after newer 200Hz gyro
+	 * readings, and compare a MultiRateCompassFilter that rolls back for them with
+	 * one that has no history and so drops them.  Once every reading has arrived, the
+	 * one that rolls back should end up exactly where a filter that got them all on
+	 * time does.
+	 */
+	public static void testLateCompassRollback() {
+		final double GYRO_DT = 0.005;
+		final int STEPS = 12000;
+		final double SCALE = FilteredCompassReader.DEFAULT_MODEL_SCALE;
+		Random random = new Random(4);
+		MultiRateCompassFilter on_time = new MultiRateCompassFilter();
+		MultiRateCompassFilter rollback = new MultiRateCompassFilter();
+		MultiRateCompassFilter no_history = new MultiRateCompassFilter(MultiRateCompassFilter.DEFAULT_Q_HEADING,
+				MultiRateCompassFilter.DEFAULT_Q_RATE, MultiRateCompassFilter.DEFAULT_R_HEADING,
+				MultiRateCompassFilter.DEFAULT_R_RATE, SCALE, MultiRateCompassFilter.DEFAULT_QUEUE_CAPACITY, 0, 0);
+		// Compass readings in flight: time sent, time delivered, heading
+		List<double[]> in_flight = new ArrayList<double[]>();
+
+		double theta = 0;
+		double rollback_sq = 0, no_history_sq = 0;
+		for(int i = 0; i < STEPS; ++i) {
+			double t = i * GYRO_DT;
+			double rate = ((int)(t / 5) % 2 == 0 ? 1 : -1) * ((t % 5) < 3 ? 2.0 * Math.sin(Math.PI * (t % 5) / 3) : 0.0);
+			theta += rate * GYRO_DT;
+			double w = rate * SCALE + random.nextGaussian();
+			if(i % 10 == 0) {
+				double heading = Math.IEEEremainder(theta + 0.05 * random.nextGaussian(), 2 * Math.PI);
+				in_flight.add(new double[]{ t, t + 0.08 * random.nextDouble(), heading });
+				on_time.addCompassSample(t, heading);
+			}
+			on_time.addGyroSample(t, w);
+			on_time.processPending();
+			for(MultiRateCompassFilter late : new MultiRateCompassFilter[]{ rollback, no_history }) {
+				late.addGyroSample(t, w);
+				for(double[] reading : in_flight) {
+					if(reading[1] <= t) {
+						late.addCompassSample(reading[0], reading[2]);
+					}
+				}
+				late.processPending();
+			}
+			in_flight.removeIf(reading -> reading[1] <= t);
+
+			double r = Math.IEEEremainder(rollback.getFilteredHeading() - theta, 2 * Math.PI);
+			double d = Math.IEEEremainder(no_history.getFilteredHeading() - theta, 2 * Math.PI);
+			rollback_sq += r * r;
+			no_history_sq += d * d;
+		}
+		// Once everything has arrived the rolled back filter should have the same state
+		for(double[] reading : in_flight) {
+			rollback.addCompassSample(reading[0], reading[2]);
+		}
+		rollback.processPending();
+		double diff = Math.abs(rollback.getFilteredHeading() - on_time.getFilteredHeading())
+				+ Math.abs(rollback.getFilteredAngularVelocity() - on_time.getFilteredAngularVelocity());
+		System.out.println("Late compass: rollback RMS error " + Math.toDegrees(Math.sqrt(rollback_sq / STEPS))
+				+ " deg (" + rollback.getLateSampleCount() + " late, " + rollback.getDroppedSampleCount()
+				+ " dropped, final difference from on-time filter " + diff + "), without history "
+				+ Math.toDegrees(Math.sqrt(no_history_sq / STEPS)) + " deg");
+	}
+
+	/**
+	 * Calibrate a simulated magnetometer with known hard and soft iron, starting from
+	 * the wrong offsets, and compare the heading error with and without the fit.  Then
+	 * calibrate the 2017 recordings, whose bundled offsets were measured for only one
+	 * of them, and compare how well FilteredCompassReader predicts the next heading
+	 * with the fitted correction and with the fixed offsets.
+	 */
+	public static void testMagnetometerCalibration() {
+		final int STEPS = 4000;
+		final double FIELD = 250, HARD_A = -211, HARD_B = 29;
+		final double W00 = 1.2, W01 = 0.15, W11 = 0.85; // soft iron, symmetric
+		Random random = new Random(2);
+		MagnetometerCalibrator cal = new MagnetometerCalibrator(-164.0, -25.0);
+		double fitted_sq = 0, fixed_sq = 0;
+		int n = 0;
+		for(int i = 0; i < STEPS; ++i) {
+			double heading = 3 * Math.sin(i * 0.004) + 0.5 * Math.sin(i * 0.031);
+			double sa = FIELD * Math.sin(heading), sb = FIELD * Math.cos(heading);
+			double mag_a = HARD_A + W00 * sa + W01 * sb + 3 * random.nextGaussian();
+			double mag_b = HARD_B + W01 * sa + W11 * sb + 3 * random.nextGaussian();
+			cal.addSample(mag_a, mag_b);
+			if(i >= STEPS / 2) {
+				double fitted = Math.IEEEremainder(cal.getHeading(mag_a, mag_b) - heading, 2 * Math.PI);
+				double fixed = Math.IEEEremainder(Math.atan2(mag_a + 164.0, mag_b + 25.0) - heading, 2 * Math.PI);
+				fitted_sq += fitted * fitted;
+				fixed_sq += fixed * fixed;
+				++n;
+			}
+		}
+		System.out.println(String.format("Magnetometer calibration, simulated: hard iron (%.1f, %.1f), actual (%.1f, %.1f); "
+				+ "heading RMS error %.2f deg calibrated, %.2f deg with fixed offsets (%d readings used)",
+				cal.getHardIronA(), cal.getHardIronB(), HARD_A, HARD_B,
+				Math.toDegrees(Math.sqrt(fitted_sq / n)), Math.toDegrees(Math.sqrt(fixed_sq / n)), cal.getSamplesUsed()));
+
+		for(int s = 3; s < RecordedSession.ALL.length; ++s) {
+			RecordedSession session = RecordedSession.ALL[s];
+			CsvDataPlayer player = session.openPreparsedPlayer();
+			MagnetometerCalibrator calibrator = new MagnetometerCalibrator(session.magCorrA, session.magCorrB);
+			CalibratedCompassSource calibrated = new CalibratedCompassSource(player, player, player, calibrator);
+			FilteredCompassReader with_fit = new FilteredCompassReader();
+			FilteredCompassReader with_fixed = new FilteredCompassReader();
+			with_fit.setSampleSource(calibrated);
+			with_fixed.setSampleSource(player);
+			CompassSample sample = new CompassSample();
+			double fit_sq = 0, fix_sq = 0;
+			double last_time = 0;
+			int count = 0;
+			for(int i = 0; player.hasMoreData(); ++i) {
+				player.readSample(sample);
+				double measured_fit = calibrator.getHeading(player.getMagA(), player.getMagB());
+				if(i >= 2) {
+					// One-step prediction error, as CompassFilterTuner scores it
+					double dt = (sample.time - last_time) / FilteredCompassReader.DEFAULT_MODEL_SCALE;
+					double e_fit = Math.IEEEremainder(measured_fit - (with_fit.getFilteredHeading()
+							+ with_fit.getFilteredAngularVelocity() * dt), 2 * Math.PI);
+					double e_fix = Math.IEEEremainder(sample.heading - (with_fixed.getFilteredHeading()
+							+ with_fixed.getFilteredAngularVelocity() * dt), 2 * Math.PI);
+					if(e_fit == e_fit && e_fix == e_fix) {
+						fit_sq += e_fit * e_fit;
+						fix_sq += e_fix * e_fix;
+						++count;
+					}
+				}
+				last_time = sample.time;
+				with_fit.updateEstimate();
+				with_fixed.updateEstimate();
+				player.advancePlayback();
+			}
+			System.out.println(String.format("Magnetometer calibration, %s: hard iron (%.1f, %.1f), bundled (%.1f, %.1f); "
+					+ "prediction RMS error %.2f deg calibrated, %.2f deg with bundled offsets",
+					session, calibrator.getHardIronA(), calibrator.getHardIronB(), session.magCorrA, session.magCorrB,
+					Math.toDegrees(Math.sqrt(fit_sq / count)), Math.toDegrees(Math.sqrt(fix_sq / count))));
+		}
+	}
+
+	/**
+	 * Generate the standard tank-drive script as several streams across the common pool,
+	 * then again on one thread, and check each stream comes out the same both times.
+	 * Each stream is also run through a FilteredCompassReader.
+	 */
+	public static void testScenarioGeneratorDeterminism() {
+		final int STREAMS = 4;
+		final long SAMPLES = 250000;
+		final long SEED = 21;
+		TankDriveScenario scenario = TankDriveScenario.standard(DT);
+		scenario.setNoise(TankDriveScenario.NoiseModel.GAUSSIAN, 0.02, 0.02, 0.1, 0.05);
+		final long[] parallel = new long[STREAMS];
+		final double[] sq_error = new double[STREAMS];
+		long start = System.nanoTime();
+		scenario.generate(ForkJoinPool.commonPool(), SEED, STREAMS, SAMPLES, k -> {
+			FilteredCompassReader reader = new FilteredCompassReader();
+			CompassSample reading = new CompassSample();
+			reader.setSampleSource(s -> { s.time = reading.time; s.heading = reading.heading; s.w = reading.w; });
+			return sample -> {
+				parallel[k] = 31 * parallel[k] + Double.doubleToLongBits(sample.yawMeasured)
+						+ Double.doubleToLongBits(sample.yawRateMeasured);
+				reading.time = sample.time;
+				reading.heading = sample.yawMeasured;
+				reading.w = sample.yawRateMeasured * FilteredCompassReader.DEFAULT_MODEL_SCALE;
+				reader.updateEstimate();
+				double e = Math.IEEEremainder(reader.getFilteredHeading() - sample.yawActual, 2 * Math.PI);
+				sq_error[k] += e * e;
+			};
+		});
+		double seconds = (System.nanoTime() - start) / 1e9;
+		final long[] serial = new long[STREAMS];
+		scenario.generate(new ForkJoinPool(1), SEED, STREAMS, SAMPLES, k -> sample -> {
+			serial[k] = 31 * serial[k] + Double.doubleToLongBits(sample.yawMeasured)
+					+ Double.doubleToLongBits(sample.yawRateMeasured);
+		});
+		int mismatches = 0;
+		for(int k = 0; k < STREAMS; ++k) {
+			if(parallel[k] != serial[k]) {
+				++mismatches;
+			}
+			for(int j = 0; j < k; ++j) {
+				if(parallel[j] == parallel[k]) {
+					System.out.println("Streams " + j + " and " + k + " are identical");
+				}
+			}
+		}
+		System.out.println(String.format("Scenario generator: %d streams of %d samples, %d differ between runs; "
+				+ "%.0f samples/s with filtering; heading RMS error %.2f deg",
+				STREAMS, SAMPLES, mismatches, STREAMS * SAMPLES / seconds,
+				Math.toDegrees(Math.sqrt((sq_error[0] + sq_error[1] + sq_error[2] + sq_error[3]) / (STREAMS * SAMPLES)))));
+	}
+
+	/**
+	 * Monte Carlo consistency of testTankSteerWithControl's filter, with its own
+	 * tuning and with the variances of the simulated noise.  Each is evaluated on the
+	 * common pool and on one thread, which must agree exactly.
+	 */
+	public static void testFilterConsistency() {
+		final int TRIALS = 400;
+		TankDriveScenario scenario = TankDriveScenario.standard(DT);
+		double yp = scenario.yawProcessNoise, rp = scenario.yawRateProcessNoise;
+		double ym = scenario.yawMeasurementNoise, rm = scenario.yawRateMeasurementNoise;
+		FilterConsistencyEvaluator tuned = FilterConsistencyEvaluator.forTankSteer(scenario,
+				yp * 0.25, rp * 0.25, ym * 0.5, rm * 0.5);
+		FilterConsistencyEvaluator matched = FilterConsistencyEvaluator.forTankSteer(scenario,
+				yp * yp / 3, rp * rp / 3, ym * ym / 3, rm * rm / 3);
+		for(FilterConsistencyEvaluator evaluator : new FilterConsistencyEvaluator[]{ tuned, matched }) {
+			long start = System.nanoTime();
+			FilterConsistencyEvaluator.Stats stats = evaluator.evaluate(ForkJoinPool.commonPool(), 22, TRIALS);
+			double seconds = (System.nanoTime() - start) / 1e9;
+			FilterConsistencyEvaluator.Stats serial = evaluator.evaluate(new ForkJoinPool(1), 22, TRIALS);
+			boolean same = stats.toString().equals(serial.toString());
+			System.out.println(String.format("Filter consistency (%s, %.2f s): %s",
+					same ? "repeatable" : "NOT repeatable", seconds, stats));
+		}
+	}
+
 	public static void testScalarKfWithRecordedData(boolean terminateAfter) {
-		CSVParser parser = null;
+		List<CSVRecord> records = new ArrayList<CSVRecord>();
 		try {
-			parser = new CSVParser(new FileReader("2017-1-13 IMU sensor data with corrections - Kovaka.csv"), CSVFormat.DEFAULT);
+			CSVParser parser = new CSVParser(new FileReader("2017-1-13 IMU sensor data with corrections - Kovaka.csv"), CSVFormat.DEFAULT);
+			records = parser.getRecords();
+			parser.close();
 		} catch (FileNotFoundException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
@@ -375,7 +1442,7 @@ public class AttitudeTrackerTests {
 			e.printStackTrace();
 		}
 		
-		final int NUM_DATAPOINTS = 7162;
+		final int NUM_DATAPOINTS = records.size();
 		// t for Theta, the heading to magnetic north
 		// w for lowercase omega, angular velocity
 		double[] time        = new double[NUM_DATAPOINTS];
@@ -395,40 +1462,35 @@ public class AttitudeTrackerTests {
 //		vel_kf.setState(0);		
 		
 		int i = 0;
-		try {
-			// I deep-sixed the column headers, they were:
-			// X,Y,Z,gX,gY,gZ,Hard Fe Y a=-36,Hard Fe Z =-221.5
-			final int COL_CORR_MAG_Y = 6;
-			final int COL_CORR_MAG_Z = 7;
-			final int COL_GYRO_Z = 5;
-			double heading_boost = 0.0;
-			for(CSVRecord record : parser.getRecords()) {
-				t_measured[i] = Math.atan2(Double.parseDouble(record.get(COL_CORR_MAG_Y)), Double.parseDouble(record.get(COL_CORR_MAG_Z)));
-				w_measured[i] = Double.parseDouble(record.get(COL_GYRO_Z)) * Math.PI / 180.0;
-				if((i > 0) && (
-						(t_measured[i] >  Math.PI / 2.0 && t_measured[i - 1] < -Math.PI / 2.0) ||
-						(t_measured[i] < -Math.PI / 2.0 && t_measured[i - 1] >  Math.PI / 2.0)
-						 )) {
-					// Defunct the modulo
-					heading_boost += 2 * Math.PI;
-				}
-				t_demod[i] = t_measured[i] + heading_boost;
-				time[i] = i * DT;
-				
-				pos_kf.predict();
+		// I deep-sixed the column headers, they were:
+		// X,Y,Z,gX,gY,gZ,Hard Fe Y a=-36,Hard Fe Z =-221.5
+		final int COL_CORR_MAG_Y = 6;
+		final int COL_CORR_MAG_Z = 7;
+		final int COL_GYRO_Z = 5;
+		double heading_boost = 0.0;
+		for(CSVRecord record : records) {
+			t_measured[i] = Math.atan2(Double.parseDouble(record.get(COL_CORR_MAG_Y)), Double.parseDouble(record.get(COL_CORR_MAG_Z)));
+			w_measured[i] = Double.parseDouble(record.get(COL_GYRO_Z)) * Math.PI / 180.0;
+			if((i > 0) && (
+					(t_measured[i] >  Math.PI / 2.0 && t_measured[i - 1] < -Math.PI / 2.0) ||
+					(t_measured[i] < -Math.PI / 2.0 && t_measured[i - 1] >  Math.PI / 2.0)
+					 )) {
+				// Defunct the modulo
+				heading_boost += 2 * Math.PI;
+			}
+			t_demod[i] = t_measured[i] + heading_boost;
+			time[i] = i * DT;
+			
+			pos_kf.predict();
 //				vel_kf.predict();
-				pos_kf.update(t_demod[i], 10);
+			pos_kf.update(t_demod[i], 10);
 //				vel_kf.update(w_measured[i], 0.01);
-				
-				t_estimated[i] = pos_kf.getState();
+			
+			t_estimated[i] = pos_kf.getState();
 //				w_estimated[i] = vel_kf.getState();
-				k[i] = pos_kf.getK();
-				p[i] = pos_kf.getP();
-				++i;
-			}
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			k[i] = pos_kf.getK();
+			p[i] = pos_kf.getP();
+			++i;
 		}
 	
 		
@@ -462,19 +1524,40 @@ public class AttitudeTrackerTests {
 	}
 	
 	public static void testAttitudeTrackerWithRecordedData(boolean terminateAfter) {
-
-		CSVParser parser;
-		try {
-			parser = new CSVParser(new FileReader("test_data_spinning.csv"), CSVFormat.DEFAULT);
-			for(CSVRecord record : parser.getRecords()) {
-				System.out.println("Got a record");
-			}
-		} catch (FileNotFoundException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+		// The recordings only have yaw data, so roll and pitch are held level
+		CsvDataPlayer player = RecordedSession.ALL[4].openPreparsedPlayer();
+		AttitudeTracker tracker = new AttitudeTracker();
+		XYSeries t_m_s = new XYSeries("Measured yaw");
+		XYSeries t_e_s = new XYSeries("Estimated yaw");
+		XYSeries w_m_s = new XYSeries("Measured yaw rate");
+		XYSeries w_e_s = new XYSeries("Estimated yaw rate");
+		double sum_sq_err = 0;
+		int n = 0;
+		while(player.hasMoreData()) {
+			double time = player.getTime();
+			double heading = player.getHeading();
+			// The recorded rate is in the gyro's own units; FilteredCompassReader's model scale converts it
+			double w = player.getW() / FilteredCompassReader.DEFAULT_MODEL_SCALE;
+			tracker.updateSensorData(time * 1000, 0, 0, heading, 0, 0, w);
+			double err = Math.IEEEremainder(tracker.getYaw() - heading, 2 * Math.PI);
+			sum_sq_err += err * err;
+			++n;
+			t_m_s.add(time, heading);
+			t_e_s.add(time, tracker.getYaw());
+			w_m_s.add(time, w);
+			w_e_s.add(time, tracker.getYawRate());
+			player.advancePlayback();
 		}
+		System.out.println("Attitude tracker: RMS yaw deviation from compass " + Math.toDegrees(Math.sqrt(sum_sq_err / n)) + " deg");
+		
+		XYSeriesCollection sc = new XYSeriesCollection();
+		sc.addSeries(t_e_s);
+		sc.addSeries(t_m_s);
+		sc.addSeries(w_e_s);
+		sc.addSeries(w_m_s);
+		
+		JFreeChart chart = ChartFactory.createXYLineChart("Attitude tracker w/rec data", "Time (s)", "Yaw (radians) or Yaw Rate (rad/s)", sc);
+		
+		showChart(chart, terminateAfter);
 	}
 }
@@ -0,0 +1,187 @@
+package AttitudeTracker;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Plays back a session written by BinarySessionFile, the same way CsvDataPlayer plays
+ * back a CSV.  Column numbers and corrections mean the same thing as for CsvDataPlayer,
+ * so a converted recording can be played with the arguments used for the original.
+ *
+ * The file is memory mapped and values are read straight out of the mapping, so
+ * nothing is copied onto the heap and seeking anywhere is immediate.  Files of
+ * floats are widened to double as they are read.  Files larger
+ * than a single mapping (2GB) are mapped in several segments.
+ */
+public class BinarySessionPlayer implements HeadingProvider, HeadingRateProvider, TimeProvider, CompassSampleSource, MagnetometerProvider {
+	// Largest segment mapped at once; kept well below the 2GB limit of a ByteBuffer
+	static final long MAX_SEGMENT_BYTES = 1L << 30;
+
+	int csvColW       = -1;
+	double wMult      = 1.0;
+	double wOffset    = 0.0;
+	int csvColMagAxA  = -1;
+	int csvColMagAxB  = -1;
+	double magCorrA   = 0.0;
+	double magCorrB   = 0.0;
+	int csvColTime    = -1;
+
+	String[] columnNames;
+	int bytesPerValue;
+	int recordBytes;
+	long numRecords;
+	long recordsPerSegment;
+	ByteBuffer[] segments;
+	long curRecord = 0;
+
+	BinarySessionPlayer(String filename, int col_mag_ax_a, int col_mag_ax_b, double mag_corr_a, double mag_corr_b, int col_w, double w_mult, double w_offset, int col_time) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(filename, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			ByteBuffer fixed = channel.map(FileChannel.MapMode.READ_ONLY, 0, BinarySessionFile.HEADER_FIXED_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			byte[] magic = new byte[4];
+			fixed.get(magic);
+			if(!Arrays.equals(magic, BinarySessionFile.MAGIC) || fixed.getInt() != BinarySessionFile.VERSION) {
+				throw new IOException(filename + " is not a binary session file");
+			}
+			bytesPerValue = fixed.getInt();
+			if(bytesPerValue != 8 && bytesPerValue != 4) {
+				throw new IOException(filename + ": unsupported value size " + bytesPerValue);
+			}
+			int num_columns = fixed.getInt();
+			numRecords = fixed.getLong();
+			int data_offset = fixed.getInt();
+
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, data_offset).order(ByteOrder.LITTLE_ENDIAN);
+			header.position(BinarySessionFile.HEADER_FIXED_SIZE);
+			columnNames = new String[num_columns];
+			for(int col = 0; col < num_columns; ++col) {
+				byte[] name = new byte[header.getShort()];
+				header.get(name);
+				columnNames[col] = new String(name, StandardCharsets.UTF_8);
+			}
+
+			recordBytes = num_columns * bytesPerValue;
+			recordsPerSegment = Math.max(1, MAX_SEGMENT_BYTES / Math.max(1, recordBytes));
+			int num_segments = (int)((numRecords + recordsPerSegment - 1) / recordsPerSegment);
+			segments = new ByteBuffer[num_segments];
+			for(int s = 0; s < num_segments; ++s) {
+				long first = s * recordsPerSegment;
+				long count = Math.min(recordsPerSegment, numRecords - first);
+				segments[s] = channel.map(FileChannel.MapMode.READ_ONLY, data_offset + first * recordBytes, count * recordBytes)
+						.order(ByteOrder.LITTLE_ENDIAN);
+			}
+		} finally {
+			// The mappings remain valid after the file is closed
+			file.close();
+		}
+
+		csvColMagAxA = col_mag_ax_a;
+		csvColMagAxB = col_mag_ax_b;
+		magCorrA = mag_corr_a;
+		magCorrB = mag_corr_b;
+		csvColW = col_w;
+		csvColTime = col_time;
+		wMult = w_mult;
+		wOffset = w_offset;
+	}
+
+	public void advancePlayback() {
+		if(++curRecord >= numRecords) {
+			curRecord = numRecords - 1;
+		}
+	}
+
+	public void rewindPlayback() {
+		curRecord = 0;
+	}
+
+	/** Jump straight to a sample */
+	public void seek(long record) {
+		curRecord = Math.max(0, Math.min(record, numRecords - 1));
+	}
+
+	/**
+	 * Jump to the first sample at or after the given time.  Requires a time column
+	 * with increasing values.
+	 */
+	public void seekToTime(double time) {
+		long lo = 0, hi = numRecords - 1;
+		while(lo < hi) {
+			long mid = (lo + hi) >>> 1;
+			if(timeAt(mid) < time) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		curRecord = lo;
+	}
+
+	public long getNumRecords() {
+		return numRecords;
+	}
+
+	public String[] getColumnNames() {
+		return columnNames;
+	}
+
+	public boolean hasMoreData() {
+		return (curRecord < (numRecords - 1));
+	}
+
+	@Override
+	public double getTime() {
+		return timeAt(curRecord);
+	}
+
+	@Override
+	public double getW() {
+		return (value(curRecord, csvColW) - wOffset) * wMult;
+	}
+
+	@Override
+	public double getHeading() {
+		double mag_ax_a = value(curRecord, csvColMagAxA) - magCorrA;
+		double mag_ax_b = value(curRecord, csvColMagAxB) - magCorrB;
+		return Math.atan2(mag_ax_a, mag_ax_b);
+	}
+
+	/** @return raw magnetometer axis A, without the hard-iron correction */
+	@Override
+	public double getMagA() {
+		return value(curRecord, csvColMagAxA);
+	}
+
+	/** @return raw magnetometer axis B, without the hard-iron correction */
+	@Override
+	public double getMagB() {
+		return value(curRecord, csvColMagAxB);
+	}
+
+	@Override
+	public void readSample(CompassSample sample) {
+		sample.time = timeAt(curRecord);
+		sample.heading = getHeading();
+		sample.w = getW();
+	}
+
+	private double timeAt(long record) {
+		if(csvColTime >= 0) {
+			return value(record, csvColTime);
+		} else {
+			return record * 0.1;
+		}
+	}
+
+	private double value(long record, int col) {
+		int segment = (int)(record / recordsPerSegment);
+		int offset = (int)((record - segment * recordsPerSegment) * recordBytes) + col * bytesPerValue;
+		return (bytesPerValue == 4) ? segments[segment].getFloat(offset) : segments[segment].getDouble(offset);
+	}
+}
@@ -0,0 +1,36 @@
+package AttitudeTracker;
+
+/**
+ * A CompassSampleSource that calibrates the magnetometer as it goes: each sample's
+ * raw magnetometer reading is added to a MagnetometerCalibrator, and the heading is
+ * corrected with the fit so far.  Give it to FilteredCompassReader.setSampleSource()
+ * in place of the player to run with online calibration instead of fixed offsets.
+ */
+public class CalibratedCompassSource implements CompassSampleSource {
+	final MagnetometerProvider magnetometer;
+	final HeadingRateProvider headingRateProvider;
+	final TimeProvider timeProvider;
+	final MagnetometerCalibrator calibrator;
+
+	public CalibratedCompassSource(MagnetometerProvider mp, HeadingRateProvider hrp, TimeProvider tp,
+			MagnetometerCalibrator calibrator) {
+		magnetometer = mp;
+		headingRateProvider = hrp;
+		timeProvider = tp;
+		this.calibrator = calibrator;
+	}
+
+	@Override
+	public void readSample(CompassSample sample) {
+		double mag_a = magnetometer.getMagA();
+		double mag_b = magnetometer.getMagB();
+		calibrator.addSample(mag_a, mag_b);
+		sample.heading = calibrator.getHeading(mag_a, mag_b);
+		sample.w = headingRateProvider.getW();
+		sample.time = timeProvider.getTime();
+	}
+
+	public MagnetometerCalibrator getCalibrator() {
+		return calibrator;
+	}
+}
@@ -0,0 +1,211 @@
+package AttitudeTracker;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Many independent FilteredCompassReader filters stepped together.  Rather than one
+ * object graph per filter, the state, covariance, parameters and heading unwrapping
+ * of every filter ("lane") live in parallel primitive arrays, and each tick is one
+ * loop over the lanes.  Lane i produces exactly the same estimates as a
+ * FilteredCompassReader constructed with the same parameters and fed the same
+ * samples.
+ *
+ * Large banks can be stepped in parallel on a ForkJoinPool; lanes are split into
+ * contiguous blocks so each worker streams through its own part of the arrays.
+ */
+public class CompassFilterBank {
+	// Lanes per fork-join task; below this splitting costs more than it saves
+	public static final int PARALLEL_GRAIN = 1024;
+
+	final int size;
+
+	// Parameters, as for the FilteredCompassReader constructor
+	final double[] qHeading, qRate, rHeading, rDTheta, rRate, modelScale;
+
+	// Filter state and covariance
+	final double[] x0, x1, p00, p01, p10, p11;
+
+	// Heading unwrapping and the dTheta pseudo-measurement, as in FilteredCompassReader
+	final double[] headingBoost, lastMeasuredHeading, lastEstimatedHeading, lastDTheta;
+	final double[] lastUpdateTimestamp;
+	final boolean[] isFirstUpdate;
+
+	public CompassFilterBank(int size) {
+		this.size = size;
+		qHeading   = filled(size, FilteredCompassReader.DEFAULT_Q_HEADING);
+		qRate      = filled(size, FilteredCompassReader.DEFAULT_Q_RATE);
+		rHeading   = filled(size, FilteredCompassReader.DEFAULT_R_HEADING);
+		rDTheta    = filled(size, FilteredCompassReader.DEFAULT_R_DTHETA);
+		rRate      = filled(size, FilteredCompassReader.DEFAULT_R_RATE);
+		modelScale = filled(size, FilteredCompassReader.DEFAULT_MODEL_SCALE);
+		x0  = new double[size];
+		x1  = new double[size];
+		p00 = filled(size, 1.0);
+		p01 = new double[size];
+		p10 = new double[size];
+		p11 = filled(size, 1.0);
+		headingBoost         = new double[size];
+		lastMeasuredHeading  = new double[size];
+		lastEstimatedHeading = new double[size];
+		lastDTheta           = new double[size];
+		lastUpdateTimestamp  = new double[size];
+		isFirstUpdate = new boolean[size];
+		Arrays.fill(isFirstUpdate, true);
+	}
+
+	private static double[] filled(int size, double value) {
+		double[] a = new double[size];
+		Arrays.fill(a, value);
+		return a;
+	}
+
+	public int size() { return size; }
+
+	/** Give one lane its own noise and model parameters; see FilteredCompassReader */
+	public void setParameters(int lane, double q_heading, double q_rate, double r_heading, double r_dtheta, double r_rate, double model_scale) {
+		qHeading[lane]   = q_heading;
+		qRate[lane]      = q_rate;
+		rHeading[lane]   = r_heading;
+		rDTheta[lane]    = r_dtheta;
+		rRate[lane]      = r_rate;
+		modelScale[lane] = model_scale;
+	}
+
+	/**
+	 * Give every lane one sample and update its estimate.  Each array has one entry
+	 * per lane.
+	 */
+	public void updateEstimates(double[] time, double[] heading, double[] w) {
+		update(0, size, time, heading, w);
+	}
+
+	/**
+	 * As updateEstimates(), but split across the given pool when the bank is large
+	 * enough to benefit.
+	 */
+	public void updateEstimates(double[] time, double[] heading, double[] w, ForkJoinPool pool) {
+		if(size < 2 * PARALLEL_GRAIN) {
+			update(0, size, time, heading, w);
+		} else {
+			pool.invoke(new UpdateTask(0, size, time, heading, w));
+		}
+	}
+
+	private class UpdateTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		final int from, to;
+		final double[] time, heading, w;
+
+		UpdateTask(int from, int to, double[] time, double[] heading, double[] w) {
+			this.from = from; this.to = to;
+			this.time = time; this.heading = heading; this.w = w;
+		}
+
+		@Override
+		protected void compute() {
+			if(to - from <= PARALLEL_GRAIN) {
+				update(from, to, time, heading, w);
+			} else {
+				int mid = (from + to) >>> 1;
+				invokeAll(new UpdateTask(from, mid, time, heading, w),
+				          new UpdateTask(mid, to, time, heading, w));
+			}
+		}
+	}
+
+	/**
+	 * The body of FilteredCompassReader.updateEstimate() and TwoStateKalmanFilter's
+	 * predict() and update(), for lanes [from, to).  H is fixed and Q and R are
+	 * diagonal, so the terms that multiply by zero are left out; that doesn't change
+	 * any result, so lanes still match FilteredCompassReader bit for bit.
+	 */
+	void update(int from, int to, double[] time, double[] heading, double[] w) {
+		for(int i = from; i < to; ++i) {
+			double now = time[i];
+			double dt = isFirstUpdate[i] ? 0 : now - lastUpdateTimestamp[i];
+			lastUpdateTimestamp[i] = now;
+			isFirstUpdate[i] = false;
+			if(dt == 0.0) {
+				// Initial measurement
+				continue;
+			}
+
+			// Convert mod-space heading (-pi to +pi) into linear space heading
+			double theta_measured = heading[i];
+			double last_measured = lastMeasuredHeading[i];
+			if(theta_measured >  Math.PI / 2.0 && last_measured < -Math.PI / 2.0) {
+				headingBoost[i] -= 2 * Math.PI;
+			} else if (theta_measured < -Math.PI / 2.0 && last_measured >  Math.PI / 2.0) {
+				headingBoost[i] += 2 * Math.PI;
+			}
+			double z0 = theta_measured + headingBoost[i];
+			double z1 = lastDTheta[i];
+			double z2 = w[i];
+
+			// Predict, F = [1 a; 0 1]
+			double a = dt / modelScale[i];
+			double x0_ = x0[i] + a * x1[i];
+			double x1_ = x1[i];
+			double fp00 = p00[i] + a * p10[i];
+			double fp01 = p01[i] + a * p11[i];
+			double fp10 = p10[i];
+			double fp11 = p11[i];
+			double p00_ = fp00 + fp01 * a + qHeading[i];
+			double p01_ = fp01;
+			double p10_ = fp10 + fp11 * a;
+			double p11_ = fp11 + qRate[i];
+
+			// Update, H = [1 0; 0 1; 0 1]
+			double y0 = z0 - x0_;
+			double y1 = z1 - x1_;
+			double y2 = z2 - x1_;
+			double s00 = p00_ + rHeading[i], s01 = p01_,           s02 = p01_;
+			double s10 = p10_,               s11 = p11_ + rDTheta[i], s12 = p11_;
+			double s20 = p10_,               s21 = p11_,           s22 = p11_ + rRate[i];
+			double c00 = s11 * s22 - s12 * s21;
+			double c01 = s12 * s20 - s10 * s22;
+			double c02 = s10 * s21 - s11 * s20;
+			double invDet = 1.0 / (s00 * c00 + s01 * c01 + s02 * c02);
+			double i00 = c00 * invDet;
+			double i01 = (s02 * s21 - s01 * s22) * invDet;
+			double i02 = (s01 * s12 - s02 * s11) * invDet;
+			double i10 = c01 * invDet;
+			double i11 = (s00 * s22 - s02 * s20) * invDet;
+			double i12 = (s02 * s10 - s00 * s12) * invDet;
+			double i20 = c02 * invDet;
+			double i21 = (s01 * s20 - s00 * s21) * invDet;
+			double i22 = (s00 * s11 - s01 * s10) * invDet;
+			double k00 = p00_ * i00 + p01_ * i10 + p01_ * i20;
+			double k01 = p00_ * i01 + p01_ * i11 + p01_ * i21;
+			double k02 = p00_ * i02 + p01_ * i12 + p01_ * i22;
+			double k10 = p10_ * i00 + p11_ * i10 + p11_ * i20;
+			double k11 = p10_ * i01 + p11_ * i11 + p11_ * i21;
+			double k12 = p10_ * i02 + p11_ * i12 + p11_ * i22;
+			double est_theta = x0_ + (k00 * y0 + k01 * y1 + k02 * y2);
+			x0[i] = est_theta;
+			x1[i] = x1_ + (k10 * y0 + k11 * y1 + k12 * y2);
+			p00[i] = p00_ - (k00 * p00_ + k01 * p10_ + k02 * p10_);
+			p01[i] = p01_ - (k00 * p01_ + k01 * p11_ + k02 * p11_);
+			p10[i] = p10_ - (k10 * p00_ + k11 * p10_ + k12 * p10_);
+			p11[i] = p11_ - (k10 * p01_ + k11 * p11_ + k12 * p11_);
+
+			lastDTheta[i] = est_theta - lastEstimatedHeading[i];
+			lastMeasuredHeading[i] = theta_measured;
+			lastEstimatedHeading[i] = est_theta;
+		}
+	}
+
+	/** Same as FilteredCompassReader.getFilteredHeading() for one lane */
+	public double getFilteredHeading(int lane) {
+		double heading = lastEstimatedHeading[lane] % (2 * Math.PI);
+		if(heading >=  Math.PI) { heading -= 2 * Math.PI; }
+		if(heading <= -Math.PI) { heading += 2 * Math.PI; }
+		return heading;
+	}
+
+	public double getFilteredAngularVelocity(int lane) {
+		return x1[lane];
+	}
+}
@@ -0,0 +1,185 @@
+package AttitudeTracker;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Searches for FilteredCompassReader noise and model parameters that fit the
+ * bundled recordings.  Every recording is parsed once up front; each candidate is
+ * then scored by running the batch filter over all of them.  Candidates are
+ * evaluated in parallel on the common fork-join pool.
+ *
+ * There is no ground truth heading in the recordings, so candidates are scored by
+ * how well the filter predicts the next compass reading: the RMS, over every sample
+ * of every recording, of the wrapped difference between the measured heading and
+ * the heading the filter's previous estimate extrapolates to at that time.  This
+ * is the innovation of the heading measurement, and a filter that smooths too much
+ * or too little both do worse on it.
+ *
+ * The search samples each parameter log-uniformly within SEARCH_DECADES decades of
+ * its default, then repeats around the best candidate so far with a narrower range.
+ *
+ * Usage: java AttitudeTracker.CompassFilterTuner [candidates per round] [rounds] [seed]
+ */
+public class CompassFilterTuner {
+	public static final int DEFAULT_CANDIDATES = 1000;
+	public static final int DEFAULT_ROUNDS = 3;
+	public static final double SEARCH_DECADES = 2.0;
+	// Candidates per fork-join task
+	public static final int GRAIN = 8;
+
+	// Indexes into a parameter vector
+	public static final int Q_HEADING = 0, Q_RATE = 1, R_HEADING = 2, R_DTHETA = 3, R_RATE = 4, MODEL_SCALE = 5;
+	public static final int NUM_PARAMS = 6;
+	public static final String[] PARAM_NAMES = { "Q heading", "Q rate", "R heading", "R dtheta", "R rate", "model scale" };
+	public static final double[] DEFAULTS = {
+		FilteredCompassReader.DEFAULT_Q_HEADING,
+		FilteredCompassReader.DEFAULT_Q_RATE,
+		FilteredCompassReader.DEFAULT_R_HEADING,
+		FilteredCompassReader.DEFAULT_R_DTHETA,
+		FilteredCompassReader.DEFAULT_R_RATE,
+		FilteredCompassReader.DEFAULT_MODEL_SCALE,
+	};
+
+	/** One recording, parsed into columns */
+	static class Dataset {
+		final String name;
+		final double[] time, heading, w;
+		final int length;
+
+		Dataset(RecordedSession session) {
+			CsvDataPlayer player = session.openPreparsedPlayer();
+			name = session.filename;
+			// The last record is never played back; see CsvDataPlayer.hasMoreData()
+			length = player.getNumRecords() - 1;
+			time = new double[length];
+			heading = new double[length];
+			w = new double[length];
+			for(int i = 0; i < length; ++i) {
+				time[i] = player.getTime();
+				heading[i] = player.getHeading();
+				w[i] = player.getW();
+				player.advancePlayback();
+			}
+		}
+	}
+
+	final Dataset[] datasets;
+	final int longest;
+
+	public CompassFilterTuner(RecordedSession[] sessions) {
+		datasets = new Dataset[sessions.length];
+		int max = 0;
+		for(int i = 0; i < sessions.length; ++i) {
+			datasets[i] = new Dataset(sessions[i]);
+			max = Math.max(max, datasets[i].length);
+		}
+		longest = max;
+	}
+
+	public static void main(String[] args) {
+		int candidates = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_CANDIDATES;
+		int rounds     = (args.length > 1) ? Integer.parseInt(args[1]) : DEFAULT_ROUNDS;
+		long seed      = (args.length > 2) ? Long.parseLong(args[2]) : 0;
+
+		CompassFilterTuner tuner = new CompassFilterTuner(RecordedSession.ALL);
+		double default_score = tuner.score(DEFAULTS, new double[tuner.longest], new double[tuner.longest]);
+		System.out.println("Default parameters: RMS prediction error " + Math.toDegrees(default_score) + " deg");
+
+		long start = System.nanoTime();
+		double[] best = tuner.search(candidates, rounds, seed, ForkJoinPool.commonPool());
+		double seconds = (System.nanoTime() - start) / 1e9;
+		double best_score = tuner.score(best, new double[tuner.longest], new double[tuner.longest]);
+
+		System.out.println("Evaluated " + candidates * rounds + " candidates in " + seconds + " s");
+		System.out.println("Best parameters: RMS prediction error " + Math.toDegrees(best_score) + " deg");
+		for(int p = 0; p < NUM_PARAMS; ++p) {
+			System.out.println(String.format("  %-12s %12.6g  (default %g)", PARAM_NAMES[p], best[p], DEFAULTS[p]));
+		}
+	}
+
+	/**
+	 * Run the search and return the best parameter vector found.
+	 */
+	public double[] search(int candidates, int rounds, long seed, ForkJoinPool pool) {
+		SplittableRandom random = new SplittableRandom(seed);
+		double[] best = DEFAULTS.clone();
+		double decades = SEARCH_DECADES;
+		for(int round = 0; round < rounds; ++round) {
+			final double[][] params = new double[candidates][];
+			params[0] = best; // Never do worse than the previous round
+			for(int c = 1; c < candidates; ++c) {
+				params[c] = new double[NUM_PARAMS];
+				for(int p = 0; p < NUM_PARAMS; ++p) {
+					params[c][p] = best[p] * Math.pow(10, decades * (2 * random.nextDouble() - 1));
+				}
+			}
+			final double[] scores = new double[candidates];
+			pool.invoke(new EvaluateTask(params, scores, 0, candidates));
+
+			Integer[] order = new Integer[candidates];
+			for(int c = 0; c < candidates; ++c) { order[c] = c; }
+			Arrays.sort(order, Comparator.comparingDouble(c -> scores[c]));
+			best = params[order[0]];
+			System.out.println("Round " + (round + 1) + ": best RMS prediction error " + Math.toDegrees(scores[order[0]]) + " deg");
+			decades /= 4;
+		}
+		return best;
+	}
+
+	private class EvaluateTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		final double[][] params;
+		final double[] scores;
+		final int from, to;
+
+		EvaluateTask(double[][] params, double[] scores, int from, int to) {
+			this.params = params; this.scores = scores;
+			this.from = from; this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if(to - from <= GRAIN) {
+				double[] heading_out = new double[longest];
+				double[] w_out = new double[longest];
+				for(int c = from; c < to; ++c) {
+					scores[c] = score(params[c], heading_out, w_out);
+				}
+			} else {
+				int mid = (from + to) >>> 1;
+				invokeAll(new EvaluateTask(params, scores, from, mid),
+				          new EvaluateTask(params, scores, mid, to));
+			}
+		}
+	}
+
+	/**
+	 * RMS one-step heading prediction error of one parameter vector over every
+	 * dataset, in radians.  The output arrays are scratch space at least as long as
+	 * the longest dataset.
+	 */
+	public double score(double[] params, double[] headingOut, double[] wOut) {
+		double sum_sq = 0;
+		long n = 0;
+		for(Dataset d : datasets) {
+			FilteredCompassReader reader = new FilteredCompassReader(params[Q_HEADING], params[Q_RATE],
+					params[R_HEADING], params[R_DTHETA], params[R_RATE], params[MODEL_SCALE]);
+			reader.updateEstimates(d.time, d.heading, d.w, d.length, headingOut, wOut);
+			// The first update only initializes the filter
+			for(int i = 2; i < d.length; ++i) {
+				double dt = d.time[i] - d.time[i - 1];
+				double predicted = headingOut[i - 1] + wOut[i - 1] * dt / params[MODEL_SCALE];
+				double err = Math.IEEEremainder(d.heading[i] - predicted, 2 * Math.PI);
+				if(err == err) { // skip NaN samples
+					sum_sq += err * err;
+					++n;
+				}
+			}
+		}
+		return Math.sqrt(sum_sq / n);
+	}
+}
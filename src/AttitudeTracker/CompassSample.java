@@ -0,0 +1,14 @@
+package AttitudeTracker;
+
+/**
+ * One reading of a compass and gyro: the heading, the angular velocity and the time,
+ * all from the same sample.  Mutable so a source can fill in the caller's instance
+ * rather than allocate; see CompassSampleSource.
+ */
+public class CompassSample {
+	public double time;
+	/** Measured heading, -pi to pi */
+	public double heading;
+	/** Measured angular velocity */
+	public double w;
+}
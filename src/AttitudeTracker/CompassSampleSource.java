@@ -0,0 +1,13 @@
+package AttitudeTracker;
+
+/**
+ * Supplies the current sample in one call.  Reading through HeadingProvider,
+ * HeadingRateProvider and TimeProvider costs three interface calls, and if the
+ * source moves on between them the three values can come from different samples;
+ * this fills in all three at once.  Sources that only implement the three older
+ * interfaces can be wrapped in a ProviderSampleSource.
+ */
+public interface CompassSampleSource {
+	/** Write the current sample's time, heading and angular velocity into sample */
+	public void readSample(CompassSample sample);
+}
@@ -7,7 +7,7 @@ import java.util.List;
 
 import org.apache.commons.csv.*;
 
-public class CsvDataPlayer implements HeadingProvider, HeadingRateProvider, TimeProvider {
+public class CsvDataPlayer implements HeadingProvider, HeadingRateProvider, TimeProvider, CompassSampleSource, MagnetometerProvider {
 	int csvColHeading = -1;
 	int csvColW       = -1;
 	double wMult      = 1.0;
@@ -25,12 +25,26 @@ public class CsvDataPlayer implements HeadingProvider, HeadingRateProvider, Time
 	double thisRecordTime = 0;
 	double thisRecordHeading = 0;
 	double thisRecordRotationRate = 0;
+	// Filled in by preparse(), after which csvRecords is dropped
+	double[] preparsedTime    = null;
+	double[] preparsedHeading = null;
+	double[] preparsedW       = null;
+	double[] preparsedMagA    = null;
+	double[] preparsedMagB    = null;
 	
 	CsvDataPlayer(String filename, int col_mag_ax_a, int col_mag_ax_b, double mag_corr_a, double mag_corr_b, int col_w, double w_mult, double w_offset, int col_time) {
+		this(filename, col_mag_ax_a, col_mag_ax_b, mag_corr_a, mag_corr_b, col_w, w_mult, w_offset, col_time, 0);
+	}
+	
+	/**
+	 * @param header_rows number of leading rows (column titles) to skip
+	 */
+	CsvDataPlayer(String filename, int col_mag_ax_a, int col_mag_ax_b, double mag_corr_a, double mag_corr_b, int col_w, double w_mult, double w_offset, int col_time, int header_rows) {
 		try {
 			CSVParser csv_parser = new CSVParser(new FileReader(filename), CSVFormat.DEFAULT);
 			csvRecords = csv_parser.getRecords();
 			csv_parser.close();
+			csvRecords = csvRecords.subList(header_rows, csvRecords.size());
 		} catch (FileNotFoundException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
@@ -49,35 +63,134 @@ public class CsvDataPlayer implements HeadingProvider, HeadingRateProvider, Time
 		wOffset = w_offset;
 	}
 	
+	/**
+	 * Parse every record up front into primitive arrays, applying the magnetometer
+	 * corrections and rate scaling, so that playback is just array indexing.  The
+	 * parsed CSV records are released afterwards; the raw magnetometer readings are
+	 * kept too, for getMagA() and getMagB().  Fields that aren't valid numbers become
+	 * NaN, so check for NaN before feeding a filter; a column index outside the record
+	 * is a configuration error and throws, as it does without preparsing.
+	 */
+	public void preparse() {
+		if(preparsedTime != null) { return; }
+		int n = csvRecords.size();
+		double[] time    = new double[n];
+		double[] heading = new double[n];
+		double[] w       = new double[n];
+		double[] mag_a   = new double[n];
+		double[] mag_b   = new double[n];
+		for(int i = 0; i < n; ++i) {
+			time[i] = heading[i] = w[i] = mag_a[i] = mag_b[i] = Double.NaN;
+			try { time[i]    = parseTime(i);    } catch(NumberFormatException e) { }
+			try { heading[i] = parseHeading(i); } catch(NumberFormatException e) { }
+			try { w[i]       = parseW(i);       } catch(NumberFormatException e) { }
+			try { mag_a[i]   = parseField(i, csvColMagAxA); } catch(NumberFormatException e) { }
+			try { mag_b[i]   = parseField(i, csvColMagAxB); } catch(NumberFormatException e) { }
+		}
+		preparsedTime    = time;
+		preparsedHeading = heading;
+		preparsedW       = w;
+		preparsedMagA    = mag_a;
+		preparsedMagB    = mag_b;
+		csvRecords = null;
+	}
+	
 	public void advancePlayback() {
-		if(++curRecord >= csvRecords.size()) {
-			 curRecord  = csvRecords.size() - 1;
+		if(++curRecord >= getNumRecords()) {
+			 curRecord  = getNumRecords() - 1;
 		}
 	}
 	
+	public void rewindPlayback() {
+		curRecord = 0;
+	}
+	
+	public int getNumRecords() {
+		return (preparsedTime != null) ? preparsedTime.length : csvRecords.size();
+	}
+	
 	public boolean hasMoreData() {
-		return (curRecord < (csvRecords.size() - 1));
+		return (curRecord < (getNumRecords() - 1));
 	}
 
 	@Override
 	public double getTime() {
-		if(csvColTime >= 0) {
-			return Double.parseDouble(csvRecords.get(curRecord).get(csvColTime));
-		} else {
-			return curRecord * 0.1;
+		if(preparsedTime != null) {
+			return preparsedTime[curRecord];
 		}
+		return parseTime(curRecord);
 	}
 
 	@Override
 	public double getW() {
-		return (Double.parseDouble(csvRecords.get(curRecord).get(csvColW)) - wOffset) * wMult;
+		if(preparsedW != null) {
+			return preparsedW[curRecord];
+		}
+		return parseW(curRecord);
 	}
 
 	@Override
 	public double getHeading() {
-		double mag_ax_a = Double.parseDouble(csvRecords.get(curRecord).get(csvColMagAxA)) - magCorrA;
-		double mag_ax_b = Double.parseDouble(csvRecords.get(curRecord).get(csvColMagAxB)) - magCorrB;
+		if(preparsedHeading != null) {
+			return preparsedHeading[curRecord];
+		}
+		return parseHeading(curRecord);
+	}
+
+	/** @return raw magnetometer axis A, without the hard-iron correction */
+	@Override
+	public double getMagA() {
+		if(preparsedMagA != null) {
+			return preparsedMagA[curRecord];
+		}
+		return parseField(curRecord, csvColMagAxA);
+	}
+
+	/** @return raw magnetometer axis B, without the hard-iron correction */
+	@Override
+	public double getMagB() {
+		if(preparsedMagB != null) {
+			return preparsedMagB[curRecord];
+		}
+		return parseField(curRecord, csvColMagAxB);
+	}
+
+	@Override
+	public void readSample(CompassSample sample) {
+		if(preparsedTime != null) {
+			sample.time    = preparsedTime[curRecord];
+			sample.heading = preparsedHeading[curRecord];
+			sample.w       = preparsedW[curRecord];
+			return;
+		}
+		// One lookup of the record rather than one per field
+		CSVRecord record = csvRecords.get(curRecord);
+		sample.time    = (csvColTime >= 0) ? Double.parseDouble(record.get(csvColTime)) : curRecord * 0.1;
+		sample.heading = Math.atan2(Double.parseDouble(record.get(csvColMagAxA)) - magCorrA,
+				Double.parseDouble(record.get(csvColMagAxB)) - magCorrB);
+		sample.w       = (Double.parseDouble(record.get(csvColW)) - wOffset) * wMult;
+	}
+
+	private double parseTime(int record) {
+		if(csvColTime >= 0) {
+			return parseField(record, csvColTime);
+		} else {
+			return record * 0.1;
+		}
+	}
+
+	private double parseW(int record) {
+		return (parseField(record, csvColW) - wOffset) * wMult;
+	}
+
+	private double parseHeading(int record) {
+		double mag_ax_a = parseField(record, csvColMagAxA) - magCorrA;
+		double mag_ax_b = parseField(record, csvColMagAxB) - magCorrB;
 		return Math.atan2(mag_ax_a, mag_ax_b);
 	}
 
+	private double parseField(int record, int col) {
+		return Double.parseDouble(csvRecords.get(record).get(col));
+	}
+
 }
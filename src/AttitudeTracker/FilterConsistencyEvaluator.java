@@ -0,0 +1,273 @@
+package AttitudeTracker;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.ejml.data.DenseMatrix64F;
+import org.ejml.ops.CommonOps;
+
+/**
+ * Checks whether a KalmanFilterWithControl's noise settings are consistent with the
+ * noise it actually sees, by running it over many independent simulated runs of a
+ * TankDriveScenario, where the true state is known.
+ *
+ * The filter's state is [yaw, yaw rate], its controls the two wheel speeds and its
+ * measurements the compass yaw and gyro yaw rate.  On every step the evaluator
+ * records the normalized estimation error squared (NEES, e' P^-1 e, with e the
+ * true state minus the estimate) and the normalized innovation squared (NIS,
+ * y' S^-1 y, with y the measurement minus the prediction and S = H P H' + R).  If Q
+ * and R describe the real noise, these average the number of states and of
+ * measurements respectively; above that the filter is overconfident, below it too
+ * cautious.  The RMS errors of yaw and yaw rate are recorded as well.
+ *
+ * Trials are seeded by splitting one SplittableRandom in trial order, and run in
+ * chunks of GRAIN on a fork-join pool.  Each chunk adds into its own Stats, with no
+ * sharing between threads, and the chunks are merged in order at the end, so the
+ * result depends only on the seed, not on the pool or its scheduling.
+ *
+ * Samples within a run are correlated, so the standard error of the mean NEES and
+ * NIS is computed from the spread of the per-trial means instead.
+ *
+ * Usage: java AttitudeTracker.FilterConsistencyEvaluator [trials] [seed]
+ */
+public class FilterConsistencyEvaluator {
+	public static final int DEFAULT_TRIALS = 2000;
+	// Trials per fork-join task
+	public static final int GRAIN = 16;
+
+	/** Totals over some set of trials */
+	public static class Stats {
+		public long trials, steps;
+		double neesSum, nisSum;
+		/** Steps whose NEES or NIS was above the 99% chi-square bound; about 1% is consistent */
+		public long neesOverBound, nisOverBound;
+		double yawSqError, yawRateSqError;
+		// Sums and sums of squares of the per-trial means
+		double trialNeesSum, trialNeesSq, trialNisSum, trialNisSq;
+
+		void merge(Stats other) {
+			trials += other.trials;
+			steps += other.steps;
+			neesSum += other.neesSum;
+			nisSum += other.nisSum;
+			neesOverBound += other.neesOverBound;
+			nisOverBound += other.nisOverBound;
+			yawSqError += other.yawSqError;
+			yawRateSqError += other.yawRateSqError;
+			trialNeesSum += other.trialNeesSum;
+			trialNeesSq += other.trialNeesSq;
+			trialNisSum += other.trialNisSum;
+			trialNisSq += other.trialNisSq;
+		}
+
+		public double getMeanNees() { return neesSum / steps; }
+		public double getMeanNis()  { return nisSum / steps; }
+		public double getNeesStandardError() { return standardError(trialNeesSum, trialNeesSq); }
+		public double getNisStandardError()  { return standardError(trialNisSum, trialNisSq); }
+		public double getYawRmsError()     { return Math.sqrt(yawSqError / steps); }
+		public double getYawRateRmsError() { return Math.sqrt(yawRateSqError / steps); }
+
+		private double standardError(double sum, double sq) {
+			if(trials < 2) {
+				return Double.NaN;
+			}
+			double mean = sum / trials;
+			return Math.sqrt(Math.max(0, (sq - trials * mean * mean) / (trials - 1)) / trials);
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d trials, %d steps: NEES %.3f +/- %.3f (%.2f%% over 99%% bound), "
+					+ "NIS %.3f +/- %.3f (%.2f%% over 99%% bound), RMS error %.2f deg, %.2f deg/s",
+					trials, steps, getMeanNees(), 2 * getNeesStandardError(), 100.0 * neesOverBound / steps,
+					getMeanNis(), 2 * getNisStandardError(), 100.0 * nisOverBound / steps,
+					Math.toDegrees(getYawRmsError()), Math.toDegrees(getYawRateRmsError()));
+		}
+	}
+
+	final TankDriveScenario scenario;
+	final DenseMatrix64F F, Q, H, B, R, xInit, pInit;
+
+	/**
+	 * @param scenario the simulation; each trial is one pass of its script
+	 * @param F, Q, H, B as for KalmanFilterWithControl.configure()
+	 * @param R measurement noise covariance
+	 * @param xInit, pInit initial state and covariance
+	 */
+	public FilterConsistencyEvaluator(TankDriveScenario scenario, DenseMatrix64F F, DenseMatrix64F Q,
+			DenseMatrix64F H, DenseMatrix64F B, DenseMatrix64F R, DenseMatrix64F xInit, DenseMatrix64F pInit) {
+		if(F.numRows != 2 || H.numRows != 2 || B.numCols != 2) {
+			throw new IllegalArgumentException("Expected 2 states, 2 measurements and 2 controls");
+		}
+		this.scenario = scenario;
+		this.F = F; this.Q = Q; this.H = H; this.B = B; this.R = R;
+		this.xInit = xInit; this.pInit = pInit;
+	}
+
+	/**
+	 * The filter of AttitudeTrackerTests.testTankSteerWithControl(), with diagonal
+	 * process and measurement noise variances, starting stationary.
+	 */
+	public static FilterConsistencyEvaluator forTankSteer(TankDriveScenario scenario,
+			double q_yaw, double q_rate, double r_yaw, double r_rate) {
+		double dt = scenario.dt;
+		return new FilterConsistencyEvaluator(scenario,
+			new DenseMatrix64F(new double[][]{ {1.0, dt}, {0.0, 0.9} }),
+			new DenseMatrix64F(new double[][]{ {q_yaw, 0.0}, {0.0, q_rate} }),
+			new DenseMatrix64F(new double[][]{ {1.0, 0.0}, {0.0, 1.0} }),
+			new DenseMatrix64F(new double[][]{ {0.0, 0.0}, {0.1, -0.1} }),
+			new DenseMatrix64F(new double[][]{ {r_yaw, 0.0}, {0.0, r_rate} }),
+			new DenseMatrix64F(2, 1),
+			new DenseMatrix64F(new double[][]{ {1.0, 0.0}, {0.0, 1.0} }));
+	}
+
+	public static void main(String[] args) {
+		int trials = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_TRIALS;
+		long seed  = (args.length > 1) ? Long.parseLong(args[1]) : 0;
+
+		TankDriveScenario scenario = TankDriveScenario.standard(0.1);
+		double yaw_process = scenario.yawProcessNoise, rate_process = scenario.yawRateProcessNoise;
+		double yaw_sensor = scenario.yawMeasurementNoise, rate_sensor = scenario.yawRateMeasurementNoise;
+		// testTankSteerWithControl's settings, then the variances of the simulated uniform noise
+		FilterConsistencyEvaluator[] filters = {
+			forTankSteer(scenario, yaw_process * 0.25, rate_process * 0.25, yaw_sensor * 0.5, rate_sensor * 0.5),
+			forTankSteer(scenario, yaw_process * yaw_process / 3, rate_process * rate_process / 3,
+					yaw_sensor * yaw_sensor / 3, rate_sensor * rate_sensor / 3),
+		};
+		String[] names = { "Tank steer test tuning", "Simulated noise variances" };
+		for(int f = 0; f < filters.length; ++f) {
+			long start = System.nanoTime();
+			Stats stats = filters[f].evaluate(ForkJoinPool.commonPool(), seed, trials);
+			double seconds = (System.nanoTime() - start) / 1e9;
+			System.out.println(names[f] + ": " + stats);
+			System.out.println(String.format("  %.2f s, %.0f steps/s; a consistent filter has NEES and NIS near 2",
+					seconds, stats.steps / seconds));
+		}
+	}
+
+	/**
+	 * Run the trials and return the totals over all of them.
+	 *
+	 * @param trials at least 1
+	 */
+	public Stats evaluate(ForkJoinPool pool, long seed, int trials) {
+		if(trials < 1) {
+			throw new IllegalArgumentException("Need at least one trial, got " + trials);
+		}
+		SplittableRandom root = new SplittableRandom(seed);
+		SplittableRandom[] randoms = new SplittableRandom[trials];
+		for(int t = 0; t < trials; ++t) {
+			randoms[t] = root.split();
+		}
+		Stats[] chunks = new Stats[(trials + GRAIN - 1) / GRAIN];
+		pool.invoke(new EvaluateTask(randoms, chunks, 0, chunks.length));
+		Stats total = new Stats();
+		for(Stats chunk : chunks) {
+			total.merge(chunk);
+		}
+		return total;
+	}
+
+	private class EvaluateTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		final SplittableRandom[] randoms;
+		final Stats[] chunks;
+		final int from, to;
+
+		EvaluateTask(SplittableRandom[] randoms, Stats[] chunks, int from, int to) {
+			this.randoms = randoms; this.chunks = chunks;
+			this.from = from; this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if(to - from <= 1) {
+				for(int c = from; c < to; ++c) {
+					Stats stats = new Stats();
+					int end = Math.min(randoms.length, (c + 1) * GRAIN);
+					for(int t = c * GRAIN; t < end; ++t) {
+						runTrial(randoms[t], stats);
+					}
+					chunks[c] = stats;
+				}
+			} else {
+				int mid = (from + to) >>> 1;
+				invokeAll(new EvaluateTask(randoms, chunks, from, mid),
+				          new EvaluateTask(randoms, chunks, mid, to));
+			}
+		}
+	}
+
+	/**
+	 * Run one pass of the scenario through a fresh filter, adding into stats.
+	 */
+	void runTrial(SplittableRandom random, Stats stats) {
+		KalmanFilterWithControl kf = new KalmanFilterWithControl();
+		kf.configure(F, Q, H, B);
+		kf.setState(xInit, pInit);
+		DenseMatrix64F z = new DenseMatrix64F(2, 1);
+		DenseMatrix64F u = new DenseMatrix64F(2, 1);
+		DenseMatrix64F hp = new DenseMatrix64F(2, 2);
+		DenseMatrix64F m = new DenseMatrix64F(2, 2);
+		DenseMatrix64F m_inv = new DenseMatrix64F(2, 2);
+		double[] v = new double[2];
+
+		TankDriveScenario.Run run = scenario.start(random, false);
+		TankDriveScenario.TankDriveSample sample = new TankDriveScenario.TankDriveSample();
+		long steps = 0;
+		double nees_sum = 0, nis_sum = 0;
+		while(run.next(sample)) {
+			u.data[0] = sample.leftWheelSpeed;
+			u.data[1] = sample.rightWheelSpeed;
+			z.data[0] = sample.yawMeasured;
+			z.data[1] = sample.yawRateMeasured;
+			kf.predict(u);
+
+			// NIS of the innovation against S = H P H' + R
+			DenseMatrix64F x = kf.getState();
+			v[0] = z.data[0] - (H.data[0] * x.data[0] + H.data[1] * x.data[1]);
+			v[1] = z.data[1] - (H.data[2] * x.data[0] + H.data[3] * x.data[1]);
+			CommonOps.mult(H, kf.getCovariance(), hp);
+			CommonOps.multTransB(hp, H, m);
+			CommonOps.addEquals(m, R);
+			double nis = normalizedSquare(m, m_inv, v);
+
+			kf.update(z, R);
+
+			x = kf.getState();
+			v[0] = sample.yawActual - x.data[0];
+			v[1] = sample.yawRateActual - x.data[1];
+			m.set(kf.getCovariance());
+			double nees = normalizedSquare(m, m_inv, v);
+
+			stats.yawSqError += v[0] * v[0];
+			stats.yawRateSqError += v[1] * v[1];
+			if(nees > FilterMetrics.NIS_BOUND_99[2]) { ++stats.neesOverBound; }
+			if(nis > FilterMetrics.NIS_BOUND_99[2]) { ++stats.nisOverBound; }
+			nees_sum += nees;
+			nis_sum += nis;
+			++steps;
+		}
+		if(steps == 0) {
+			throw new IllegalStateException("The scenario produced no samples");
+		}
+		stats.trials++;
+		stats.steps += steps;
+		stats.neesSum += nees_sum;
+		stats.nisSum += nis_sum;
+		stats.trialNeesSum += nees_sum / steps;
+		stats.trialNeesSq += (nees_sum / steps) * (nees_sum / steps);
+		stats.trialNisSum += nis_sum / steps;
+		stats.trialNisSq += (nis_sum / steps) * (nis_sum / steps);
+	}
+
+	// v' M^-1 v for a 2x2 M
+	private static double normalizedSquare(DenseMatrix64F m, DenseMatrix64F mInv, double[] v) {
+		if(!CommonOps.invert(m, mInv)) {
+			return Double.NaN;
+		}
+		double[] a = mInv.data;
+		return v[0] * (a[0] * v[0] + a[1] * v[1]) + v[1] * (a[2] * v[0] + a[3] * v[1]);
+	}
+}
@@ -0,0 +1,150 @@
+package AttitudeTracker;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Running health statistics for a filter: how long each update took, the time
+ * between samples, how often the heading wrapped, and the innovations.  A filter
+ * records into this from its own thread once per update; any other thread can take
+ * a consistent copy with snapshot() at any time, e.g. to log or send to telemetry.
+ *
+ * Latency and dt go into histograms with power-of-two buckets, so recording is a
+ * few stores and percentiles are accurate to within a factor of two.  Innovations
+ * are summarized by their running mean and variance, and by the normalized
+ * innovation squared (NIS, y' S^-1 y).  If the filter's noise model is right the NIS
+ * averages the number of measurements; a NIS persistently far above that means the
+ * filter is overconfident and may diverge.
+ *
+ * Publication works like PublishedHeadingEstimate: everything lives in one atomic
+ * array behind a sequence number, so the writer never waits and nothing is
+ * allocated on either side.  Filters record nothing unless given an instance with
+ * setMetrics(), and skip the timing too, so instrumentation costs nothing when off.
+ *
+ * Only one thread may record.
+ */
+public class FilterMetrics {
+	/** Histogram bucket b counts values v (in ns or us) with 2^(b-1) <= v < 2^b; bucket 0 counts 0 */
+	public static final int BUCKETS = 64;
+	/** 99% points of the chi-square distribution with 1, 2 and 3 degrees of freedom */
+	static final double[] NIS_BOUND_99 = { 0.0, 6.635, 9.210, 11.345 };
+
+	private static final int SEQ = 0, UPDATES = 1, OVER_BUDGET = 2, WRAPS = 3, MAX_LATENCY = 4,
+			DT_MIN = 5, DT_MAX = 6, INNOVATIONS = 7, INNOVATION_MEAN = 8, INNOVATION_M2 = 9,
+			NIS_SUM = 10, NIS_OVER_BOUND = 11, LATENCY_HIST = 16, DT_HIST = LATENCY_HIST + BUCKETS,
+			SLOTS = DT_HIST + BUCKETS;
+
+	private final long latencyBudgetNanos;
+	private final AtomicLongArray slots = new AtomicLongArray(SLOTS);
+
+	// The writer's own copies of the running statistics
+	private long updates, overBudget, wraps, maxLatency, innovations, nisOverBound;
+	private double dtMin = Double.POSITIVE_INFINITY, dtMax = 0, innovationMean, innovationM2, nisSum;
+
+	/**
+	 * @param latencyBudgetNanos updates taking longer than this are counted as over budget
+	 */
+	public FilterMetrics(long latencyBudgetNanos) {
+		this.latencyBudgetNanos = latencyBudgetNanos;
+		slots.set(DT_MIN, Double.doubleToRawLongBits(dtMin));
+	}
+
+	public long getLatencyBudgetNanos() {
+		return latencyBudgetNanos;
+	}
+
+	/**
+	 * Record one filter update.
+	 *
+	 * @param latencyNanos time the update took, or a negative number if it wasn't timed
+	 * @param dt           time since the previous sample, in seconds
+	 * @param wrapped      whether the heading crossed +/-pi on this update
+	 * @param innovation   measured minus predicted heading
+	 * @param nis          normalized innovation squared of the whole measurement vector
+	 * @param dof          number of measurements in the NIS, 1 to 3
+	 */
+	public void record(long latencyNanos, double dt, boolean wrapped, double innovation, double nis, int dof) {
+		long seq = slots.get(SEQ);
+		slots.lazySet(SEQ, seq + 1);
+
+		slots.lazySet(UPDATES, ++updates);
+		if(latencyNanos >= 0) {
+			increment(LATENCY_HIST + bucket(latencyNanos));
+			if(latencyNanos > latencyBudgetNanos) {
+				slots.lazySet(OVER_BUDGET, ++overBudget);
+			}
+			if(latencyNanos > maxLatency) {
+				slots.lazySet(MAX_LATENCY, maxLatency = latencyNanos);
+			}
+		}
+		increment(DT_HIST + bucket((long)(dt * 1e6)));
+		if(dt < dtMin) {
+			slots.lazySet(DT_MIN, Double.doubleToRawLongBits(dtMin = dt));
+		}
+		if(dt > dtMax) {
+			slots.lazySet(DT_MAX, Double.doubleToRawLongBits(dtMax = dt));
+		}
+		if(wrapped) {
+			slots.lazySet(WRAPS, ++wraps);
+		}
+		if(innovation == innovation) { // skip NaN
+			// Welford's running mean and variance
+			++innovations;
+			double delta = innovation - innovationMean;
+			innovationMean += delta / innovations;
+			innovationM2 += delta * (innovation - innovationMean);
+			nisSum += nis;
+			if(nis > NIS_BOUND_99[dof]) {
+				slots.lazySet(NIS_OVER_BOUND, ++nisOverBound);
+			}
+			slots.lazySet(INNOVATIONS, innovations);
+			slots.lazySet(INNOVATION_MEAN, Double.doubleToRawLongBits(innovationMean));
+			slots.lazySet(INNOVATION_M2, Double.doubleToRawLongBits(innovationM2));
+			slots.lazySet(NIS_SUM, Double.doubleToRawLongBits(nisSum));
+		}
+
+		slots.lazySet(SEQ, seq + 2);
+	}
+
+	private void increment(int slot) {
+		slots.lazySet(slot, slots.get(slot) + 1);
+	}
+
+	static int bucket(long value) {
+		return (value <= 0) ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+	}
+
+	/**
+	 * Copy a consistent view of everything recorded so far into out.  May be called
+	 * from any thread.
+	 *
+	 * @return out
+	 */
+	public FilterMetricsSnapshot snapshot(FilterMetricsSnapshot out) {
+		while(true) {
+			long before = slots.get(SEQ);
+			if((before & 1) != 0) {
+				// Write in progress
+				continue;
+			}
+			out.latencyBudgetNanos = latencyBudgetNanos;
+			out.updates = slots.get(UPDATES);
+			out.overBudget = slots.get(OVER_BUDGET);
+			out.wraps = slots.get(WRAPS);
+			out.maxLatencyNanos = slots.get(MAX_LATENCY);
+			out.dtMin = Double.longBitsToDouble(slots.get(DT_MIN));
+			out.dtMax = Double.longBitsToDouble(slots.get(DT_MAX));
+			out.innovations = slots.get(INNOVATIONS);
+			out.innovationMean = Double.longBitsToDouble(slots.get(INNOVATION_MEAN));
+			out.innovationM2 = Double.longBitsToDouble(slots.get(INNOVATION_M2));
+			out.nisSum = Double.longBitsToDouble(slots.get(NIS_SUM));
+			out.nisOverBound = slots.get(NIS_OVER_BOUND);
+			for(int b = 0; b < BUCKETS; ++b) {
+				out.latencyHistogram[b] = slots.get(LATENCY_HIST + b);
+				out.dtHistogram[b] = slots.get(DT_HIST + b);
+			}
+			if(slots.get(SEQ) == before) {
+				return out;
+			}
+		}
+	}
+}
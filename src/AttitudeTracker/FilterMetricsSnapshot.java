@@ -0,0 +1,67 @@
+package AttitudeTracker;
+
+/**
+ * A copy of the statistics in a FilterMetrics at one moment.  Mutable so a poller
+ * can reuse one instance rather than allocate; see FilterMetrics.snapshot().
+ */
+public class FilterMetricsSnapshot {
+	public long latencyBudgetNanos;
+	public long updates;
+	/** Updates that took longer than the latency budget */
+	public long overBudget;
+	/** Times the heading crossed +/-pi */
+	public long wraps;
+	public long maxLatencyNanos;
+	/** Smallest and largest time between samples, in seconds */
+	public double dtMin, dtMax;
+	public long innovations;
+	public double innovationMean;
+	double innovationM2;
+	double nisSum;
+	/** Innovations whose NIS was above the 99% chi-square bound; about 1% is healthy */
+	public long nisOverBound;
+	/** Update latency in ns and dt in us, bucketed as described in FilterMetrics */
+	public final long[] latencyHistogram = new long[FilterMetrics.BUCKETS];
+	public final long[] dtHistogram = new long[FilterMetrics.BUCKETS];
+
+	public double getInnovationVariance() {
+		return (innovations > 1) ? innovationM2 / (innovations - 1) : 0.0;
+	}
+
+	public double getMeanNis() {
+		return (innovations > 0) ? nisSum / innovations : 0.0;
+	}
+
+	/** @return an upper bound, within a factor of two, on the given quantile (0 to 1) of update latency, in ns */
+	public long getLatencyQuantileNanos(double quantile) {
+		return quantile(latencyHistogram, quantile);
+	}
+
+	/** @return an upper bound, within a factor of two, on the given quantile (0 to 1) of dt, in us */
+	public long getDtQuantileMicros(double quantile) {
+		return quantile(dtHistogram, quantile);
+	}
+
+	private static long quantile(long[] histogram, double quantile) {
+		long total = 0;
+		for(long count : histogram) { total += count; }
+		long target = (long)Math.ceil(quantile * total);
+		long seen = 0;
+		for(int b = 0; b < histogram.length; ++b) {
+			seen += histogram[b];
+			if(seen >= target && seen > 0) {
+				return (b == 0) ? 0 : (1L << b) - 1;
+			}
+		}
+		return 0;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("updates %d, latency p50 <%dns p99 <%dns max %dns, over %dns budget %d, "
+				+ "dt %.4g-%.4gs, wraps %d, innovation mean %.4g sd %.4g, mean NIS %.3g, NIS over 99%% bound %d",
+				updates, getLatencyQuantileNanos(0.5), getLatencyQuantileNanos(0.99), maxLatencyNanos,
+				latencyBudgetNanos, overBudget, dtMin, dtMax, wraps, innovationMean,
+				Math.sqrt(getInnovationVariance()), getMeanNis(), nisOverBound);
+	}
+}
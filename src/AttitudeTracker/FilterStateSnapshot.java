@@ -0,0 +1,155 @@
+package AttitudeTracker;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps a FilteredCompassReader's state in a small file, so that after the program
+ * restarts mid-event (a brownout or a redeploy) the filter carries on where it was
+ * instead of starting again from a stationary guess and taking seconds to settle.
+ *
+ * The file has two slots, and each write goes to the slot not holding the newest
+ * snapshot, so a write cut short by a power loss can only damage the older copy.
+ * Each slot holds a sequence number, the wall-clock time, the reader's state (see
+ * FilteredCompassReader.writeState()) and a CRC32 of all of those.  restore() takes
+ * the valid slot with the highest sequence number.  Slots are SLOT_BYTES apart, a
+ * typical flash sector, so a torn write can't reach the other slot.
+ *
+ * write() is meant to be called from the updating thread a few times per second.
+ * It reuses one direct buffer and writes it at a fixed position in the file, so it
+ * allocates nothing.  With sync it also waits for the write to reach the storage,
+ * which is slower but survives a power loss rather than only a crash.
+ *
+ * Slot layout, all little-endian:
+ *   0  4 bytes  magic "ATFS"
+ *   4  int      format version
+ *   8  long     sequence number
+ *   16 long     wall-clock time of the snapshot, ms since the epoch
+ *   24          FilteredCompassReader.STATE_BYTES of reader state
+ *   then int    CRC32 of everything before it
+ */
+public class FilterStateSnapshot {
+	public static final byte[] MAGIC = { 'A', 'T', 'F', 'S' };
+	public static final int VERSION = 1;
+	public static final int SLOT_BYTES = 512;
+	static final int HEADER_BYTES = 24;
+	static final int RECORD_BYTES = HEADER_BYTES + FilteredCompassReader.STATE_BYTES + 4;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final boolean sync;
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(RECORD_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+	private final CRC32 crc = new CRC32();
+	// Sequence number of the newest valid snapshot, and the slot it is in, or -1
+	private long sequence = 0;
+	private int newestSlot = -1;
+
+	/**
+	 * Open or create a snapshot file.
+	 *
+	 * @param sync whether write() waits for the data to reach the storage
+	 */
+	public FilterStateSnapshot(String filename, boolean sync) throws IOException {
+		file = new RandomAccessFile(filename, "rw");
+		channel = file.getChannel();
+		this.sync = sync;
+		for(int slot = 0; slot < 2; ++slot) {
+			if(readSlot(slot) && (newestSlot < 0 || buffer.getLong(8) > sequence)) {
+				sequence = buffer.getLong(8);
+				newestSlot = slot;
+			}
+		}
+	}
+
+	/**
+	 * Save the reader's current state over the older of the two snapshots.
+	 */
+	public void write(FilteredCompassReader reader) throws IOException {
+		int slot = (newestSlot == 0) ? 1 : 0;
+		buffer.clear();
+		buffer.put(MAGIC);
+		buffer.putInt(VERSION);
+		buffer.putLong(sequence + 1);
+		buffer.putLong(System.currentTimeMillis());
+		reader.writeState(buffer);
+		buffer.flip();
+		crc.reset();
+		crc.update(buffer);
+		buffer.limit(RECORD_BYTES);
+		buffer.putInt(RECORD_BYTES - 4, (int)crc.getValue());
+		buffer.position(0);
+
+		long position = (long)slot * SLOT_BYTES;
+		while(buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+		if(sync) {
+			channel.force(false);
+		}
+		++sequence;
+		newestSlot = slot;
+	}
+
+	/**
+	 * Restore the reader from the newest valid snapshot, if there is one no older than
+	 * maxAgeMillis.  A snapshot from a previous run of the robot is no use once it has
+	 * been carried somewhere else, so keep the age to a few minutes.
+	 *
+	 * @return whether the reader was restored
+	 */
+	public boolean restore(FilteredCompassReader reader, long maxAgeMillis) throws IOException {
+		if(newestSlot < 0 || !readSlot(newestSlot)) {
+			return false;
+		}
+		long age = System.currentTimeMillis() - buffer.getLong(16);
+		if(age > maxAgeMillis || age < 0) {
+			return false;
+		}
+		buffer.position(HEADER_BYTES);
+		reader.restoreState(buffer);
+		return true;
+	}
+
+	/** @return the sequence number of the newest snapshot in the file, 0 if there is none */
+	public long getSequence() {
+		return sequence;
+	}
+
+	public void close() throws IOException {
+		file.close();
+	}
+
+	/**
+	 * Read a slot into the buffer and check it.
+	 *
+	 * @return whether it holds an intact snapshot of this version
+	 */
+	private boolean readSlot(int slot) throws IOException {
+		buffer.clear();
+		long position = (long)slot * SLOT_BYTES;
+		while(buffer.hasRemaining()) {
+			int n = channel.read(buffer, position);
+			if(n < 0) {
+				return false;
+			}
+			position += n;
+		}
+		byte[] magic = new byte[MAGIC.length];
+		buffer.position(0);
+		buffer.get(magic);
+		if(!Arrays.equals(magic, MAGIC) || buffer.getInt(4) != VERSION) {
+			return false;
+		}
+		buffer.position(0);
+		buffer.limit(RECORD_BYTES - 4);
+		crc.reset();
+		crc.update(buffer);
+		buffer.limit(RECORD_BYTES);
+		return (int)crc.getValue() == buffer.getInt(RECORD_BYTES - 4);
+	}
+}
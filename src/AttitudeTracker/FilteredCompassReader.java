@@ -1,38 +1,88 @@
 package AttitudeTracker;
 
+import java.nio.ByteBuffer;
+
 import org.ejml.data.DenseMatrix64F;
 
 public class FilteredCompassReader {
-	KalmanFilterSimple kf = new KalmanFilterSimple();
-	HeadingProvider headingProvider = null;
-	HeadingRateProvider headingRateProvider = null;
-	TimeProvider timeProvider = null;
+	// Hand-tuned noise and model parameters used by the default constructor
+	public static final double DEFAULT_Q_HEADING   = 0.05;
+	public static final double DEFAULT_Q_RATE      = 0.0001;
+	public static final double DEFAULT_R_HEADING   = 10.0;
+	public static final double DEFAULT_R_DTHETA    = 1.0;
+	public static final double DEFAULT_R_RATE      = 0.001;
+	public static final double DEFAULT_MODEL_SCALE = 45;
+	/** Bytes written by writeState() */
+	public static final int STATE_BYTES = 14 * 8 + 4;
+	
+	TwoStateFilter kf = new TwoStateKalmanFilter();
+	CompassSampleSource sampleSource = null;
+	final CompassSample sample = new CompassSample();
 	double lastUpdateTimestamp;
 	boolean isFirstUpdate = true;
 	double lastMeasuredHeading = 0.0;
 	double lastEstimatedHeading = 0.0;
 	double lastDTheta = 0.0;
 	double lastEstimatedAngVel = 0.0;
+	// dt of the latest update, and whether the next update is the first after restoreState()
+	double lastDt = 0.0;
+	boolean resumed = false;
 	DenseMatrix64F R;
 	double headingBoost = 0.0;
 	double theta_demod = 0.0;
+	// Heading change per unit of measured rate per second; see makeF()
+	double modelScale;
+	double qHeading, qRate;
+	// For other threads to read; see getPublishedEstimate()
+	final PublishedHeadingEstimate publishedEstimate = new PublishedHeadingEstimate();
+	// Optional instrumentation; see setMetrics()
+	FilterMetrics metrics = null;
+	double metricInnovation, metricNis;
+	// Fixed-lag smoothing; see setSmoothingLag().  A ring of the last lag + 1 filtered
+	// states and covariances, and the dt / model scale leading up to each.
+	double[] lagTime, lagA, lagX0, lagX1, lagP00, lagP01, lagP10, lagP11;
+	int lagNewest = -1, lagCount = 0;
+	final double[] lagScratch = new double[6];
+	double smoothedTime = Double.NaN, smoothedHeading = Double.NaN, smoothedAngVel = Double.NaN;
+	final PublishedHeadingEstimate publishedSmoothedEstimate = new PublishedHeadingEstimate();
 
 	FilteredCompassReader() {
+		this(DEFAULT_Q_HEADING, DEFAULT_Q_RATE, DEFAULT_R_HEADING, DEFAULT_R_DTHETA, DEFAULT_R_RATE, DEFAULT_MODEL_SCALE);
+	}
+	
+	/**
+	 * @param q_heading   process noise variance of the heading
+	 * @param q_rate      process noise variance of the angular velocity
+	 * @param r_heading   measurement noise variance of the compass heading
+	 * @param r_dtheta    measurement noise variance of the previous heading change
+	 * @param r_rate      measurement noise variance of the gyro rate
+	 * @param model_scale the heading advances by rate * dt / model_scale each update
+	 */
+	FilteredCompassReader(double q_heading, double q_rate, double r_heading, double r_dtheta, double r_rate, double model_scale) {
+		modelScale = model_scale;
+		qHeading = q_heading;
+		qRate = q_rate;
+		R = new DenseMatrix64F(new double[][]{
+			{r_heading, 0.0,      0.0},
+			{0.0,       r_dtheta, 0.0},
+			{0.0,       0.0,      r_rate},
+		}); 
+		configureFilter();
+
+		isFirstUpdate = true;
+	}
+	
+	private void configureFilter() {
 		DenseMatrix64F F =  makeF(0.1); // TODO 
 		DenseMatrix64F Q = new DenseMatrix64F(new double[][]{
-			{0.05, 0.0},
-			{0.0,  0.0001},
+			{qHeading, 0.0},
+			{0.0,      qRate},
 		}); 
 		DenseMatrix64F H = new DenseMatrix64F(new double[][]{
 			{1.0, 0.0},
 			{0.0, 1.0},
 			{0.0, 1.0},
 		}); 
-		R = new DenseMatrix64F(new double[][]{
-			{10.0, 0.0, 0.0},
-			{ 0.0, 1.0, 0.0},
-			{ 0.0, 0.0, 0.001},
-		}); 
 		kf.configure(F, Q, H);
 		
 		DenseMatrix64F x_init = new DenseMatrix64F(new double [][]{
@@ -44,40 +94,326 @@ public class FilteredCompassReader {
 			{0, 1},
 		}); // Arbitrary at the moment
 		kf.setState(x_init, p_init);
-
-		isFirstUpdate = true;
 	}
 	
+	/**
+	 * Run the filter in single precision (TwoStateKalmanFilter32) or, by default,
+	 * double.  Must be called before the first update.
+	 */
+	public void setSinglePrecision(boolean single) {
+		if(!isFirstUpdate) {
+			throw new IllegalStateException("Precision can only be chosen before the first update");
+		}
+		kf = single ? new TwoStateKalmanFilter32() : new TwoStateKalmanFilter();
+		configureFilter();
+	}
+	
+	/**
+	 * Read samples from separate providers.  If all three are the same object and it
+	 * is also a CompassSampleSource it is read with one call per sample, otherwise
+	 * they are wrapped in a ProviderSampleSource.
+	 */
 	public void setDataSources(HeadingProvider hp, HeadingRateProvider hrp, TimeProvider tp) {
-		headingProvider = hp;
-		headingRateProvider = hrp;
-		timeProvider = tp;
+		if(hp == hrp && hrp == tp && hp instanceof CompassSampleSource) {
+			sampleSource = (CompassSampleSource)hp;
+		} else {
+			sampleSource = new ProviderSampleSource(hp, hrp, tp);
+		}
+	}
+	
+	public void setSampleSource(CompassSampleSource source) {
+		sampleSource = source;
+	}
+	
+	/**
+	 * Record latency, dt, wraps and innovation statistics of every update into the
+	 * given metrics, or stop recording if null.  Only updateEstimate() is timed.
+	 */
+	public void setMetrics(FilterMetrics metrics) {
+		this.metrics = metrics;
+	}
+	
+	/**
+	 * Also produce a smoothed estimate of the heading 'samples' updates ago, using
+	 * the updates since then, alongside the causal one.  At 50 samples per second a
+	 * lag of 5 to 10 samples gives 100-200ms of delay.  Each update then runs that
+	 * many RTS backward steps (see HeadingSmoother) over a ring of recent filter
+	 * states, so the cost is constant and nothing is allocated.  0 turns it off.
+	 */
+	public void setSmoothingLag(int samples) {
+		if(samples <= 0) {
+			lagTime = null;
+			return;
+		}
+		int size = samples + 1;
+		lagTime = new double[size];
+		lagA    = new double[size];
+		lagX0   = new double[size];
+		lagX1   = new double[size];
+		lagP00  = new double[size];
+		lagP01  = new double[size];
+		lagP10  = new double[size];
+		lagP11  = new double[size];
+		lagNewest = -1;
+		lagCount = 0;
+	}
+	
+	/**
+	 * Add the state the filter just reached to the ring, and smooth back to the
+	 * oldest entry once the ring is full.
+	 */
+	private void updateSmoothed(double now, double dt) {
+		int size = lagTime.length;
+		int i = (lagNewest + 1 == size) ? 0 : lagNewest + 1;
+		lagNewest = i;
+		lagTime[i] = now;
+		lagA[i] = dt / modelScale;
+		lagX0[i] = kf.getX0();
+		lagX1[i] = kf.getX1();
+		double[] p = kf.getCovariance().data;
+		lagP00[i] = p[0]; lagP01[i] = p[1];
+		lagP10[i] = p[2]; lagP11[i] = p[3];
+		if(lagCount < size) {
+			++lagCount;
+			if(lagCount < size) { return; }
+		}
+		
+		double[] s = lagScratch;
+		s[0] = lagX0[i]; s[1] = lagX1[i];
+		s[2] = lagP00[i]; s[3] = lagP01[i]; s[4] = lagP10[i]; s[5] = lagP11[i];
+		for(int k = 1; k < size; ++k) {
+			int prev = (i == 0) ? size - 1 : i - 1;
+			HeadingSmoother.backwardStep(lagA[i], qHeading, qRate,
+					lagX0[prev], lagX1[prev], lagP00[prev], lagP01[prev], lagP10[prev], lagP11[prev], s);
+			i = prev;
+		}
+		smoothedTime = lagTime[i];
+		smoothedHeading = wrap(s[0]);
+		smoothedAngVel = s[1];
 	}
 	
 	private DenseMatrix64F makeF(double dt) {
 		return new DenseMatrix64F(new double[][]{
-			{1.0, dt / 45},
+			{1.0, dt / modelScale},
 			{0.0, 1.0},
 		});
 	}
 	
 	
 	public void updateEstimate() {
-		double w = headingRateProvider.getW();
-		double theta = headingProvider.getHeading();
-		double now = timeProvider.getTime();
+		if(metrics != null) {
+			updateEstimateMeasured();
+			return;
+		}
+		sampleSource.readSample(sample);
+		double now = sample.time;
+		updateEstimateAt(sample.heading, sample.w, now);
+		publishedEstimate.publish(now, getFilteredHeading(), lastEstimatedAngVel);
+		publishSmoothed();
+	}
+	
+	private void publishSmoothed() {
+		if(lagTime != null && lagCount == lagTime.length) {
+			publishedSmoothedEstimate.publish(smoothedTime, smoothedHeading, smoothedAngVel);
+		}
+	}
+	
+	private void updateEstimateMeasured() {
+		long start = System.nanoTime();
+		double boost = headingBoost;
+		sampleSource.readSample(sample);
+		double now = sample.time;
+		double dt = updateEstimateAt(sample.heading, sample.w, now);
+		publishedEstimate.publish(now, getFilteredHeading(), lastEstimatedAngVel);
+		publishSmoothed();
+		if(dt != 0.0) {
+			metrics.record(System.nanoTime() - start, dt, headingBoost != boost, metricInnovation, metricNis, 3);
+		}
+	}
+	
+	/**
+	 * Run the filter over a block of recorded samples in one call, without going
+	 * through the data sources.  Equivalent to calling updateEstimate() once per
+	 * sample and reading getFilteredHeading() and getFilteredAngularVelocity() after
+	 * each, and may be freely mixed with it.
+	 * 
+	 * When R is diagonal the two measurements of angular velocity are first merged
+	 * into one, which is the same estimate in exact arithmetic but leaves only a
+	 * 2x2 update to do per sample.  Results then agree with updateEstimate() to
+	 * rounding error rather than bit for bit.
+	 * 
+	 * @param time       sample timestamps, in seconds
+	 * @param heading    measured headings, -pi to pi
+	 * @param w          measured angular velocities
+	 * @param count      number of samples to process, starting at index 0
+	 * @param headingOut receives the filtered heading for each sample
+	 * @param wOut       receives the filtered angular velocity for each sample
+	 */
+	public void updateEstimates(double[] time, double[] heading, double[] w, int count,
+			double[] headingOut, double[] wOut) {
+		double[] r = R.data;
+		if(r[1] != 0 || r[2] != 0 || r[3] != 0 || r[5] != 0 || r[6] != 0 || r[7] != 0) {
+			for(int i = 0; i < count; ++i) {
+				double boost = headingBoost;
+				double dt = updateEstimateAt(heading[i], w[i], time[i]);
+				if(metrics != null && dt != 0.0) {
+					metrics.record(-1, dt, headingBoost != boost, metricInnovation, metricNis, 3);
+				}
+				headingOut[i] = getFilteredHeading();
+				wOut[i] = lastEstimatedAngVel;
+			}
+		} else {
+			updateEstimatesDiagonalR(time, heading, w, count, headingOut, wOut);
+		}
+		if(count > 0) {
+			publishedEstimate.publish(lastUpdateTimestamp, headingOut[count - 1], wOut[count - 1]);
+			publishSmoothed();
+		}
+	}
+	
+	private void updateEstimatesDiagonalR(double[] time, double[] heading, double[] w, int count,
+			double[] headingOut, double[] wOut) {
+		double[] r = R.data;
 		
+		// Inverse-variance weights for merging the two rate measurements
+		double r_rate = r[4] * r[8] / (r[4] + r[8]);
+		double weight_dtheta = r[8] / (r[4] + r[8]);
+		double weight_w      = r[4] / (r[4] + r[8]);
+		for(int i = 0; i < count; ++i) {
+			double now = time[i];
+			double theta_measured = heading[i];
+			double dt = resumeDt(now - lastUpdateTimestamp);
+			if(isFirstUpdate || dt == 0) {
+				// Same as the initial measurement case of updateEstimate()
+				lastUpdateTimestamp = now;
+				isFirstUpdate = false;
+			} else {
+				lastDt = dt;
+				lastUpdateTimestamp = now;
+				double boost = headingBoost;
+				if(theta_measured >  Math.PI / 2.0 && lastMeasuredHeading < -Math.PI / 2.0) {
+					headingBoost -= 2 * Math.PI;
+				} else if (theta_measured < -Math.PI / 2.0 && lastMeasuredHeading >  Math.PI / 2.0) {
+					headingBoost += 2 * Math.PI;
+				}
+				theta_demod = theta_measured + headingBoost;
+				kf.setF(1.0, dt / modelScale, 0.0, 1.0);
+				kf.predict();
+				double rate = weight_dtheta * lastDTheta + weight_w * w[i];
+				if(metrics != null) {
+					metrics.record(-1, dt, headingBoost != boost, theta_demod - kf.getX0(),
+							kf.nisDirect(theta_demod, rate, r[0], r_rate), 2);
+				}
+				kf.updateDirect(theta_demod, rate, r[0], r_rate);
+				double est_theta = kf.getX0();
+				lastDTheta = est_theta - lastEstimatedHeading;
+				lastMeasuredHeading = theta_measured;
+				lastEstimatedHeading = est_theta;
+				lastEstimatedAngVel  = kf.getX1();
+				if(lagTime != null) {
+					updateSmoothed(now, dt);
+				}
+			}
+			headingOut[i] = getFilteredHeading();
+			wOut[i] = lastEstimatedAngVel;
+		}
+	}
+	
+	/**
+	 * @return the dt the filter stepped by, 0 for the initial measurement
+	 */
+	private double updateEstimateAt(double theta, double w, double now) {
 		double dt = 0;
 		if(!isFirstUpdate) 
-		{ dt = now - lastUpdateTimestamp; }
+		{ dt = resumeDt(now - lastUpdateTimestamp); }
+		if(dt != 0.0) {
+			lastDt = dt;
+		}
 		updateEstimate(theta, w, dt);
+		if(lagTime != null && dt != 0.0) {
+			updateSmoothed(now, dt);
+		}
 		
 		lastUpdateTimestamp = now;
 		isFirstUpdate = false;
+		return dt;
+	}
+	
+	/**
+	 * The first update after restoreState() may come from a clock that restarted with
+	 * the program.  The real gap is unknown then, so the last dt before the snapshot
+	 * stands in for it.
+	 */
+	private double resumeDt(double dt) {
+		if(resumed) {
+			resumed = false;
+			if(!(dt > 0)) {
+				return lastDt;
+			}
+		}
+		return dt;
 	}
 	
 	public double getHeadingBoost() { return headingBoost; }
 	
+	/**
+	 * Write everything the filter needs to carry on where it is, STATE_BYTES in all,
+	 * at the buffer's position: the state and covariance, the heading demodulation,
+	 * and the time and dt of the latest update.  Nothing is allocated.  Must be called
+	 * from the updating thread.
+	 */
+	public void writeState(ByteBuffer out) {
+		double[] x = kf.getState().data;
+		double[] p = kf.getCovariance().data;
+		out.putInt(isFirstUpdate ? 1 : 0);
+		out.putDouble(lastUpdateTimestamp);
+		out.putDouble(lastDt);
+		out.putDouble(x[0]);
+		out.putDouble(x[1]);
+		out.putDouble(p[0]);
+		out.putDouble(p[1]);
+		out.putDouble(p[2]);
+		out.putDouble(p[3]);
+		out.putDouble(headingBoost);
+		out.putDouble(theta_demod);
+		out.putDouble(lastMeasuredHeading);
+		out.putDouble(lastEstimatedHeading);
+		out.putDouble(lastDTheta);
+		out.putDouble(lastEstimatedAngVel);
+	}
+	
+	/**
+	 * Carry on from a state written by writeState(), read at the buffer's position,
+	 * instead of starting again from a stationary guess.  Use this at startup, before
+	 * the first update; the noise and model parameters are this reader's own.  The
+	 * smoothing lag, if any, starts empty.
+	 */
+	public void restoreState(ByteBuffer in) {
+		isFirstUpdate = (in.getInt() != 0);
+		lastUpdateTimestamp = in.getDouble();
+		lastDt = in.getDouble();
+		DenseMatrix64F x = new DenseMatrix64F(2, 1);
+		DenseMatrix64F P = new DenseMatrix64F(2, 2);
+		x.data[0] = in.getDouble();
+		x.data[1] = in.getDouble();
+		for(int i = 0; i < 4; ++i) {
+			P.data[i] = in.getDouble();
+		}
+		kf.setState(x, P);
+		headingBoost = in.getDouble();
+		theta_demod = in.getDouble();
+		lastMeasuredHeading = in.getDouble();
+		lastEstimatedHeading = in.getDouble();
+		lastDTheta = in.getDouble();
+		lastEstimatedAngVel = in.getDouble();
+		resumed = !isFirstUpdate;
+		lagNewest = -1;
+		lagCount = 0;
+		if(!isFirstUpdate) {
+			publishedEstimate.publish(lastUpdateTimestamp, getFilteredHeading(), lastEstimatedAngVel);
+		}
+	}
+	
 	private void updateEstimate(double theta_measured, double w_measured, double dt) {
 		if(dt == 0.0) {
 			// Initial measurement
@@ -92,29 +428,61 @@ public class FilteredCompassReader {
 //				System.out.println("From " + lastMeasuredHeading + " to " + theta_measured + " so -boost, now = " + headingBoost);
 			}
 			theta_demod = theta_measured + headingBoost;
-			DenseMatrix64F z = new DenseMatrix64F(new double [][]{
-				{theta_demod},
-				{lastDTheta},
-				{w_measured},
-			});
-			kf.setF(makeF(dt));
+			// Same model as makeF(dt), set in place to avoid allocating every update
+			kf.setF(1.0, dt / modelScale, 0.0, 1.0);
 			kf.predict();
-			kf.update(z, R);
-			double[] est = kf.getState().getData();
-			lastDTheta = est[0] - lastEstimatedHeading;
+			if(metrics != null) {
+				metricInnovation = theta_demod - kf.getX0();
+				metricNis = kf.nis(theta_demod, lastDTheta, w_measured, R);
+			}
+			kf.update(theta_demod, lastDTheta, w_measured, R);
+			double est_theta = kf.getX0();
+			lastDTheta = est_theta - lastEstimatedHeading;
 			lastMeasuredHeading = theta_measured;
-			lastEstimatedHeading = est[0];
-			lastEstimatedAngVel  = est[1];
+			lastEstimatedHeading = est_theta;
+			lastEstimatedAngVel  = kf.getX1();
 		}
 	}
 	
 	public double getFilteredHeading() {
-		double heading = lastEstimatedHeading % (2 * Math.PI); 
+		return wrap(lastEstimatedHeading);
+	}
+	
+	private static double wrap(double theta) {
+		double heading = theta % (2 * Math.PI); 
 		if(heading >=  Math.PI) { heading -= 2 * Math.PI; }
 		if(heading <= -Math.PI) { heading += 2 * Math.PI; }
 		return heading;
 	}
+	
+	/**
+	 * With setSmoothingLag(), the smoothed estimates for the sample at
+	 * getSmoothedTime(), which lags the latest update.  NaN until enough updates
+	 * have been seen.
+	 */
+	public double getSmoothedHeading() {
+		return smoothedHeading;
+	}
+	public double getSmoothedAngularVelocity() {
+		return smoothedAngVel;
+	}
+	public double getSmoothedTime() {
+		return smoothedTime;
+	}
 	public double getFilteredAngularVelocity() {
 		return lastEstimatedAngVel;
 	}
+	
+	/**
+	 * The latest estimate, for reading from threads other than the one updating the
+	 * filter.  The getters above must only be called from the updating thread.
+	 */
+	public PublishedHeadingEstimate getPublishedEstimate() {
+		return publishedEstimate;
+	}
+	
+	/** As getPublishedEstimate(), for the smoothed estimate; see setSmoothingLag() */
+	public PublishedHeadingEstimate getPublishedSmoothedEstimate() {
+		return publishedSmoothedEstimate;
+	}
 }
@@ -0,0 +1,40 @@
+package AttitudeTracker;
+
+import org.ejml.data.DenseMatrix64F;
+
+/**
+ * A KalmanFilterWithControl for one particular size, working on fixed-size
+ * matrices instead of SimpleMatrix.  KalmanFilterWithControl picks one in
+ * configure() when the dimensions match and forwards everything to it; the methods
+ * mean the same as there.
+ */
+interface FixedKalmanFilter {
+	void configure(DenseMatrix64F F, DenseMatrix64F Q, DenseMatrix64F H, DenseMatrix64F B);
+	void setF(DenseMatrix64F F);
+	void setState(DenseMatrix64F x, DenseMatrix64F P);
+	void predict(DenseMatrix64F u);
+	/** The full update, for any R */
+	void update(DenseMatrix64F z, DenseMatrix64F R);
+	void updateScalar(int row, double z, double r);
+	/** Copy the state into out, which must be states x 1 */
+	void getState(DenseMatrix64F out);
+	/** Copy the covariance into out, which must be states x states */
+	void getCovariance(DenseMatrix64F out);
+
+	/**
+	 * @return an implementation for these dimensions, or null if there is none.
+	 *         There are implementations for 2, 3 and 4 states, with as many
+	 *         measurements and controls as states.
+	 */
+	static FixedKalmanFilter create(int states, int measurements, int controls) {
+		if(measurements != states || controls != states) {
+			return null;
+		}
+		switch(states) {
+		case 2: return new FixedKalmanFilter2();
+		case 3: return new FixedKalmanFilter3();
+		case 4: return new FixedKalmanFilter4();
+		default: return null;
+		}
+	}
+}
@@ -0,0 +1,113 @@
+package AttitudeTracker;
+
+import org.ejml.alg.fixed.FixedOps2;
+import org.ejml.data.DenseMatrix64F;
+import org.ejml.data.FixedMatrix2_64F;
+import org.ejml.data.FixedMatrix2x2_64F;
+import org.ejml.ops.ConvertMatrixType;
+
+/**
+ * KalmanFilterWithControl's arithmetic for 2 states, 2 measurements and 2
+ * controls, on EJML's fixed-size matrices.  Their operations are unrolled and
+ * nothing is allocated after construction.
+ */
+class FixedKalmanFilter2 implements FixedKalmanFilter {
+	// kinematics description
+	private final FixedMatrix2x2_64F F = new FixedMatrix2x2_64F(), Q = new FixedMatrix2x2_64F(), H = new FixedMatrix2x2_64F(), B = new FixedMatrix2x2_64F();
+
+	// system state estimate
+	private final FixedMatrix2_64F x = new FixedMatrix2_64F();
+	private final FixedMatrix2x2_64F P = new FixedMatrix2x2_64F();
+
+	// scratch space
+	private final FixedMatrix2x2_64F a = new FixedMatrix2x2_64F(), b = new FixedMatrix2x2_64F(), s = new FixedMatrix2x2_64F(), k = new FixedMatrix2x2_64F();
+	private final FixedMatrix2_64F h = new FixedMatrix2_64F(), v = new FixedMatrix2_64F(), w = new FixedMatrix2_64F();
+
+	@Override
+	public void configure(DenseMatrix64F F, DenseMatrix64F Q, DenseMatrix64F H, DenseMatrix64F B) {
+		ConvertMatrixType.convert(F, this.F);
+		ConvertMatrixType.convert(Q, this.Q);
+		ConvertMatrixType.convert(H, this.H);
+		ConvertMatrixType.convert(B, this.B);
+	}
+
+	@Override
+	public void setF(DenseMatrix64F F) {
+		ConvertMatrixType.convert(F, this.F);
+	}
+
+	@Override
+	public void setState(DenseMatrix64F x, DenseMatrix64F P) {
+		this.x.a1 = x.get(0); this.x.a2 = x.get(1);
+		ConvertMatrixType.convert(P, this.P);
+	}
+
+	@Override
+	public void predict(DenseMatrix64F u) {
+		w.a1 = u.get(0); w.a2 = u.get(1);
+		// x = F x + B u
+		FixedOps2.mult(F, x, v);
+		FixedOps2.mult(B, w, h);
+		FixedOps2.add(v, h, x);
+
+		// P = F P F' + Q
+		FixedOps2.mult(F, P, a);
+		FixedOps2.multTransB(a, F, P);
+		FixedOps2.addEquals(P, Q);
+	}
+
+	@Override
+	public void update(DenseMatrix64F z, DenseMatrix64F R) {
+		// y = z - H x
+		v.a1 = z.get(0); v.a2 = z.get(1);
+		FixedOps2.mult(H, x, w);
+		FixedOps2.subtractEquals(v, w);
+
+		// S = H P H' + R
+		FixedOps2.mult(H, P, a);
+		FixedOps2.multTransB(a, H, s);
+		ConvertMatrixType.convert(R, b);
+		FixedOps2.addEquals(s, b);
+
+		// K = PH'S^(-1)
+		FixedOps2.invert(s, b);
+		FixedOps2.multTransB(P, H, s);
+		FixedOps2.mult(s, b, k);
+
+		// x = x + Ky
+		FixedOps2.mult(k, v, w);
+		FixedOps2.addEquals(x, w);
+
+		// P = (I-kH)P = P - KHP
+		FixedOps2.mult(k, a, b);
+		FixedOps2.subtractEquals(P, b);
+	}
+
+	@Override
+	public void updateScalar(int row, double z, double r) {
+		// y = z - h x, PH' and HP for this row, and s = h P h' + r
+		FixedOps2.extractRow(H, row, h);
+		double y = z - FixedOps2.dot(h, x);
+		FixedOps2.mult(P, h, v);
+		FixedOps2.mult(h, P, w);
+		double s = FixedOps2.dot(h, v) + r;
+
+		// K = PH'/s, x = x + Ky, P = P - K HP
+		FixedOps2.divide(v, s);
+		x.a1 += v.a1 * y;
+		x.a2 += v.a2 * y;
+		P.a11 -= v.a1 * w.a1; P.a12 -= v.a1 * w.a2;
+		P.a21 -= v.a2 * w.a1; P.a22 -= v.a2 * w.a2;
+	}
+
+	@Override
+	public void getState(DenseMatrix64F out) {
+		double[] data = out.data;
+		data[0] = x.a1; data[1] = x.a2;
+	}
+
+	@Override
+	public void getCovariance(DenseMatrix64F out) {
+		ConvertMatrixType.convert(P, out);
+	}
+}
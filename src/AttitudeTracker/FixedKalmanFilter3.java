@@ -0,0 +1,115 @@
+package AttitudeTracker;
+
+import org.ejml.alg.fixed.FixedOps3;
+import org.ejml.data.DenseMatrix64F;
+import org.ejml.data.FixedMatrix3_64F;
+import org.ejml.data.FixedMatrix3x3_64F;
+import org.ejml.ops.ConvertMatrixType;
+
+/**
+ * KalmanFilterWithControl's arithmetic for 3 states, 3 measurements and 3
+ * controls, on EJML's fixed-size matrices.  Their operations are unrolled and
+ * nothing is allocated after construction.
+ */
+class FixedKalmanFilter3 implements FixedKalmanFilter {
+	// kinematics description
+	private final FixedMatrix3x3_64F F = new FixedMatrix3x3_64F(), Q = new FixedMatrix3x3_64F(), H = new FixedMatrix3x3_64F(), B = new FixedMatrix3x3_64F();
+
+	// system state estimate
+	private final FixedMatrix3_64F x = new FixedMatrix3_64F();
+	private final FixedMatrix3x3_64F P = new FixedMatrix3x3_64F();
+
+	// scratch space
+	private final FixedMatrix3x3_64F a = new FixedMatrix3x3_64F(), b = new FixedMatrix3x3_64F(), s = new FixedMatrix3x3_64F(), k = new FixedMatrix3x3_64F();
+	private final FixedMatrix3_64F h = new FixedMatrix3_64F(), v = new FixedMatrix3_64F(), w = new FixedMatrix3_64F();
+
+	@Override
+	public void configure(DenseMatrix64F F, DenseMatrix64F Q, DenseMatrix64F H, DenseMatrix64F B) {
+		ConvertMatrixType.convert(F, this.F);
+		ConvertMatrixType.convert(Q, this.Q);
+		ConvertMatrixType.convert(H, this.H);
+		ConvertMatrixType.convert(B, this.B);
+	}
+
+	@Override
+	public void setF(DenseMatrix64F F) {
+		ConvertMatrixType.convert(F, this.F);
+	}
+
+	@Override
+	public void setState(DenseMatrix64F x, DenseMatrix64F P) {
+		this.x.a1 = x.get(0); this.x.a2 = x.get(1); this.x.a3 = x.get(2);
+		ConvertMatrixType.convert(P, this.P);
+	}
+
+	@Override
+	public void predict(DenseMatrix64F u) {
+		w.a1 = u.get(0); w.a2 = u.get(1); w.a3 = u.get(2);
+		// x = F x + B u
+		FixedOps3.mult(F, x, v);
+		FixedOps3.mult(B, w, h);
+		FixedOps3.add(v, h, x);
+
+		// P = F P F' + Q
+		FixedOps3.mult(F, P, a);
+		FixedOps3.multTransB(a, F, P);
+		FixedOps3.addEquals(P, Q);
+	}
+
+	@Override
+	public void update(DenseMatrix64F z, DenseMatrix64F R) {
+		// y = z - H x
+		v.a1 = z.get(0); v.a2 = z.get(1); v.a3 = z.get(2);
+		FixedOps3.mult(H, x, w);
+		FixedOps3.subtractEquals(v, w);
+
+		// S = H P H' + R
+		FixedOps3.mult(H, P, a);
+		FixedOps3.multTransB(a, H, s);
+		ConvertMatrixType.convert(R, b);
+		FixedOps3.addEquals(s, b);
+
+		// K = PH'S^(-1)
+		FixedOps3.invert(s, b);
+		FixedOps3.multTransB(P, H, s);
+		FixedOps3.mult(s, b, k);
+
+		// x = x + Ky
+		FixedOps3.mult(k, v, w);
+		FixedOps3.addEquals(x, w);
+
+		// P = (I-kH)P = P - KHP
+		FixedOps3.mult(k, a, b);
+		FixedOps3.subtractEquals(P, b);
+	}
+
+	@Override
+	public void updateScalar(int row, double z, double r) {
+		// y = z - h x, PH' and HP for this row, and s = h P h' + r
+		FixedOps3.extractRow(H, row, h);
+		double y = z - FixedOps3.dot(h, x);
+		FixedOps3.mult(P, h, v);
+		FixedOps3.mult(h, P, w);
+		double s = FixedOps3.dot(h, v) + r;
+
+		// K = PH'/s, x = x + Ky, P = P - K HP
+		FixedOps3.divide(v, s);
+		x.a1 += v.a1 * y;
+		x.a2 += v.a2 * y;
+		x.a3 += v.a3 * y;
+		P.a11 -= v.a1 * w.a1; P.a12 -= v.a1 * w.a2; P.a13 -= v.a1 * w.a3;
+		P.a21 -= v.a2 * w.a1; P.a22 -= v.a2 * w.a2; P.a23 -= v.a2 * w.a3;
+		P.a31 -= v.a3 * w.a1; P.a32 -= v.a3 * w.a2; P.a33 -= v.a3 * w.a3;
+	}
+
+	@Override
+	public void getState(DenseMatrix64F out) {
+		double[] data = out.data;
+		data[0] = x.a1; data[1] = x.a2; data[2] = x.a3;
+	}
+
+	@Override
+	public void getCovariance(DenseMatrix64F out) {
+		ConvertMatrixType.convert(P, out);
+	}
+}
@@ -0,0 +1,117 @@
+package AttitudeTracker;
+
+import org.ejml.alg.fixed.FixedOps4;
+import org.ejml.data.DenseMatrix64F;
+import org.ejml.data.FixedMatrix4_64F;
+import org.ejml.data.FixedMatrix4x4_64F;
+import org.ejml.ops.ConvertMatrixType;
+
+/**
+ * KalmanFilterWithControl's arithmetic for 4 states, 4 measurements and 4
+ * controls, on EJML's fixed-size matrices.  Their operations are unrolled and
+ * nothing is allocated after construction.
+ */
+class FixedKalmanFilter4 implements FixedKalmanFilter {
+	// kinematics description
+	private final FixedMatrix4x4_64F F = new FixedMatrix4x4_64F(), Q = new FixedMatrix4x4_64F(), H = new FixedMatrix4x4_64F(), B = new FixedMatrix4x4_64F();
+
+	// system state estimate
+	private final FixedMatrix4_64F x = new FixedMatrix4_64F();
+	private final FixedMatrix4x4_64F P = new FixedMatrix4x4_64F();
+
+	// scratch space
+	private final FixedMatrix4x4_64F a = new FixedMatrix4x4_64F(), b = new FixedMatrix4x4_64F(), s = new FixedMatrix4x4_64F(), k = new FixedMatrix4x4_64F();
+	private final FixedMatrix4_64F h = new FixedMatrix4_64F(), v = new FixedMatrix4_64F(), w = new FixedMatrix4_64F();
+
+	@Override
+	public void configure(DenseMatrix64F F, DenseMatrix64F Q, DenseMatrix64F H, DenseMatrix64F B) {
+		ConvertMatrixType.convert(F, this.F);
+		ConvertMatrixType.convert(Q, this.Q);
+		ConvertMatrixType.convert(H, this.H);
+		ConvertMatrixType.convert(B, this.B);
+	}
+
+	@Override
+	public void setF(DenseMatrix64F F) {
+		ConvertMatrixType.convert(F, this.F);
+	}
+
+	@Override
+	public void setState(DenseMatrix64F x, DenseMatrix64F P) {
+		this.x.a1 = x.get(0); this.x.a2 = x.get(1); this.x.a3 = x.get(2); this.x.a4 = x.get(3);
+		ConvertMatrixType.convert(P, this.P);
+	}
+
+	@Override
+	public void predict(DenseMatrix64F u) {
+		w.a1 = u.get(0); w.a2 = u.get(1); w.a3 = u.get(2); w.a4 = u.get(3);
+		// x = F x + B u
+		FixedOps4.mult(F, x, v);
+		FixedOps4.mult(B, w, h);
+		FixedOps4.add(v, h, x);
+
+		// P = F P F' + Q
+		FixedOps4.mult(F, P, a);
+		FixedOps4.multTransB(a, F, P);
+		FixedOps4.addEquals(P, Q);
+	}
+
+	@Override
+	public void update(DenseMatrix64F z, DenseMatrix64F R) {
+		// y = z - H x
+		v.a1 = z.get(0); v.a2 = z.get(1); v.a3 = z.get(2); v.a4 = z.get(3);
+		FixedOps4.mult(H, x, w);
+		FixedOps4.subtractEquals(v, w);
+
+		// S = H P H' + R
+		FixedOps4.mult(H, P, a);
+		FixedOps4.multTransB(a, H, s);
+		ConvertMatrixType.convert(R, b);
+		FixedOps4.addEquals(s, b);
+
+		// K = PH'S^(-1)
+		FixedOps4.invert(s, b);
+		FixedOps4.multTransB(P, H, s);
+		FixedOps4.mult(s, b, k);
+
+		// x = x + Ky
+		FixedOps4.mult(k, v, w);
+		FixedOps4.addEquals(x, w);
+
+		// P = (I-kH)P = P - KHP
+		FixedOps4.mult(k, a, b);
+		FixedOps4.subtractEquals(P, b);
+	}
+
+	@Override
+	public void updateScalar(int row, double z, double r) {
+		// y = z - h x, PH' and HP for this row, and s = h P h' + r
+		FixedOps4.extractRow(H, row, h);
+		double y = z - FixedOps4.dot(h, x);
+		FixedOps4.mult(P, h, v);
+		FixedOps4.mult(h, P, w);
+		double s = FixedOps4.dot(h, v) + r;
+
+		// K = PH'/s, x = x + Ky, P = P - K HP
+		FixedOps4.divide(v, s);
+		x.a1 += v.a1 * y;
+		x.a2 += v.a2 * y;
+		x.a3 += v.a3 * y;
+		x.a4 += v.a4 * y;
+		P.a11 -= v.a1 * w.a1; P.a12 -= v.a1 * w.a2; P.a13 -= v.a1 * w.a3; P.a14 -= v.a1 * w.a4;
+		P.a21 -= v.a2 * w.a1; P.a22 -= v.a2 * w.a2; P.a23 -= v.a2 * w.a3; P.a24 -= v.a2 * w.a4;
+		P.a31 -= v.a3 * w.a1; P.a32 -= v.a3 * w.a2; P.a33 -= v.a3 * w.a3; P.a34 -= v.a3 * w.a4;
+		P.a41 -= v.a4 * w.a1; P.a42 -= v.a4 * w.a2; P.a43 -= v.a4 * w.a3; P.a44 -= v.a4 * w.a4;
+	}
+
+	@Override
+	public void getState(DenseMatrix64F out) {
+		double[] data = out.data;
+		data[0] = x.a1; data[1] = x.a2; data[2] = x.a3; data[3] = x.a4;
+	}
+
+	@Override
+	public void getCovariance(DenseMatrix64F out) {
+		ConvertMatrixType.convert(P, out);
+	}
+}
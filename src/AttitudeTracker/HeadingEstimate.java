@@ -0,0 +1,11 @@
+package AttitudeTracker;
+
+/**
+ * A heading estimate and the time of the sample it was computed from.  Mutable so
+ * readers can reuse one instance rather than allocate; see PublishedHeadingEstimate.
+ */
+public class HeadingEstimate {
+	public double time;
+	public double heading;
+	public double angularVelocity;
+}
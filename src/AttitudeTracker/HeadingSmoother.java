@@ -0,0 +1,244 @@
+package AttitudeTracker;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Offline Rauch-Tung-Striebel smoother for a recorded session.  Where
+ * FilteredCompassReader estimates the heading at each sample from the samples up to
+ * it, this uses the whole recording, so it gives the best track for analysis after
+ * the fact.
+ *
+ * The forward pass runs a FilteredCompassReader (the batch form, see
+ * FilteredCompassReader.updateEstimates()), and records the filtered state and
+ * covariance of every sample.  The backward pass then corrects each sample using the
+ * one after it.  The records are kept in a fixed-size buffer and spilled to a temp
+ * file a chunk at a time when the recording is longer than that, so memory use
+ * doesn't depend on the length of the recording.  Neither pass allocates per
+ * sample, and the backward pass costs about the same as the forward one.
+ */
+public class HeadingSmoother {
+	/** Receives the smoothed estimates, in time order */
+	public interface SmoothedSampleHandler {
+		void onSample(double time, double heading, double angularVelocity, double headingVariance);
+	}
+
+	public static final int DEFAULT_CHUNK_SAMPLES = 1 << 16;
+
+	// One record per sample: time, then x and P, filtered and later smoothed
+	private static final int TIME = 0, X0 = 1, X1 = 2, P00 = 3, P01 = 4, P10 = 5, P11 = 6;
+	private static final int RECORD_DOUBLES = 7;
+	private static final int RECORD_BYTES = 8 * RECORD_DOUBLES;
+
+	final double qHeading, qRate, rHeading, rDTheta, rRate, modelScale;
+	final int chunkSamples;
+	final ByteBuffer chunk;
+
+	public HeadingSmoother() {
+		this(FilteredCompassReader.DEFAULT_Q_HEADING, FilteredCompassReader.DEFAULT_Q_RATE,
+				FilteredCompassReader.DEFAULT_R_HEADING, FilteredCompassReader.DEFAULT_R_DTHETA,
+				FilteredCompassReader.DEFAULT_R_RATE, FilteredCompassReader.DEFAULT_MODEL_SCALE, DEFAULT_CHUNK_SAMPLES);
+	}
+
+	/**
+	 * Parameters are as for the FilteredCompassReader constructor.
+	 *
+	 * @param chunk_samples number of samples held in memory at once
+	 */
+	public HeadingSmoother(double q_heading, double q_rate, double r_heading, double r_dtheta, double r_rate,
+			double model_scale, int chunk_samples) {
+		qHeading = q_heading;
+		qRate = q_rate;
+		rHeading = r_heading;
+		rDTheta = r_dtheta;
+		rRate = r_rate;
+		modelScale = model_scale;
+		chunkSamples = chunk_samples;
+		chunk = ByteBuffer.allocateDirect(chunk_samples * RECORD_BYTES).order(ByteOrder.nativeOrder());
+	}
+
+	/**
+	 * Smooth the rest of a recording, from the player's current position, and pass
+	 * every smoothed sample to the handler.
+	 *
+	 * @return the number of samples
+	 */
+	public long smooth(CsvDataPlayer player, SmoothedSampleHandler handler) throws IOException {
+		RandomAccessFile file = null;
+		File temp = null;
+		try {
+			// Forward pass, through the reader's own batch update one sample at a time,
+			// so the filtered estimates are exactly those of FilteredCompassReader
+			FilteredCompassReader reader = new FilteredCompassReader(qHeading, qRate, rHeading, rDTheta, rRate, modelScale);
+			TwoStateFilter kf = reader.kf;
+			double[] now = new double[1], theta_measured = new double[1], w = new double[1];
+			double[] heading_out = new double[1], w_out = new double[1];
+			long n = 0;
+			int in_chunk = 0;
+			while(player.hasMoreData()) {
+				now[0] = player.getTime();
+				theta_measured[0] = player.getHeading();
+				w[0] = player.getW();
+				player.advancePlayback();
+				reader.updateEstimates(now, theta_measured, w, 1, heading_out, w_out);
+
+				if(in_chunk == chunkSamples) {
+					if(file == null) {
+						temp = File.createTempFile("heading-smoother", ".tmp");
+						file = new RandomAccessFile(temp, "rw");
+					}
+					writeChunk(file, n / chunkSamples - 1, in_chunk);
+					in_chunk = 0;
+				}
+				double[] p = kf.getCovariance().data;
+				int base = in_chunk * RECORD_BYTES;
+				chunk.putDouble(base + 8 * TIME, now[0]);
+				chunk.putDouble(base + 8 * X0, kf.getX0());
+				chunk.putDouble(base + 8 * X1, kf.getX1());
+				chunk.putDouble(base + 8 * P00, p[0]);
+				chunk.putDouble(base + 8 * P01, p[1]);
+				chunk.putDouble(base + 8 * P10, p[2]);
+				chunk.putDouble(base + 8 * P11, p[3]);
+				++in_chunk;
+				++n;
+			}
+			if(n == 0) {
+				return 0;
+			}
+			long num_chunks = (n + chunkSamples - 1) / chunkSamples;
+
+			// Backward pass, last chunk first.  The last chunk is still in memory.
+			// Smoothed estimate of the sample after the current one: x0, x1, then P
+			double[] s = new double[6];
+			double next_time = 0;
+			boolean last = true;
+			for(long c = num_chunks - 1; c >= 0; --c) {
+				int count = (int)Math.min(chunkSamples, n - c * chunkSamples);
+				if(file != null && c != num_chunks - 1) {
+					readChunk(file, c, count);
+				}
+				for(int i = count - 1; i >= 0; --i) {
+					int base = i * RECORD_BYTES;
+					double time = chunk.getDouble(base + 8 * TIME);
+					if(last) {
+						// The final filtered estimate is already smoothed
+						for(int j = 0; j < 6; ++j) {
+							s[j] = chunk.getDouble(base + 8 * (X0 + j));
+						}
+						last = false;
+					} else if(time != next_time) {
+						backwardStep((next_time - time) / modelScale, qHeading, qRate,
+								chunk.getDouble(base + 8 * X0), chunk.getDouble(base + 8 * X1),
+								chunk.getDouble(base + 8 * P00), chunk.getDouble(base + 8 * P01),
+								chunk.getDouble(base + 8 * P10), chunk.getDouble(base + 8 * P11), s);
+					}
+					// else a repeated timestamp, which the filter skipped: same estimate
+					next_time = time;
+					for(int j = 0; j < 6; ++j) {
+						chunk.putDouble(base + 8 * (X0 + j), s[j]);
+					}
+				}
+				if(file != null && c != 0) {
+					writeChunk(file, c, count);
+				}
+			}
+
+			// Hand out the results in time order.  The first chunk is in memory.
+			for(long c = 0; c < num_chunks; ++c) {
+				int count = (int)Math.min(chunkSamples, n - c * chunkSamples);
+				if(c != 0) {
+					readChunk(file, c, count);
+				}
+				for(int i = 0; i < count; ++i) {
+					int base = i * RECORD_BYTES;
+					handler.onSample(chunk.getDouble(base + 8 * TIME), wrap(chunk.getDouble(base + 8 * X0)),
+							chunk.getDouble(base + 8 * X1), chunk.getDouble(base + 8 * P00));
+				}
+			}
+			return n;
+		} finally {
+			if(file != null) {
+				file.close();
+			}
+			if(temp != null) {
+				temp.delete();
+			}
+		}
+	}
+
+	/**
+	 * One RTS backward step for FilteredCompassReader's model.  Takes the filtered
+	 * estimate of a sample and, in s, the smoothed estimate of the next one, and
+	 * replaces s with the smoothed estimate of this sample.  s holds x0, x1, then P
+	 * row-major.
+	 *
+	 * @param a dt / model scale between this sample and the next
+	 */
+	static void backwardStep(double a, double q_heading, double q_rate,
+			double xf0, double xf1, double pf00, double pf01, double pf10, double pf11, double[] s) {
+		// Prediction of the next sample, F = [1 a; 0 1]
+		double xp0 = xf0 + a * xf1;
+		double xp1 = xf1;
+		double fp00 = pf00 + a * pf10, fp01 = pf01 + a * pf11;
+		double pp00 = fp00 + fp01 * a + q_heading, pp01 = fp01;
+		double pp10 = pf10 + pf11 * a,             pp11 = pf11 + q_rate;
+
+		// C = Pf F' Pp^(-1)
+		double pft00 = pf00 + pf01 * a, pft01 = pf01;
+		double pft10 = pf10 + pf11 * a, pft11 = pf11;
+		double inv_det = 1.0 / (pp00 * pp11 - pp01 * pp10);
+		double c00 = (pft00 * pp11 - pft01 * pp10) * inv_det;
+		double c01 = (pft01 * pp00 - pft00 * pp01) * inv_det;
+		double c10 = (pft10 * pp11 - pft11 * pp10) * inv_det;
+		double c11 = (pft11 * pp00 - pft10 * pp01) * inv_det;
+
+		// xs = xf + C (xs_next - xp)
+		double dx0 = s[0] - xp0, dx1 = s[1] - xp1;
+		s[0] = xf0 + c00 * dx0 + c01 * dx1;
+		s[1] = xf1 + c10 * dx0 + c11 * dx1;
+
+		// Ps = Pf + C (Ps_next - Pp) C'
+		double d00 = s[2] - pp00, d01 = s[3] - pp01;
+		double d10 = s[4] - pp10, d11 = s[5] - pp11;
+		double cd00 = c00 * d00 + c01 * d10, cd01 = c00 * d01 + c01 * d11;
+		double cd10 = c10 * d00 + c11 * d10, cd11 = c10 * d01 + c11 * d11;
+		s[2] = pf00 + cd00 * c00 + cd01 * c01;
+		s[3] = pf01 + cd00 * c10 + cd01 * c11;
+		s[4] = pf10 + cd10 * c00 + cd11 * c01;
+		s[5] = pf11 + cd10 * c10 + cd11 * c11;
+	}
+
+	/** Same as FilteredCompassReader.getFilteredHeading() */
+	private static double wrap(double theta) {
+		double heading = theta % (2 * Math.PI);
+		if(heading >=  Math.PI) { heading -= 2 * Math.PI; }
+		if(heading <= -Math.PI) { heading += 2 * Math.PI; }
+		return heading;
+	}
+
+	private void writeChunk(RandomAccessFile file, long c, int count) throws IOException {
+		FileChannel channel = file.getChannel();
+		chunk.clear().limit(count * RECORD_BYTES);
+		long position = c * chunkSamples * (long)RECORD_BYTES;
+		while(chunk.hasRemaining()) {
+			position += channel.write(chunk, position);
+		}
+	}
+
+	private void readChunk(RandomAccessFile file, long c, int count) throws IOException {
+		FileChannel channel = file.getChannel();
+		chunk.clear().limit(count * RECORD_BYTES);
+		long position = c * chunkSamples * (long)RECORD_BYTES;
+		while(chunk.hasRemaining()) {
+			int read = channel.read(chunk, position);
+			if(read < 0) {
+				throw new IOException("Smoother temp file is short");
+			}
+			position += read;
+		}
+	}
+}
@@ -43,6 +43,9 @@ public class KalmanFilterSimple {
     // sytem state estimate
     private SimpleMatrix x,P;
 
+    // scratch space for updateScalar()
+    private double[] ph, hp;
+
     public void configure(DenseMatrix64F F, DenseMatrix64F Q, DenseMatrix64F H) {
         setF(F);
         this.Q = new SimpleMatrix(Q);
@@ -69,7 +72,23 @@ public class KalmanFilterSimple {
         P = F.mult(P).mult(F.transpose()).plus(Q);
     }
 
+    /**
+     * Incorporate a measurement.  If R is diagonal the measurements are independent
+     * and are incorporated one row at a time, which needs no matrix inverse or
+     * allocation; a measurement given as NaN is then skipped, for a sensor that
+     * didn't report this time.  Otherwise the full update below is used.
+     */
     public void update(DenseMatrix64F _z, DenseMatrix64F _R) {
+        if(isDiagonal(_R)) {
+            for(int row = 0; row < _z.numRows; row++) {
+                double z = _z.get(row, 0);
+                if(z == z) {
+                    updateScalar(row, z, _R.get(row, row));
+                }
+            }
+            return;
+        }
+
         // a fast way to make the matrices usable by SimpleMatrix
         SimpleMatrix z = SimpleMatrix.wrap(_z);
         SimpleMatrix R = SimpleMatrix.wrap(_R);
@@ -90,6 +109,66 @@ public class KalmanFilterSimple {
         P = P.minus(K.mult(H).mult(P));
     }
 
+    /**
+     * Incorporate a single measurement, row 'row' of H, with noise variance r.
+     * Updates x and P in place.
+     */
+    public void updateScalar(int row, double z, double r) {
+        double[] xd = x.getMatrix().data;
+        if(ph == null || ph.length != xd.length) {
+            ph = new double[xd.length];
+            hp = new double[xd.length];
+        }
+        updateRow(H.getMatrix().data, row, xd, P.getMatrix().data, z, r, ph, hp);
+    }
+
+    /**
+     * The in-place update of updateScalar(), on the row-major data of H, x and P,
+     * shared with KalmanFilterWithControl.  ph and hp are scratch arrays as long as x.
+     */
+    static void updateRow(double[] h, int row, double[] xd, double[] pd, double z, double r,
+            double[] ph, double[] hp) {
+        int n = xd.length;
+        int h0 = row * n;
+
+        // y = z - h x, PH' and HP for this row, and s = h P h' + r
+        double y = z;
+        for(int i = 0; i < n; i++) {
+            y -= h[h0 + i] * xd[i];
+            double sum_ph = 0, sum_hp = 0;
+            for(int j = 0; j < n; j++) {
+                sum_ph += pd[i * n + j] * h[h0 + j];
+                sum_hp += h[h0 + j] * pd[j * n + i];
+            }
+            ph[i] = sum_ph;
+            hp[i] = sum_hp;
+        }
+        double s = r;
+        for(int i = 0; i < n; i++) {
+            s += h[h0 + i] * ph[i];
+        }
+
+        // K = PH'/s, x = x + Ky, P = P - K HP
+        for(int i = 0; i < n; i++) {
+            double k = ph[i] / s;
+            xd[i] += k * y;
+            for(int j = 0; j < n; j++) {
+                pd[i * n + j] -= k * hp[j];
+            }
+        }
+    }
+
+    static boolean isDiagonal(DenseMatrix64F R) {
+        for(int i = 0; i < R.numRows; i++) {
+            for(int j = 0; j < R.numCols; j++) {
+                if(i != j && R.get(i, j) != 0) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
     public DenseMatrix64F getState() {
         return x.getMatrix();
     }
@@ -35,6 +35,11 @@ import org.ejml.simple.SimpleMatrix;
  * seamlessly implemented using both SimpleMatrix and DenseMatrix64F.  This allows code
  * to be quickly prototyped or to be written either by novices or experts.
  *
+ * When configured with 2, 3 or 4 states and as many measurements and controls,
+ * the work is done instead by a FixedKalmanFilter on EJML's fixed-size matrices,
+ * which is several times faster and allocates nothing.  getState() and
+ * getCovariance() then return copies that are refreshed on each call.
+ *
  * @author Peter Abeles
  */
 public class KalmanFilterWithControl {
@@ -45,11 +50,46 @@ public class KalmanFilterWithControl {
     // sytem state estimate
     private SimpleMatrix x,P;
 
+    // scratch space for updateScalar()
+    private double[] ph, hp;
+
+    // unrolled implementation for small filters, or null; see configure()
+    private final boolean allowFixed;
+    private FixedKalmanFilter fixed;
+    private DenseMatrix64F stateView, covarianceView;
+
+    public KalmanFilterWithControl() {
+        this(true);
+    }
+
+    /**
+     * @param allowFixed whether to use a FixedKalmanFilter when the dimensions allow
+     */
+    KalmanFilterWithControl(boolean allowFixed) {
+        this.allowFixed = allowFixed;
+    }
+
     public void configure(DenseMatrix64F F, DenseMatrix64F Q, DenseMatrix64F H, DenseMatrix64F B) {
-        setF(F);
+        // the old fixed filter holds the live estimate; x and P are stale
+        if(fixed != null && x != null) {
+            x = new SimpleMatrix(getState());
+            P = new SimpleMatrix(getCovariance());
+        }
+        this.F = new SimpleMatrix(F);
         this.Q = new SimpleMatrix(Q);
         this.H = new SimpleMatrix(H);
         this.B = new SimpleMatrix(B);
+
+        fixed = allowFixed ? FixedKalmanFilter.create(F.numRows, H.numRows, B.numCols) : null;
+        if(fixed != null) {
+            fixed.configure(F, Q, H, B);
+            stateView = new DenseMatrix64F(F.numRows, 1);
+            covarianceView = new DenseMatrix64F(F.numRows, F.numRows);
+            // a state of another size waits for setState(), as it does without the fixed filter
+            if(x != null && x.numRows() == F.numRows) {
+                fixed.setState(x.getMatrix(), P.getMatrix());
+            }
+        }
     }
     
     /** 
@@ -57,14 +97,27 @@ public class KalmanFilterWithControl {
      * why this is not fixed at initialization.
      *
      */
-    public void setF(DenseMatrix64F F) { this.F = new SimpleMatrix(F); }
+    public void setF(DenseMatrix64F F) {
+        this.F = new SimpleMatrix(F);
+        if(fixed != null) {
+            fixed.setF(F);
+        }
+    }
 
     public void setState(DenseMatrix64F x, DenseMatrix64F P) {
         this.x = new SimpleMatrix(x);
         this.P = new SimpleMatrix(P);
+        if(fixed != null) {
+            fixed.setState(x, P);
+        }
     }
 
     public void predict(DenseMatrix64F _u) {
+        if(fixed != null) {
+            fixed.predict(_u);
+            return;
+        }
+
         // a fast way to make the matrices usable by SimpleMatrix
         SimpleMatrix u = SimpleMatrix.wrap(_u);
         
@@ -75,7 +128,27 @@ public class KalmanFilterWithControl {
         P = F.mult(P).mult(F.transpose()).plus(Q);
     }
 
+    /**
+     * Incorporate a measurement.  If R is diagonal the measurements are independent
+     * and are incorporated one row at a time, which needs no matrix inverse or
+     * allocation; a measurement given as NaN is then skipped, for a sensor that
+     * didn't report this time.  Otherwise the full update below is used.
+     */
     public void update(DenseMatrix64F _z, DenseMatrix64F _R) {
+        if(KalmanFilterSimple.isDiagonal(_R)) {
+            for(int row = 0; row < _z.numRows; row++) {
+                double z = _z.get(row, 0);
+                if(z == z) {
+                    updateScalar(row, z, _R.get(row, row));
+                }
+            }
+            return;
+        }
+        if(fixed != null) {
+            fixed.update(_z, _R);
+            return;
+        }
+
         // a fast way to make the matrices usable by SimpleMatrix
         SimpleMatrix z = SimpleMatrix.wrap(_z);
         SimpleMatrix R = SimpleMatrix.wrap(_R);
@@ -96,11 +169,36 @@ public class KalmanFilterWithControl {
         P = P.minus(K.mult(H).mult(P));
     }
 
+    /**
+     * Incorporate a single measurement, row 'row' of H, with noise variance r.
+     * Updates x and P in place.
+     */
+    public void updateScalar(int row, double z, double r) {
+        if(fixed != null) {
+            fixed.updateScalar(row, z, r);
+            return;
+        }
+        double[] xd = x.getMatrix().data;
+        if(ph == null || ph.length != xd.length) {
+            ph = new double[xd.length];
+            hp = new double[xd.length];
+        }
+        KalmanFilterSimple.updateRow(H.getMatrix().data, row, xd, P.getMatrix().data, z, r, ph, hp);
+    }
+
     public DenseMatrix64F getState() {
+        if(fixed != null) {
+            fixed.getState(stateView);
+            return stateView;
+        }
         return x.getMatrix();
     }
 
     public DenseMatrix64F getCovariance() {
+        if(fixed != null) {
+            fixed.getCovariance(covarianceView);
+            return covarianceView;
+        }
         return P.getMatrix();
     }
 }
@@ -0,0 +1,197 @@
+package AttitudeTracker;
+
+/**
+ * Fits the hard- and soft-iron correction of a magnetometer continuously, from the
+ * raw readings of the two axes in the yaw plane, so the hard-iron offsets passed to
+ * CsvDataPlayer don't have to be measured for each robot and venue.
+ *
+ * As the robot turns, the raw readings trace an ellipse: hard iron (fields fixed to
+ * the robot) moves its centre off the origin, and soft iron (material that bends the
+ * earth's field) stretches it.  The ellipse is fitted as the conic
+ *   A u^2 + B u v + C v^2 + D u + E v = 1
+ * by recursive least squares on the five coefficients, one reading at a time, with
+ * a forgetting factor so the fit follows slow drift.  u and v are the readings
+ * relative to the initial hard-iron guess and divided by the distance of the first
+ * reading from it, which keeps the problem well conditioned whatever the units.
+ * Each update is a fixed amount of arithmetic on a 5x5 matrix and allocates
+ * nothing.
+ *
+ * The correction is then the centre of the ellipse (hard iron), and the symmetric
+ * square root of the conic's quadratic part (soft iron), which maps the ellipse
+ * to a circle without rotating it, so headings keep the sensor's zero.
+ *
+ * Readings less than MIN_SPACING (in the scaled units) from the last one used are
+ * skipped.  With a forgetting factor, a robot sitting still would otherwise wind the
+ * fit up on a single point.  Until enough readings have been used and the fit is a
+ * plausible ellipse, getHeading() subtracts the initial hard-iron guess like
+ * CsvDataPlayer does.
+ */
+public class MagnetometerCalibrator {
+	public static final double DEFAULT_FORGETTING = 0.999;
+	public static final int DEFAULT_MIN_SAMPLES = 50;
+	/** Largest ratio of the ellipse's axes accepted as a calibration */
+	public static final double MAX_AXIS_RATIO = 2.0;
+	public static final double MIN_SPACING = 0.02;
+	// Initial covariance of the coefficients; large, since the first guess is rough
+	static final double P_INIT = 1000.0;
+
+	private final double lambda;
+	private final int minSamples;
+	private final double refA, refB;
+	private double scale = 0;
+
+	// Coefficients A, B, C, D, E and their covariance, row-major
+	private final double[] theta = new double[5];
+	private final double[] p = new double[25];
+	private final double[] phi = new double[5];
+	private final double[] pphi = new double[5];
+	private double lastU, lastV;
+	private long used = 0;
+
+	// Correction derived from the coefficients after each update
+	private boolean calibrated = false;
+	private double centerU, centerV;
+	private double s00, s01, s11;
+
+	public MagnetometerCalibrator(double initial_a, double initial_b) {
+		this(initial_a, initial_b, DEFAULT_FORGETTING, DEFAULT_MIN_SAMPLES);
+	}
+
+	/**
+	 * @param initial_a   initial guess of the hard-iron offset of axis A, raw units
+	 * @param initial_b   initial guess of the hard-iron offset of axis B, raw units
+	 * @param forgetting  RLS forgetting factor, just under 1; readings older than
+	 *                    about 1 / (1 - forgetting) used readings have little weight
+	 * @param min_samples readings to use before trusting the fit
+	 */
+	public MagnetometerCalibrator(double initial_a, double initial_b, double forgetting, int min_samples) {
+		refA = initial_a;
+		refB = initial_b;
+		lambda = forgetting;
+		minSamples = min_samples;
+		reset();
+	}
+
+	/** Forget the fit and start again from the initial guess */
+	public void reset() {
+		// A circle of radius 1 around the initial guess
+		theta[0] = 1; theta[1] = 0; theta[2] = 1; theta[3] = 0; theta[4] = 0;
+		for(int i = 0; i < 25; ++i) {
+			p[i] = (i % 6 == 0) ? P_INIT : 0.0;
+		}
+		used = 0;
+		calibrated = false;
+	}
+
+	/**
+	 * Add one raw reading to the fit.  Skips NaN readings and readings too close to
+	 * the last one used.
+	 *
+	 * @return whether the reading was used
+	 */
+	public boolean addSample(double magA, double magB) {
+		double da = magA - refA, db = magB - refB;
+		if(scale == 0) {
+			double r = Math.sqrt(da * da + db * db);
+			if(!(r > 0)) { return false; } // also NaN
+			scale = r;
+		}
+		double u = da / scale, v = db / scale;
+		if(u != u || v != v) {
+			return false;
+		}
+		if(used > 0 && Math.abs(u - lastU) + Math.abs(v - lastV) < MIN_SPACING) {
+			return false;
+		}
+		lastU = u;
+		lastV = v;
+
+		// RLS: k = P phi / (lambda + phi' P phi), theta += k (1 - phi' theta),
+		// P = (P - k phi' P) / lambda.  P stays symmetric so P phi = (phi' P)'.
+		phi[0] = u * u; phi[1] = u * v; phi[2] = v * v; phi[3] = u; phi[4] = v;
+		double denom = lambda, err = 1.0;
+		for(int i = 0; i < 5; ++i) {
+			double sum = 0;
+			for(int j = 0; j < 5; ++j) {
+				sum += p[5 * i + j] * phi[j];
+			}
+			pphi[i] = sum;
+			denom += phi[i] * sum;
+			err -= phi[i] * theta[i];
+		}
+		double inv_denom = 1.0 / denom;
+		for(int i = 0; i < 5; ++i) {
+			theta[i] += pphi[i] * inv_denom * err;
+		}
+		double inv_lambda = 1.0 / lambda;
+		for(int i = 0; i < 5; ++i) {
+			double ki = pphi[i] * inv_denom;
+			for(int j = i; j < 5; ++j) {
+				double pij = (p[5 * i + j] - ki * pphi[j]) * inv_lambda;
+				p[5 * i + j] = pij;
+				p[5 * j + i] = pij;
+			}
+		}
+		++used;
+		updateCorrection();
+		return true;
+	}
+
+	private void updateCorrection() {
+		double a = theta[0], b = theta[1], c = theta[2], d = theta[3], e = theta[4];
+		// Quadratic part M = [a b/2; b/2 c] must be positive definite for an ellipse
+		double det_m = a * c - b * b / 4;
+		if(used < minSamples || !(a > 0) || !(det_m > 0)) {
+			calibrated = false;
+			return;
+		}
+		// Axis ratio is the square root of the ratio of M's eigenvalues
+		double half_trace = (a + c) / 2;
+		double spread = Math.sqrt(half_trace * half_trace - det_m);
+		if((half_trace + spread) > MAX_AXIS_RATIO * MAX_AXIS_RATIO * (half_trace - spread)) {
+			calibrated = false;
+			return;
+		}
+		// Centre, where the gradient is zero: [2a b; b 2c] [u v]' = -[d e]'
+		double det = 4 * det_m;
+		centerU = (b * e - 2 * c * d) / det;
+		centerV = (b * d - 2 * a * e) / det;
+		// Symmetric square root of M: (M + sqrt(det M) I) / sqrt(trace M + 2 sqrt(det M))
+		double root_det = Math.sqrt(det_m);
+		double inv_t = 1.0 / Math.sqrt(a + c + 2 * root_det);
+		s00 = (a + root_det) * inv_t;
+		s01 = (b / 2) * inv_t;
+		s11 = (c + root_det) * inv_t;
+		calibrated = true;
+	}
+
+	/** @return heading of a raw reading, corrected with the current fit, -pi to pi */
+	public double getHeading(double magA, double magB) {
+		if(!calibrated) {
+			return Math.atan2(magA - refA, magB - refB);
+		}
+		double u = (magA - refA) / scale - centerU;
+		double v = (magB - refB) / scale - centerV;
+		return Math.atan2(s00 * u + s01 * v, s01 * u + s11 * v);
+	}
+
+	/** @return whether the fit is in use, rather than the initial guess */
+	public boolean isCalibrated() {
+		return calibrated;
+	}
+
+	/** @return number of readings used in the fit so far */
+	public long getSamplesUsed() {
+		return used;
+	}
+
+	/** @return current hard-iron offset of axis A, in raw units */
+	public double getHardIronA() {
+		return calibrated ? refA + scale * centerU : refA;
+	}
+
+	/** @return current hard-iron offset of axis B, in raw units */
+	public double getHardIronB() {
+		return calibrated ? refB + scale * centerV : refB;
+	}
+}
@@ -0,0 +1,10 @@
+package AttitudeTracker;
+
+/**
+ * Raw readings of the two magnetometer axes in the yaw plane, before any hard- or
+ * soft-iron correction.  The heading is atan2(A, B) once they are corrected.
+ */
+public interface MagnetometerProvider {
+	public double getMagA();
+	public double getMagB();
+}
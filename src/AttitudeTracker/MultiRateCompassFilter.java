@@ -0,0 +1,349 @@
+package AttitudeTracker;
+
+/**
+ * Heading filter for a gyro and a compass that report independently and at
+ * different rates, e.g. a 200Hz gyro and a 20Hz magnetometer.  Rather than polling
+ * both sensors together every tick as FilteredCompassReader does, each sensor pushes
+ * timestamped samples as they arrive; they are merged into time order and each one
+ * is applied on its own:
+ *   - a gyro sample predicts the state forward to its time and then updates the rate
+ *   - a compass sample predicts forward to its time and then updates the heading
+ * Both updates are scalar (one measurement row), so there is no matrix inverse, and
+ * a compass reading is used exactly once instead of on every gyro tick.
+ *
+ * The state is the same as FilteredCompassReader's: unwrapped heading, and angular
+ * velocity in the gyro's units, with the heading advancing by rate * dt / model
+ * scale.  Process noise is given per second and scaled by the time each prediction
+ * covers, so the result doesn't depend on how often samples arrive.
+ *
+ * Samples from each sensor must arrive in time order, and within one call to
+ * processPending() the two sensors may be arbitrarily interleaved.  A sample can
+ * also arrive after newer samples from the other sensor have been applied, e.g. a
+ * compass reading delayed on the CAN bus.  For that the filter keeps a preallocated
+ * ring of the recent samples it has applied, each with the filter state after it.
+ * A late sample rolls the filter back to the last state before its timestamp, is
+ * applied there, and the newer samples are re-applied on top.  Replay work is
+ * bounded per call to processPending(); a late sample that would need more than the
+ * remaining budget, or that is older than the whole history, is dropped and counted
+ * rather than applied at the wrong time.
+ *
+ * Single threaded; to feed it from driver threads, drain SensorSampleRings into
+ * compassHandler and gyroHandler from the filter thread.
+ */
+public class MultiRateCompassFilter {
+	public static final double DEFAULT_Q_HEADING = 0.01;  // rad^2/s
+	public static final double DEFAULT_Q_RATE    = 2000;  // (gyro units)^2/s
+	public static final double DEFAULT_R_HEADING = 0.0076; // rad^2, about 5 degrees
+	public static final double DEFAULT_R_RATE    = 1.0;   // (gyro units)^2
+	public static final int DEFAULT_QUEUE_CAPACITY = 64;
+	public static final int DEFAULT_HISTORY_CAPACITY = 256;
+	public static final int DEFAULT_MAX_REPLAY = 64;
+
+	private final double qHeading, qRate, rHeading, rRate, modelScale;
+
+	// Pending samples, one FIFO per sensor, each in time order
+	private final double[] compassTime, compassValue, gyroTime, gyroValue;
+	private final int mask;
+	private int compassHead, compassTail, gyroHead, gyroTail;
+
+	// State: unwrapped heading and rate, covariance symmetric so p10 == p01
+	private double x0, x1;
+	private double p00 = 1, p01 = 0, p11 = 1;
+	private double stateTime;
+	private boolean haveHeading = false, haveTime = false;
+	private long lateSamples = 0, droppedSamples = 0;
+
+	// Applied samples, oldest first starting at historyFirst, each with the state after it
+	private final double[] hTime, hValue, hX0, hX1, hP00, hP01, hP11;
+	private final boolean[] hCompass, hHaveHeading;
+	private final int historyMask;
+	private final int maxReplay;
+	private long historyFirst = 0;
+	private int historyCount = 0;
+	private int replayBudget;
+	private final PublishedHeadingEstimate publishedEstimate = new PublishedHeadingEstimate();
+
+	/** For draining a SensorSampleRing of compass readings into this filter */
+	public final SensorSampleRing.SampleHandler compassHandler = this::addCompassSample;
+	/** For draining a SensorSampleRing of gyro readings into this filter */
+	public final SensorSampleRing.SampleHandler gyroHandler = this::addGyroSample;
+
+	public MultiRateCompassFilter() {
+		this(DEFAULT_Q_HEADING, DEFAULT_Q_RATE, DEFAULT_R_HEADING, DEFAULT_R_RATE,
+				FilteredCompassReader.DEFAULT_MODEL_SCALE, DEFAULT_QUEUE_CAPACITY,
+				DEFAULT_HISTORY_CAPACITY, DEFAULT_MAX_REPLAY);
+	}
+
+	/**
+	 * @param q_heading   process noise of the heading, per second
+	 * @param q_rate      process noise of the angular velocity, per second
+	 * @param r_heading   measurement noise variance of the compass heading
+	 * @param r_rate      measurement noise variance of the gyro rate
+	 * @param model_scale the heading advances by rate * dt / model_scale
+	 * @param queue_capacity pending samples held per sensor, rounded up to a power of two
+	 * @param history_capacity applied samples kept for rolling back, rounded up to a
+	 *                         power of two; 0 drops every late sample
+	 * @param max_replay       samples that may be re-applied per call to processPending()
+	 */
+	public MultiRateCompassFilter(double q_heading, double q_rate, double r_heading, double r_rate,
+			double model_scale, int queue_capacity, int history_capacity, int max_replay) {
+		qHeading = q_heading;
+		qRate = q_rate;
+		rHeading = r_heading;
+		rRate = r_rate;
+		modelScale = model_scale;
+		int size = Integer.highestOneBit(Math.max(2, queue_capacity) - 1) << 1;
+		mask = size - 1;
+		compassTime  = new double[size];
+		compassValue = new double[size];
+		gyroTime     = new double[size];
+		gyroValue    = new double[size];
+
+		int history = (history_capacity <= 0) ? 0 : Integer.highestOneBit(Math.max(2, history_capacity) - 1) << 1;
+		historyMask = history - 1;
+		hTime  = new double[history];
+		hValue = new double[history];
+		hX0    = new double[history];
+		hX1    = new double[history];
+		hP00   = new double[history];
+		hP01   = new double[history];
+		hP11   = new double[history];
+		hCompass     = new boolean[history];
+		hHaveHeading = new boolean[history];
+		maxReplay = max_replay;
+	}
+
+	/** Queue a compass reading, -pi to pi.  If the queue is full, pending samples are processed first. */
+	public void addCompassSample(double time, double heading) {
+		if(compassTail - compassHead > mask) { processPending(); }
+		int slot = compassTail++ & mask;
+		compassTime[slot] = time;
+		compassValue[slot] = heading;
+	}
+
+	/** Queue a gyro reading.  If the queue is full, pending samples are processed first. */
+	public void addGyroSample(double time, double w) {
+		if(gyroTail - gyroHead > mask) { processPending(); }
+		int slot = gyroTail++ & mask;
+		gyroTime[slot] = time;
+		gyroValue[slot] = w;
+	}
+
+	/**
+	 * Apply every queued sample, oldest first, and publish the result.
+	 *
+	 * @return the number of samples applied
+	 */
+	public int processPending() {
+		replayBudget = maxReplay;
+		int n = 0;
+		while(compassHead != compassTail || gyroHead != gyroTail) {
+			boolean compass_next;
+			if(compassHead == compassTail) {
+				compass_next = false;
+			} else if(gyroHead == gyroTail) {
+				compass_next = true;
+			} else {
+				// On a tie take the gyro first, so the rate is current for the heading update
+				compass_next = compassTime[compassHead & mask] < gyroTime[gyroHead & mask];
+			}
+			if(compass_next) {
+				int slot = compassHead++ & mask;
+				apply(compassTime[slot], compassValue[slot], true);
+			} else {
+				int slot = gyroHead++ & mask;
+				apply(gyroTime[slot], gyroValue[slot], false);
+			}
+			++n;
+		}
+		if(n > 0 && haveHeading) {
+			publishedEstimate.publish(stateTime, getFilteredHeading(), x1);
+		}
+		return n;
+	}
+
+	private void apply(double time, double value, boolean compass) {
+		if(haveTime && time < stateTime) {
+			++lateSamples;
+			applyLate(time, value, compass);
+			return;
+		}
+		update(time, value, compass);
+		if(historyMask < 0) { return; }
+		if(historyCount > historyMask) {
+			// Full, forget the oldest
+			++historyFirst;
+			--historyCount;
+		}
+		record((int)(historyFirst + historyCount++) & historyMask, time, value, compass);
+	}
+
+	/**
+	 * Roll back to the newest recorded state at or before time, apply the sample
+	 * there, and re-apply the samples after it, within the replay budget.
+	 */
+	private void applyLate(double time, double value, boolean compass) {
+		if(historyMask < 0) {
+			++droppedSamples;
+			return;
+		}
+		// When full the oldest entry will be forgotten to make room, so it can't be used
+		int first = (historyCount > historyMask) ? 1 : 0;
+		// Newest entry at or before the sample
+		int j = historyCount - 1;
+		while(j >= first && hTime[(int)(historyFirst + j) & historyMask] > time) { --j; }
+		int replay = historyCount - 1 - j;
+		if(j < first || replay + 1 > replayBudget) {
+			++droppedSamples;
+			return;
+		}
+		replayBudget -= replay + 1;
+		if(first > 0) {
+			// Only now that the sample is going in
+			++historyFirst;
+			--historyCount;
+			--j;
+		}
+
+		// Shift the newer entries up one to make room after entry j
+		for(int k = historyCount - 1; k > j; --k) {
+			copy((int)(historyFirst + k) & historyMask, (int)(historyFirst + k + 1) & historyMask);
+		}
+		++historyCount;
+
+		// Roll back, apply, and replay
+		restore((int)(historyFirst + j) & historyMask);
+		int slot = (int)(historyFirst + j + 1) & historyMask;
+		update(time, value, compass);
+		record(slot, time, value, compass);
+		for(int k = j + 2; k < historyCount; ++k) {
+			slot = (int)(historyFirst + k) & historyMask;
+			update(hTime[slot], hValue[slot], hCompass[slot]);
+			record(slot, hTime[slot], hValue[slot], hCompass[slot]);
+		}
+	}
+
+	private void update(double time, double value, boolean compass) {
+		if(compass) {
+			updateHeading(time, value);
+		} else {
+			updateRate(time, value);
+		}
+	}
+
+	private void record(int slot, double time, double value, boolean compass) {
+		hTime[slot] = time;
+		hValue[slot] = value;
+		hCompass[slot] = compass;
+		hX0[slot] = x0;
+		hX1[slot] = x1;
+		hP00[slot] = p00;
+		hP01[slot] = p01;
+		hP11[slot] = p11;
+		hHaveHeading[slot] = haveHeading;
+	}
+
+	private void copy(int from, int to) {
+		hTime[to] = hTime[from];
+		hValue[to] = hValue[from];
+		hCompass[to] = hCompass[from];
+		hX0[to] = hX0[from];
+		hX1[to] = hX1[from];
+		hP00[to] = hP00[from];
+		hP01[to] = hP01[from];
+		hP11[to] = hP11[from];
+		hHaveHeading[to] = hHaveHeading[from];
+	}
+
+	private void restore(int slot) {
+		x0 = hX0[slot];
+		x1 = hX1[slot];
+		p00 = hP00[slot];
+		p01 = hP01[slot];
+		p11 = hP11[slot];
+		haveHeading = hHaveHeading[slot];
+		stateTime = hTime[slot];
+	}
+
+	/** Predict the state forward to the given time, F = [1 dt/scale; 0 1] */
+	private void predictTo(double time) {
+		if(!haveTime) {
+			stateTime = time;
+			haveTime = true;
+			return;
+		}
+		double dt = time - stateTime;
+		double a = dt / modelScale;
+		x0 += a * x1;
+		p00 += a * (2 * p01 + a * p11) + qHeading * dt;
+		p01 += a * p11;
+		p11 += qRate * dt;
+		stateTime = time;
+	}
+
+	private void updateRate(double time, double w) {
+		predictTo(time);
+		// Scalar update, H = [0 1]
+		double s = p11 + rRate;
+		double k0 = p01 / s, k1 = p11 / s;
+		double y = w - x1;
+		x0 += k0 * y;
+		x1 += k1 * y;
+		p00 -= k0 * p01;
+		p01 -= k0 * p11;
+		p11 -= k1 * p11;
+	}
+
+	private void updateHeading(double time, double heading) {
+		predictTo(time);
+		if(!haveHeading) {
+			x0 = heading;
+			p00 = rHeading;
+			p01 = 0;
+			haveHeading = true;
+			return;
+		}
+		// Unwrap to the turn nearest the prediction, then scalar update, H = [1 0]
+		double z = heading + 2 * Math.PI * Math.rint((x0 - heading) / (2 * Math.PI));
+		double s = p00 + rHeading;
+		double k0 = p00 / s, k1 = p01 / s;
+		double y = z - x0;
+		x0 += k0 * y;
+		x1 += k1 * y;
+		p11 -= k1 * p01;
+		p01 -= k1 * p00;
+		p00 -= k0 * p00;
+	}
+
+	/** @return the heading estimate, -pi to pi */
+	public double getFilteredHeading() {
+		return x0 - 2 * Math.PI * Math.rint(x0 / (2 * Math.PI));
+	}
+
+	public double getFilteredAngularVelocity() {
+		return x1;
+	}
+
+	/** @return the time of the latest sample applied */
+	public double getTime() {
+		return stateTime;
+	}
+
+	/** Samples that arrived after a later sample from the other sensor had been applied */
+	public long getLateSampleCount() {
+		return lateSamples;
+	}
+
+	/** Late samples that couldn't be rolled back for and were dropped */
+	public long getDroppedSampleCount() {
+		return droppedSamples;
+	}
+
+	/**
+	 * The latest estimate, for reading from threads other than the one running the
+	 * filter.  Updated by processPending().
+	 */
+	public PublishedHeadingEstimate getPublishedEstimate() {
+		return publishedEstimate;
+	}
+}
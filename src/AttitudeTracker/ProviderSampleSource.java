@@ -0,0 +1,25 @@
+package AttitudeTracker;
+
+/**
+ * Adapts separate heading, rate and time providers to a CompassSampleSource.  The
+ * values are read in the order rate, heading, time, as FilteredCompassReader always
+ * has, but are only as consistent as the providers make them.
+ */
+public class ProviderSampleSource implements CompassSampleSource {
+	final HeadingProvider headingProvider;
+	final HeadingRateProvider headingRateProvider;
+	final TimeProvider timeProvider;
+
+	public ProviderSampleSource(HeadingProvider hp, HeadingRateProvider hrp, TimeProvider tp) {
+		headingProvider = hp;
+		headingRateProvider = hrp;
+		timeProvider = tp;
+	}
+
+	@Override
+	public void readSample(CompassSample sample) {
+		sample.w = headingRateProvider.getW();
+		sample.heading = headingProvider.getHeading();
+		sample.time = timeProvider.getTime();
+	}
+}
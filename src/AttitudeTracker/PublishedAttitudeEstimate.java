@@ -0,0 +1,65 @@
+package AttitudeTracker;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The latest AttitudeTracker estimate, written by the filter thread and readable
+ * from any number of other threads without locking.  The same sequence lock as
+ * PublishedHeadingEstimate, over all three axes, so a reader never sees roll,
+ * pitch and yaw from different updates.
+ *
+ * Only one thread may call publish().
+ */
+public class PublishedAttitudeEstimate {
+	private static final int SEQ = 0, TIME = 1, ROLL = 2, PITCH = 3, YAW = 4;
+	private static final int ROLL_RATE = 5, PITCH_RATE = 6, YAW_RATE = 7;
+	// The doubles are stored as their raw bits so all the slots can be atomic
+	private final AtomicLongArray slots = new AtomicLongArray(8);
+
+	public void publish(double time, double roll, double pitch, double yaw,
+			double rollRate, double pitchRate, double yawRate) {
+		long seq = slots.get(SEQ);
+		slots.lazySet(SEQ, seq + 1);
+		slots.lazySet(TIME, Double.doubleToRawLongBits(time));
+		slots.lazySet(ROLL, Double.doubleToRawLongBits(roll));
+		slots.lazySet(PITCH, Double.doubleToRawLongBits(pitch));
+		slots.lazySet(YAW, Double.doubleToRawLongBits(yaw));
+		slots.lazySet(ROLL_RATE, Double.doubleToRawLongBits(rollRate));
+		slots.lazySet(PITCH_RATE, Double.doubleToRawLongBits(pitchRate));
+		slots.lazySet(YAW_RATE, Double.doubleToRawLongBits(yawRate));
+		slots.lazySet(SEQ, seq + 2);
+	}
+
+	/**
+	 * Copy a consistent snapshot of the latest estimate into out.
+	 *
+	 * @return false if nothing has been published yet
+	 */
+	public boolean read(AttitudeEstimate out) {
+		while(true) {
+			long before = slots.get(SEQ);
+			if((before & 1) != 0) {
+				// Write in progress
+				continue;
+			}
+			long time = slots.get(TIME);
+			long roll = slots.get(ROLL), pitch = slots.get(PITCH), yaw = slots.get(YAW);
+			long roll_rate = slots.get(ROLL_RATE), pitch_rate = slots.get(PITCH_RATE), yaw_rate = slots.get(YAW_RATE);
+			if(slots.get(SEQ) == before) {
+				out.time = Double.longBitsToDouble(time);
+				out.roll = Double.longBitsToDouble(roll);
+				out.pitch = Double.longBitsToDouble(pitch);
+				out.yaw = Double.longBitsToDouble(yaw);
+				out.rollRate = Double.longBitsToDouble(roll_rate);
+				out.pitchRate = Double.longBitsToDouble(pitch_rate);
+				out.yawRate = Double.longBitsToDouble(yaw_rate);
+				return before != 0;
+			}
+		}
+	}
+
+	/** Number of estimates published so far */
+	public long getUpdateCount() {
+		return slots.get(SEQ) >>> 1;
+	}
+}
@@ -0,0 +1,59 @@
+package AttitudeTracker;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The latest heading estimate, written by the filter thread and readable from any
+ * number of other threads without locking.  It is a sequence lock: the writer bumps
+ * a sequence number to odd, writes the fields, and bumps it to even again, and a
+ * reader retries if the sequence number was odd or changed while it was reading.
+ * The writer never waits for readers and neither side allocates, and a reader can
+ * never see the time, heading and rate from two different updates.
+ *
+ * Only one thread may call publish().
+ */
+public class PublishedHeadingEstimate {
+	private static final int SEQ = 0, TIME = 1, HEADING = 2, RATE = 3;
+	// The doubles are stored as their raw bits so all four slots can be atomic
+	private final AtomicLongArray slots = new AtomicLongArray(4);
+
+	public void publish(double time, double heading, double angularVelocity) {
+		long seq = slots.get(SEQ);
+		// Each lazySet is a release store, so the odd sequence number is visible
+		// before any field changes, and the fields before the even one
+		slots.lazySet(SEQ, seq + 1);
+		slots.lazySet(TIME, Double.doubleToRawLongBits(time));
+		slots.lazySet(HEADING, Double.doubleToRawLongBits(heading));
+		slots.lazySet(RATE, Double.doubleToRawLongBits(angularVelocity));
+		slots.lazySet(SEQ, seq + 2);
+	}
+
+	/**
+	 * Copy a consistent snapshot of the latest estimate into out.
+	 * 
+	 * @return false if nothing has been published yet
+	 */
+	public boolean read(HeadingEstimate out) {
+		while(true) {
+			long before = slots.get(SEQ);
+			if((before & 1) != 0) {
+				// Write in progress
+				continue;
+			}
+			long time = slots.get(TIME);
+			long heading = slots.get(HEADING);
+			long rate = slots.get(RATE);
+			if(slots.get(SEQ) == before) {
+				out.time = Double.longBitsToDouble(time);
+				out.heading = Double.longBitsToDouble(heading);
+				out.angularVelocity = Double.longBitsToDouble(rate);
+				return before != 0;
+			}
+		}
+	}
+
+	/** Number of estimates published so far */
+	public long getUpdateCount() {
+		return slots.get(SEQ) >>> 1;
+	}
+}
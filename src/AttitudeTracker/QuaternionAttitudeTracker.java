@@ -0,0 +1,167 @@
+package AttitudeTracker;
+
+/**
+ * A fused 3-axis attitude estimator.  Takes the same inputs as AttitudeTracker, but
+ * rather than three independent single-axis filters it keeps one unit quaternion for
+ * the whole attitude, so it has no gimbal lock and stays accurate at any roll and
+ * pitch.
+ *
+ * This is a complementary filter in the style of Mahony: the attitude is propagated
+ * by integrating the bias-corrected gyro rates, and nudged toward the measured
+ * attitude by a proportional correction, while an integral correction estimates the
+ * gyro bias.  The gains set the crossover: below about KP rad/s the compass dominates,
+ * above it the gyro does.
+ *
+ * Per update (after the first) the cost is 6 sin/cos to turn the measured angles into
+ * a quaternion, one square root to renormalize, and about 100 multiply-adds.  Nothing
+ * is allocated.  The Euler angle getters cost a further 2 atan2 and an asin each
+ * time they are called, so callers that only need the attitude for further math
+ * should use the quaternion or getRotationMatrix().
+ *
+ * Conventions: angles are Z-Y-X (yaw, then pitch, then roll) as in aerospace, and
+ * gyro rates are about the body axes.  The quaternion rotates body to world.
+ */
+public class QuaternionAttitudeTracker {
+	public static final double DEFAULT_KP = 1.0;  // 1/s, compass correction
+	public static final double DEFAULT_KI = 0.05; // 1/s^2, gyro bias correction
+
+	private final double kP, kI;
+
+	// Attitude, body to world
+	private double qw = 1, qx, qy, qz;
+	// Gyro bias estimate, body axes
+	private double bx, by, bz;
+	// Last bias-corrected gyro reading
+	private double rateX, rateY, rateZ;
+
+	private boolean haveFirstReading = false;
+	private double timeNow;
+
+	public QuaternionAttitudeTracker() {
+		this(DEFAULT_KP, DEFAULT_KI);
+	}
+
+	public QuaternionAttitudeTracker(double kp, double ki) {
+		kP = kp;
+		kI = ki;
+	}
+
+	/**
+	 * Provide the filter with sensor data with which to update the attitude estimate.
+	 * Same arguments as AttitudeTracker.updateSensorData().
+	 *
+	 * @param time_now in ms since epoch - used to measure the time between readings
+	 * @param magX  measured angular position in roll  axis, in radians
+	 * @param magY  measured angular position in pitch axis, in radians
+	 * @param magZ  measured angular position in yaw   axis, in radians
+	 * @param gyroX measured angular velocity in roll  axis, in radians per second
+	 * @param gyroY measured angular velocity in pitch axis, in radians per second
+	 * @param gyroZ measured angular velocity in yaw   axis, in radians per second
+	 */
+	public void updateSensorData(double timeNow,
+			double magX,  double magY,  double magZ,
+			double gyroX, double gyroY, double gyroZ) {
+		// Measured attitude as a quaternion
+		double cr = Math.cos(magX / 2), sr = Math.sin(magX / 2);
+		double cp = Math.cos(magY / 2), sp = Math.sin(magY / 2);
+		double cy = Math.cos(magZ / 2), sy = Math.sin(magZ / 2);
+		double mw = cr * cp * cy + sr * sp * sy;
+		double mx = sr * cp * cy - cr * sp * sy;
+		double my = cr * sp * cy + sr * cp * sy;
+		double mz = cr * cp * sy - sr * sp * cy;
+
+		if(!haveFirstReading) {
+			qw = mw; qx = mx; qy = my; qz = mz;
+			rateX = gyroX; rateY = gyroY; rateZ = gyroZ;
+			haveFirstReading = true;
+			this.timeNow = timeNow;
+			return;
+		}
+		double dt = (timeNow - this.timeNow) / 1000.0; // ms to s
+		this.timeNow = timeNow;
+
+		// Rotation from the estimate to the measurement, in the body frame: conj(q) * m
+		double ew = qw * mw + qx * mx + qy * my + qz * mz;
+		double ex = qw * mx - qx * mw - qy * mz + qz * my;
+		double ey = qw * my + qx * mz - qy * mw - qz * mx;
+		double ez = qw * mz - qx * my + qy * mx - qz * mw;
+		// q and -q are the same attitude; take the short way round.  Twice the vector
+		// part is the rotation vector for small errors and keeps the right direction
+		// for large ones.
+		double sign = (ew < 0) ? -2.0 : 2.0;
+		ex *= sign; ey *= sign; ez *= sign;
+
+		// Integral term tracks the gyro bias
+		bx -= kI * ex * dt;
+		by -= kI * ey * dt;
+		bz -= kI * ez * dt;
+		rateX = gyroX - bx;
+		rateY = gyroY - by;
+		rateZ = gyroZ - bz;
+
+		// Propagate: dq/dt = q * (0, w) / 2, with the proportional correction added to w
+		double wx = rateX + kP * ex;
+		double wy = rateY + kP * ey;
+		double wz = rateZ + kP * ez;
+		double h = 0.5 * dt;
+		double nw = qw + h * (-qx * wx - qy * wy - qz * wz);
+		double nx = qx + h * ( qw * wx + qy * wz - qz * wy);
+		double ny = qy + h * ( qw * wy - qx * wz + qz * wx);
+		double nz = qz + h * ( qw * wz + qx * wy - qy * wx);
+		double inv_norm = 1.0 / Math.sqrt(nw * nw + nx * nx + ny * ny + nz * nz);
+		qw = nw * inv_norm;
+		qx = nx * inv_norm;
+		qy = ny * inv_norm;
+		qz = nz * inv_norm;
+	}
+
+	public double getQuaternionW() { return qw; }
+	public double getQuaternionX() { return qx; }
+	public double getQuaternionY() { return qy; }
+	public double getQuaternionZ() { return qz; }
+
+	/**
+	 * Write the body-to-world rotation matrix, row-major, into the first 9 elements
+	 * of out.
+	 */
+	public void getRotationMatrix(double[] out) {
+		double xx = qx * qx, yy = qy * qy, zz = qz * qz;
+		double xy = qx * qy, xz = qx * qz, yz = qy * qz;
+		double wx = qw * qx, wy = qw * qy, wz = qw * qz;
+		out[0] = 1 - 2 * (yy + zz); out[1] = 2 * (xy - wz);     out[2] = 2 * (xz + wy);
+		out[3] = 2 * (xy + wz);     out[4] = 1 - 2 * (xx + zz); out[5] = 2 * (yz - wx);
+		out[6] = 2 * (xz - wy);     out[7] = 2 * (yz + wx);     out[8] = 1 - 2 * (xx + yy);
+	}
+
+	/** @return roll angle estimate, in radians from -pi to pi */
+	public double getRoll() {
+		return Math.atan2(2 * (qw * qx + qy * qz), 1 - 2 * (qx * qx + qy * qy));
+	}
+
+	/**
+	 * @return pitch angle estimate, in radians from -pi/2 to pi/2.  At exactly +/-pi/2
+	 * roll and yaw are not separately defined, though the quaternion still is.
+	 */
+	public double getPitch() {
+		double s = 2 * (qw * qy - qz * qx);
+		return Math.asin(Math.max(-1.0, Math.min(1.0, s)));
+	}
+
+	/** @return yaw angle estimate, in radians from -pi to pi */
+	public double getYaw() {
+		return Math.atan2(2 * (qw * qz + qx * qy), 1 - 2 * (qy * qy + qz * qz));
+	}
+
+	/** @return bias-corrected angular rate about the body X axis, in radians per second */
+	public double getRollRate()  { return rateX; }
+	/** @return bias-corrected angular rate about the body Y axis, in radians per second */
+	public double getPitchRate() { return rateY; }
+	/** @return bias-corrected angular rate about the body Z axis, in radians per second */
+	public double getYawRate()   { return rateZ; }
+
+	/** @return the angle, in radians, of the rotation between two attitudes given as unit quaternions */
+	public static double angleBetween(double aw, double ax, double ay, double az, double bw, double bx, double by, double bz) {
+		double dot = Math.abs(aw * bw + ax * bx + ay * by + az * bz);
+		return 2 * Math.acos(Math.min(1.0, dot));
+	}
+}
@@ -0,0 +1,83 @@
+package AttitudeTracker;
+
+import java.io.IOException;
+
+/**
+ * Describes how to play back one of the recordings bundled with the project: which
+ * CSV columns hold the yaw magnetometer axes and gyro, and the corrections to apply.
+ * Anything that wants to run over "all the recorded data" should use ALL rather than
+ * hardcoding filenames and column numbers.
+ */
+public class RecordedSession {
+	/*
+	 * The 2016 recordings were taken with the sensor lying flat, so yaw is in the
+	 * magnetometer X/Y plane and on gyro Z.  No hard-iron figures were taken for
+	 * that mounting.  The 2017 recordings have the sensor on its side: yaw is in
+	 * magnetometer Y/Z and on gyro Y.  The Kovaka file lists its own hard-iron
+	 * corrections in its (removed) header and has no time column.
+	 */
+	public static final RecordedSession[] ALL = {
+		new RecordedSession("2016-12-14 test_data_spinning.csv",   0, 1,    0.0,    0.0, 5, -0.10,  8.0,  6, 1),
+		new RecordedSession("2016-12-14 test_data_stationary.csv", 0, 1,    0.0,    0.0, 5, -0.10,  8.0,  6, 1),
+		new RecordedSession("2017-1-13 IMU sensor data with corrections - Kovaka.csv",
+		                                                           1, 2,  -36.0, -221.5, 4, -0.10, 30.0, -1, 0),
+		new RecordedSession("2017-1-19 recording.csv",             1, 2, -164.0,  -25.0, 4, -0.10, 30.0,  7, 0),
+		new RecordedSession("2017-1-28 jerky turns.csv",           1, 2, -164.0,  -25.0, 4, -0.10, 30.0,  7, 0),
+		new RecordedSession("2017-1-28 smooth 3 turns each way.csv", 1, 2, -164.0, -25.0, 4, -0.10, 30.0,  7, 0),
+	};
+
+	public final String filename;
+	public final int colMagAxA;
+	public final int colMagAxB;
+	public final double magCorrA;
+	public final double magCorrB;
+	public final int colW;
+	public final double wMult;
+	public final double wOffset;
+	public final int colTime;
+	public final int headerRows;
+
+	RecordedSession(String filename, int col_mag_ax_a, int col_mag_ax_b, double mag_corr_a, double mag_corr_b, int col_w, double w_mult, double w_offset, int col_time, int header_rows) {
+		this.filename = filename;
+		colMagAxA = col_mag_ax_a;
+		colMagAxB = col_mag_ax_b;
+		magCorrA = mag_corr_a;
+		magCorrB = mag_corr_b;
+		colW = col_w;
+		wMult = w_mult;
+		wOffset = w_offset;
+		colTime = col_time;
+		headerRows = header_rows;
+	}
+
+	public CsvDataPlayer openPlayer() {
+		return new CsvDataPlayer(filename, colMagAxA, colMagAxB, magCorrA, magCorrB, colW, wMult, wOffset, colTime, headerRows);
+	}
+
+	/** Open a player with every column already parsed; see CsvDataPlayer.preparse() */
+	public CsvDataPlayer openPreparsedPlayer() {
+		CsvDataPlayer player = openPlayer();
+		player.preparse();
+		return player;
+	}
+
+	/** Write this recording in the binary session format; see BinarySessionFile */
+	public void convertToBinary(String binFilename) throws IOException {
+		BinarySessionFile.convertCsv(filename, binFilename, headerRows);
+	}
+
+	/** As convertToBinary(), with values stored in 8 (double) or 4 (float) bytes */
+	public void convertToBinary(String binFilename, int bytesPerValue) throws IOException {
+		BinarySessionFile.convertCsv(filename, binFilename, headerRows, bytesPerValue);
+	}
+
+	/** Open a binary copy of this recording made by convertToBinary() */
+	public BinarySessionPlayer openBinaryPlayer(String binFilename) throws IOException {
+		return new BinarySessionPlayer(binFilename, colMagAxA, colMagAxB, magCorrA, magCorrB, colW, wMult, wOffset, colTime);
+	}
+
+	@Override
+	public String toString() {
+		return filename;
+	}
+}
@@ -0,0 +1,519 @@
+package AttitudeTracker;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.csv.CSVRecord;
+
+/**
+ * Runs every configured filter over every recording it can find and checks the
+ * results against a baseline, so a change that makes a filter less accurate, slower
+ * or allocate more shows up as a failing run rather than a different-looking chart.
+ *
+ * Recordings are found by listing the CSV files in a directory; each must have an
+ * entry in RecordedSession.ALL, which knows its columns, and any that don't are
+ * reported and skipped.  Each recording is loaded, and each (recording, filter)
+ * pair scored, as its own task on the common fork-join pool.  For each pair the
+ * report gives:
+ *   - rms_deg, max_deg: one-step heading prediction error, as CompassFilterTuner
+ *     scores it, since the recordings have no ground truth
+ *   - wraps: times the filtered heading crossed +/-pi
+ *   - samples_per_s, bytes_per_sample: throughput and allocation of the filter
+ *     itself, timed over repeated passes of at least MIN_TIMED_NANOS in total
+ *     after WARMUP_NANOS of untimed ones.  Pairs are timed one at a time, after
+ *     the parallel part, and throughput should only be compared against a
+ *     baseline from the same machine.
+ *
+ * The report is a CSV file with one row per pair.  A previous report can be used as
+ * the baseline; a pair regresses if its RMS or max error grows by more than the
+ * accuracy tolerance (a fraction), its throughput drops by more than the throughput
+ * tolerance (a fraction), or it allocates more than ALLOCATION_SLACK_BYTES more per
+ * sample.  Throughput and allocation aren't checked for recordings shorter than
+ * MIN_TIMED_SAMPLES.
+ *
+ * Independently of the baseline, every recording is also stored as floats in the
+ * binary session format and played back through FilteredCompassReader in single
+ * precision, and the headings compared with the double-precision reader on the
+ * original CSV.  A recording fails if they ever differ by more than
+ * SINGLE_PRECISION_TOLERANCE_DEG.  The process exits with status 1 if anything
+ * regressed or failed.
+ *
+ * Usage: java AttitudeTracker.RegressionRunner [report file] [baseline file]
+ *            [accuracy tolerance] [throughput tolerance] [recording directory]
+ */
+public class RegressionRunner {
+	public static final String DEFAULT_REPORT = "regression-report.csv";
+	public static final String DEFAULT_BASELINE = "regression-baseline.csv";
+	public static final double DEFAULT_ACCURACY_TOLERANCE = 0.01;
+	public static final double DEFAULT_THROUGHPUT_TOLERANCE = 0.25;
+	public static final double ALLOCATION_SLACK_BYTES = 1.0;
+	public static final int MIN_TIMED_SAMPLES = 1000;
+	public static final long WARMUP_NANOS = 200 * 1000 * 1000;
+	public static final long MIN_TIMED_NANOS = 200 * 1000 * 1000;
+	public static final double SINGLE_PRECISION_TOLERANCE_DEG = 0.1;
+	static final String[] COLUMNS = { "recording", "filter", "samples", "rms_deg", "max_deg", "wraps",
+		"samples_per_s", "bytes_per_sample" };
+
+	/** A filter as the runner sees it */
+	interface FilterUnderTest {
+		String name();
+		/** Heading change per unit of output rate per second, for predicting ahead */
+		double modelScale();
+		/** Start a fresh filter; not timed */
+		void reset();
+		/** Filter the first count samples, writing the estimate after each */
+		void run(double[] time, double[] heading, double[] w, int count, double[] headingOut, double[] wOut);
+	}
+
+	/** The filters checked by default; each call returns new instances */
+	public static List<FilterUnderTest> defaultFilters() {
+		List<FilterUnderTest> filters = new ArrayList<FilterUnderTest>();
+		filters.add(new ReaderPerSample());
+		filters.add(new ReaderBatch());
+		filters.add(new MultiRate());
+		filters.add(new ReaderPerSample(true));
+		return filters;
+	}
+
+	/** One result row */
+	public static class Result {
+		public String recording, filter;
+		public long samples;
+		public double rmsDeg, maxDeg;
+		public long wraps;
+		public double samplesPerSecond, bytesPerSample;
+	}
+
+	public static void main(String[] args) throws IOException {
+		File report      = new File((args.length > 0) ? args[0] : DEFAULT_REPORT);
+		File baseline    = new File((args.length > 1) ? args[1] : DEFAULT_BASELINE);
+		double acc_tol   = (args.length > 2) ? Double.parseDouble(args[2]) : DEFAULT_ACCURACY_TOLERANCE;
+		double speed_tol = (args.length > 3) ? Double.parseDouble(args[3]) : DEFAULT_THROUGHPUT_TOLERANCE;
+		File dir         = new File((args.length > 4) ? args[4] : ".");
+
+		long start = System.nanoTime();
+		List<RecordedSession> sessions = discover(dir);
+		List<Result> results = run(sessions, ForkJoinPool.commonPool());
+		System.out.println("Ran " + results.size() + " recording/filter pairs in " + (System.nanoTime() - start) / 1e9 + " s");
+		writeReport(results, report);
+		for(Result r : results) {
+			System.out.println(String.format("%-60s %-30s rms %8.3f deg  max %8.3f deg  wraps %4d  %12.0f samples/s  %8.2f B/sample",
+					r.recording, r.filter, r.rmsDeg, r.maxDeg, r.wraps, r.samplesPerSecond, r.bytesPerSample));
+		}
+		System.out.println("Report written to " + report);
+
+		List<String> regressions = checkSinglePrecision(sessions, SINGLE_PRECISION_TOLERANCE_DEG);
+		if(baseline.exists()) {
+			regressions.addAll(compare(results, readReport(baseline), acc_tol, speed_tol));
+		} else {
+			System.out.println("No baseline at " + baseline + "; copy the report there to make one");
+		}
+		for(String regression : regressions) {
+			System.out.println("REGRESSION: " + regression);
+		}
+		if(!regressions.isEmpty()) {
+			System.exit(1);
+		}
+		System.out.println("No regressions" + (baseline.exists() ? " against " + baseline : ""));
+	}
+
+	/**
+	 * Play each session from a float copy in the binary format through the
+	 * single-precision reader, and from the CSV through the double-precision one, and
+	 * print the largest difference in heading.
+	 *
+	 * @return a description of each session where that exceeds toleranceDeg
+	 */
+	public static List<String> checkSinglePrecision(List<RecordedSession> sessions, double toleranceDeg) throws IOException {
+		List<String> failures = new ArrayList<String>();
+		for(RecordedSession session : sessions) {
+			double deviation = singlePrecisionDeviationDeg(session);
+			System.out.println(String.format("%-60s float32 vs double: max heading difference %.5f deg",
+					new File(session.filename).getName(), deviation));
+			if(!(deviation <= toleranceDeg)) {
+				failures.add(new File(session.filename).getName() + ": float32 heading differs from double by "
+						+ deviation + " deg, more than " + toleranceDeg);
+			}
+		}
+		return failures;
+	}
+
+	/** @return the largest heading difference, in degrees, between the two pipelines */
+	static double singlePrecisionDeviationDeg(RecordedSession session) throws IOException {
+		Recording doubles = new Recording(session);
+		Recording floats = new Recording(session, 4);
+		if(floats.length != doubles.length) {
+			return Double.POSITIVE_INFINITY;
+		}
+		double[] heading_d = new double[doubles.length], w_d = new double[doubles.length];
+		double[] heading_f = new double[floats.length], w_f = new double[floats.length];
+		FilterUnderTest reference = new ReaderPerSample(false);
+		FilterUnderTest single = new ReaderPerSample(true);
+		reference.reset();
+		reference.run(doubles.time, doubles.heading, doubles.w, doubles.length, heading_d, w_d);
+		single.reset();
+		single.run(floats.time, floats.heading, floats.w, floats.length, heading_f, w_f);
+		double max = 0;
+		for(int i = 0; i < doubles.length; ++i) {
+			boolean nan_d = (heading_d[i] != heading_d[i]), nan_f = (heading_f[i] != heading_f[i]);
+			if(nan_d != nan_f) {
+				return Double.POSITIVE_INFINITY;
+			} else if(!nan_d) {
+				max = Math.max(max, Math.abs(Math.IEEEremainder(heading_f[i] - heading_d[i], 2 * Math.PI)));
+			}
+		}
+		return Math.toDegrees(max);
+	}
+
+	/**
+	 * @return the sessions in RecordedSession.ALL whose CSV file is in dir
+	 */
+	public static List<RecordedSession> discover(File dir) {
+		Map<String, RecordedSession> known = new HashMap<String, RecordedSession>();
+		for(RecordedSession session : RecordedSession.ALL) {
+			known.put(session.filename, session);
+		}
+		String[] names = dir.list((d, name) -> name.toLowerCase().endsWith(".csv"));
+		if(names == null) {
+			names = new String[0];
+		}
+		Arrays.sort(names);
+		List<RecordedSession> found = new ArrayList<RecordedSession>();
+		for(String name : names) {
+			RecordedSession session = known.get(name);
+			if(session == null) {
+				System.out.println("Skipping " + name + ": no column layout for it in RecordedSession.ALL");
+			} else if(dir.equals(new File("."))) {
+				found.add(session);
+			} else {
+				found.add(new RecordedSession(new File(dir, name).getPath(), session.colMagAxA, session.colMagAxB,
+						session.magCorrA, session.magCorrB, session.colW, session.wMult, session.wOffset,
+						session.colTime, session.headerRows));
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Run every default filter over every session.  Loading and the accuracy passes
+	 * run in parallel; the timed passes then run one pair at a time, since timings
+	 * taken while other tasks share the cores say more about the scheduler than
+	 * the filter.
+	 *
+	 * @return the results, in session then filter order
+	 */
+	public static List<Result> run(List<RecordedSession> sessions, ForkJoinPool pool) {
+		final int num_filters = defaultFilters().size();
+		final Result[] results = new Result[sessions.size() * num_filters];
+		final Recording[] recordings = new Recording[sessions.size()];
+		final FilterUnderTest[] filters = new FilterUnderTest[results.length];
+		final List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+		for(int s = 0; s < sessions.size(); ++s) {
+			final RecordedSession session = sessions.get(s);
+			final int index = s;
+			tasks.add(new RecursiveAction() {
+				@Override
+				protected void compute() {
+					final Recording recording = new Recording(session);
+					recordings[index] = recording;
+					List<RecursiveAction> per_filter = new ArrayList<RecursiveAction>();
+					List<FilterUnderTest> session_filters = defaultFilters();
+					for(int f = 0; f < num_filters; ++f) {
+						final int slot = index * num_filters + f;
+						filters[slot] = session_filters.get(f);
+						per_filter.add(new RecursiveAction() {
+							@Override
+							protected void compute() {
+								results[slot] = evaluate(recording, filters[slot]);
+							}
+						});
+					}
+					invokeAll(per_filter);
+				}
+			});
+		}
+		pool.invoke(new RecursiveAction() {
+			@Override
+			protected void compute() {
+				invokeAll(tasks);
+			}
+		});
+		for(int slot = 0; slot < results.length; ++slot) {
+			measureThroughput(recordings[slot / num_filters], filters[slot], results[slot]);
+		}
+		return Arrays.asList(results);
+	}
+
+	/** One recording, read into columns */
+	static class Recording {
+		final String name;
+		double[] time = new double[1024], heading = new double[1024], w = new double[1024];
+		int length = 0;
+
+		Recording(RecordedSession session) {
+			name = new File(session.filename).getName();
+			CsvDataPlayer player = session.openPreparsedPlayer();
+			while(player.hasMoreData()) {
+				add(player);
+				player.advancePlayback();
+			}
+		}
+
+		/** Read the recording back from a copy in the binary format with values of the given size */
+		Recording(RecordedSession session, int bytesPerValue) throws IOException {
+			name = new File(session.filename).getName();
+			File copy = File.createTempFile("regression", ".atsn");
+			try {
+				session.convertToBinary(copy.getPath(), bytesPerValue);
+				BinarySessionPlayer player = session.openBinaryPlayer(copy.getPath());
+				while(player.hasMoreData()) {
+					add(player);
+					player.advancePlayback();
+				}
+			} finally {
+				copy.delete();
+			}
+		}
+
+		private final CompassSample sample = new CompassSample();
+
+		private void add(CompassSampleSource source) {
+			source.readSample(sample);
+			// Grown as needed rather than trusting a count up front
+			if(length == time.length) {
+				int size = 2 * length;
+				time    = Arrays.copyOf(time, size);
+				heading = Arrays.copyOf(heading, size);
+				w       = Arrays.copyOf(w, size);
+			}
+			time[length]    = sample.time;
+			heading[length] = sample.heading;
+			w[length]       = sample.w;
+			++length;
+		}
+	}
+
+	/** Run the filter over the recording once and score its accuracy */
+	static Result evaluate(Recording d, FilterUnderTest filter) {
+		Result result = new Result();
+		result.recording = d.name;
+		result.filter = filter.name();
+		result.samples = d.length;
+		double[] heading_out = new double[d.length];
+		double[] w_out = new double[d.length];
+
+		// The first update only initializes the filter
+		filter.reset();
+		filter.run(d.time, d.heading, d.w, d.length, heading_out, w_out);
+		double sum_sq = 0, max = 0;
+		long n = 0;
+		for(int i = 2; i < d.length; ++i) {
+			double dt = d.time[i] - d.time[i - 1];
+			double predicted = heading_out[i - 1] + w_out[i - 1] * dt / filter.modelScale();
+			double err = Math.abs(Math.IEEEremainder(d.heading[i] - predicted, 2 * Math.PI));
+			if(err == err) { // skip NaN samples
+				sum_sq += err * err;
+				max = Math.max(max, err);
+				++n;
+			}
+		}
+		for(int i = 1; i < d.length; ++i) {
+			if(Math.abs(heading_out[i] - heading_out[i - 1]) > Math.PI) {
+				++result.wraps;
+			}
+		}
+		result.rmsDeg = (n > 0) ? Math.toDegrees(Math.sqrt(sum_sq / n)) : 0.0;
+		result.maxDeg = Math.toDegrees(max);
+		return result;
+	}
+
+	/** Fill in the samples per second and bytes per sample of a result */
+	static void measureThroughput(Recording d, FilterUnderTest filter, Result result) {
+		double[] heading_out = new double[d.length];
+		double[] w_out = new double[d.length];
+		// Warm up so the JIT has compiled the filter before it is timed
+		long warm_until = System.nanoTime() + WARMUP_NANOS;
+		while(System.nanoTime() < warm_until && d.length > 0) {
+			filter.reset();
+			filter.run(d.time, d.heading, d.w, d.length, heading_out, w_out);
+		}
+		// Reading the allocation counter allocates a little itself; take that off
+		long overhead = Long.MAX_VALUE;
+		for(int i = 0; i < 10; ++i) {
+			long before = AttitudeTrackerBenchmarks.allocatedBytes();
+			overhead = Math.min(overhead, AttitudeTrackerBenchmarks.allocatedBytes() - before);
+		}
+
+		// Throughput and allocation, over enough passes to time reliably
+		long nanos = 0, bytes = 0, samples = 0;
+		while(nanos < MIN_TIMED_NANOS && d.length > 0) {
+			filter.reset();
+			long bytes_before = AttitudeTrackerBenchmarks.allocatedBytes();
+			long start = System.nanoTime();
+			filter.run(d.time, d.heading, d.w, d.length, heading_out, w_out);
+			nanos += System.nanoTime() - start;
+			bytes += Math.max(0, AttitudeTrackerBenchmarks.allocatedBytes() - bytes_before - overhead);
+			samples += d.length;
+		}
+		result.samplesPerSecond = (nanos > 0) ? samples / (nanos / 1e9) : 0.0;
+		result.bytesPerSample = (samples > 0) ? (double)bytes / samples : 0.0;
+	}
+
+	/**
+	 * @return a description of each regression of results against baseline; pairs
+	 * missing from either side are ignored
+	 */
+	public static List<String> compare(List<Result> results, List<Result> baseline,
+			double accuracyTolerance, double throughputTolerance) {
+		Map<String, Result> before = new HashMap<String, Result>();
+		for(Result b : baseline) {
+			before.put(b.recording + "\n" + b.filter, b);
+		}
+		List<String> regressions = new ArrayList<String>();
+		for(Result r : results) {
+			Result b = before.get(r.recording + "\n" + r.filter);
+			if(b == null) {
+				continue;
+			}
+			String pair = r.recording + ", " + r.filter + ": ";
+			// A tiny absolute allowance so a zero baseline doesn't fail on rounding
+			if(r.rmsDeg > b.rmsDeg * (1 + accuracyTolerance) + 1e-9) {
+				regressions.add(pair + "RMS error " + b.rmsDeg + " -> " + r.rmsDeg + " deg");
+			}
+			if(r.maxDeg > b.maxDeg * (1 + accuracyTolerance) + 1e-9) {
+				regressions.add(pair + "max error " + b.maxDeg + " -> " + r.maxDeg + " deg");
+			}
+			// Too short to time: each pass is mostly starting a new filter and reading the clock
+			if(r.samples < MIN_TIMED_SAMPLES) {
+				continue;
+			}
+			if(r.samplesPerSecond < b.samplesPerSecond * (1 - throughputTolerance)) {
+				regressions.add(pair + "throughput " + b.samplesPerSecond + " -> " + r.samplesPerSecond + " samples/s");
+			}
+			if(r.bytesPerSample > b.bytesPerSample + ALLOCATION_SLACK_BYTES) {
+				regressions.add(pair + "allocation " + b.bytesPerSample + " -> " + r.bytesPerSample + " B/sample");
+			}
+		}
+		return regressions;
+	}
+
+	public static void writeReport(List<Result> results, File file) throws IOException {
+		CSVPrinter printer = new CSVPrinter(new FileWriter(file), CSVFormat.DEFAULT.withHeader(COLUMNS));
+		try {
+			for(Result r : results) {
+				printer.printRecord(r.recording, r.filter, r.samples, r.rmsDeg, r.maxDeg, r.wraps,
+						r.samplesPerSecond, r.bytesPerSample);
+			}
+		} finally {
+			printer.close();
+		}
+	}
+
+	public static List<Result> readReport(File file) throws IOException {
+		CSVParser parser = new CSVParser(new FileReader(file), CSVFormat.DEFAULT.withFirstRecordAsHeader());
+		try {
+			List<Result> results = new ArrayList<Result>();
+			for(CSVRecord record : parser) {
+				Result r = new Result();
+				r.recording = record.get("recording");
+				r.filter = record.get("filter");
+				r.samples = Long.parseLong(record.get("samples"));
+				r.rmsDeg = Double.parseDouble(record.get("rms_deg"));
+				r.maxDeg = Double.parseDouble(record.get("max_deg"));
+				r.wraps = Long.parseLong(record.get("wraps"));
+				r.samplesPerSecond = Double.parseDouble(record.get("samples_per_s"));
+				r.bytesPerSample = Double.parseDouble(record.get("bytes_per_sample"));
+				results.add(r);
+			}
+			return results;
+		} finally {
+			parser.close();
+		}
+	}
+
+	/** FilteredCompassReader.updateEstimate(), one sample at a time through a sample source */
+	static class ReaderPerSample implements FilterUnderTest, CompassSampleSource {
+		FilteredCompassReader reader;
+		double[] time, heading, w;
+		int cur;
+
+		final boolean single;
+
+		ReaderPerSample() {
+			this(false);
+		}
+
+		/** @param single whether to run the filter in single precision */
+		ReaderPerSample(boolean single) {
+			this.single = single;
+		}
+
+		@Override public String name() { return single ? "FilteredCompassReader float32" : "FilteredCompassReader"; }
+		@Override public double modelScale() { return FilteredCompassReader.DEFAULT_MODEL_SCALE; }
+		@Override public void reset() {
+			reader = new FilteredCompassReader();
+			reader.setSinglePrecision(single);
+			reader.setSampleSource(this);
+		}
+		@Override
+		public void run(double[] time, double[] heading, double[] w, int count, double[] headingOut, double[] wOut) {
+			this.time = time; this.heading = heading; this.w = w;
+			for(cur = 0; cur < count; ++cur) {
+				reader.updateEstimate();
+				headingOut[cur] = reader.getFilteredHeading();
+				wOut[cur] = reader.getFilteredAngularVelocity();
+			}
+		}
+		@Override
+		public void readSample(CompassSample sample) {
+			sample.time = time[cur];
+			sample.heading = heading[cur];
+			sample.w = w[cur];
+		}
+	}
+
+	/** FilteredCompassReader.updateEstimates(), the whole recording in one call */
+	static class ReaderBatch implements FilterUnderTest {
+		FilteredCompassReader reader;
+
+		@Override public String name() { return "FilteredCompassReader batch"; }
+		@Override public double modelScale() { return FilteredCompassReader.DEFAULT_MODEL_SCALE; }
+		@Override public void reset() { reader = new FilteredCompassReader(); }
+		@Override
+		public void run(double[] time, double[] heading, double[] w, int count, double[] headingOut, double[] wOut) {
+			reader.updateEstimates(time, heading, w, count, headingOut, wOut);
+		}
+	}
+
+	/** MultiRateCompassFilter, given each recorded gyro and compass reading as it happened */
+	static class MultiRate implements FilterUnderTest {
+		MultiRateCompassFilter filter;
+
+		@Override public String name() { return "MultiRateCompassFilter"; }
+		@Override public double modelScale() { return FilteredCompassReader.DEFAULT_MODEL_SCALE; }
+		@Override public void reset() { filter = new MultiRateCompassFilter(); }
+		@Override
+		public void run(double[] time, double[] heading, double[] w, int count, double[] headingOut, double[] wOut) {
+			for(int i = 0; i < count; ++i) {
+				// Unparseable fields are NaN; a sensor that didn't report is just skipped
+				if(w[i] == w[i]) { filter.addGyroSample(time[i], w[i]); }
+				if(heading[i] == heading[i]) { filter.addCompassSample(time[i], heading[i]); }
+				filter.processPending();
+				headingOut[i] = filter.getFilteredHeading();
+				wOut[i] = filter.getFilteredAngularVelocity();
+			}
+		}
+	}
+}
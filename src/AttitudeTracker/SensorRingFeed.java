@@ -0,0 +1,74 @@
+package AttitudeTracker;
+
+/**
+ * Connects sensor driver threads to a FilteredCompassReader running on its own
+ * thread.  The compass driver and the gyro driver each push readings into their own
+ * SensorSampleRing.  The filter thread calls drain() and, if anything arrived,
+ * updateEstimate() on a reader whose sample source is this feed; the feed supplies
+ * the newest heading and rate and the newest timestamp seen from either sensor.
+ * 
+ * Other threads read the result through FilteredCompassReader.getPublishedEstimate(),
+ * so nothing on either side of the filter takes a lock.
+ * 
+ * <pre>
+ * // driver threads
+ * feed.compassRing.offer(t, heading);
+ * feed.gyroRing.offer(t, w);
+ * // filter thread
+ * if(feed.drain()) { reader.updateEstimate(); }
+ * </pre>
+ * 
+ * When the sensors run at different rates, MultiRateCompassFilter uses each reading
+ * once as it arrives instead; drain the rings straight into it:
+ * <pre>
+ * feed.compassRing.drain(filter.compassHandler);
+ * feed.gyroRing.drain(filter.gyroHandler);
+ * filter.processPending();
+ * </pre>
+ */
+public class SensorRingFeed implements HeadingProvider, HeadingRateProvider, TimeProvider, CompassSampleSource {
+	public final SensorSampleRing compassRing;
+	public final SensorSampleRing gyroRing;
+	private double latestTime = 0;
+	private double latestHeading = 0;
+	private double latestW = 0;
+
+	// Handlers are fields so draining doesn't allocate
+	private final SensorSampleRing.SampleHandler onCompass = (time, value) -> {
+		latestHeading = value;
+		latestTime = Math.max(latestTime, time);
+	};
+	private final SensorSampleRing.SampleHandler onGyro = (time, value) -> {
+		latestW = value;
+		latestTime = Math.max(latestTime, time);
+	};
+
+	public SensorRingFeed(int capacity) {
+		compassRing = new SensorSampleRing(capacity);
+		gyroRing = new SensorSampleRing(capacity);
+	}
+
+	/**
+	 * Take everything the drivers have pushed since the last call.  Filter thread only.
+	 * 
+	 * @return true if any new reading arrived
+	 */
+	public boolean drain() {
+		int n = compassRing.drain(onCompass);
+		n += gyroRing.drain(onGyro);
+		return n > 0;
+	}
+
+	@Override
+	public double getTime() { return latestTime; }
+	@Override
+	public double getHeading() { return latestHeading; }
+	@Override
+	public double getW() { return latestW; }
+	@Override
+	public void readSample(CompassSample sample) {
+		sample.time = latestTime;
+		sample.heading = latestHeading;
+		sample.w = latestW;
+	}
+}
@@ -0,0 +1,156 @@
+package AttitudeTracker;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fixed-size, lock-free queue of timestamped sensor readings for exactly one
+ * producer thread (a sensor driver) and one consumer thread (the filter).  Neither
+ * side ever blocks or allocates: if the consumer falls behind far enough that the
+ * ring fills, new readings are dropped and counted rather than waiting.
+ *
+ * A ring holds either single values or, for a three-axis sensor, three values per
+ * reading, so the axes of one reading always travel together.
+ */
+public class SensorSampleRing {
+	/** Receives readings drained from the ring */
+	public interface SampleHandler {
+		void onSample(double time, double value);
+	}
+
+	/** Receives three-axis readings drained from the ring */
+	public interface VectorSampleHandler {
+		void onSample(double time, double x, double y, double z);
+	}
+
+	private final double[] times;
+	private final double[] values;
+	private final int mask;
+	// Values per reading, 1 or 3
+	private final int width;
+	// Next slot the producer will write; only the producer changes it
+	private final AtomicLong tail = new AtomicLong();
+	// Next slot the consumer will read; only the consumer changes it
+	private final AtomicLong head = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+
+	/**
+	 * @param capacity rounded up to a power of two
+	 */
+	public SensorSampleRing(int capacity) {
+		this(capacity, 1);
+	}
+
+	/**
+	 * @param capacity rounded up to a power of two
+	 * @param width    values per reading, 1 or 3
+	 */
+	public SensorSampleRing(int capacity, int width) {
+		if(width != 1 && width != 3) {
+			throw new IllegalArgumentException("Width must be 1 or 3, got " + width);
+		}
+		int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+		times = new double[size];
+		values = new double[size * width];
+		mask = size - 1;
+		this.width = width;
+	}
+
+	/**
+	 * Add a reading.  Producer thread only.
+	 * 
+	 * @return false if the ring was full and the reading was dropped
+	 */
+	public boolean offer(double time, double value) {
+		checkWidth(1);
+		long t = tail.get();
+		if(t - head.get() > mask) {
+			dropped.incrementAndGet();
+			return false;
+		}
+		int slot = (int)t & mask;
+		times[slot] = time;
+		values[slot] = value;
+		// Release: the slot contents become visible before the new tail
+		tail.lazySet(t + 1);
+		return true;
+	}
+
+	/**
+	 * Add a three-axis reading.  Producer thread only.
+	 * 
+	 * @return false if the ring was full and the reading was dropped
+	 */
+	public boolean offer(double time, double x, double y, double z) {
+		checkWidth(3);
+		long t = tail.get();
+		if(t - head.get() > mask) {
+			dropped.incrementAndGet();
+			return false;
+		}
+		int slot = (int)t & mask;
+		times[slot] = time;
+		values[3 * slot]     = x;
+		values[3 * slot + 1] = y;
+		values[3 * slot + 2] = z;
+		tail.lazySet(t + 1);
+		return true;
+	}
+
+	/**
+	 * Pass every reading currently in the ring to the handler, oldest first.
+	 * Consumer thread only.
+	 * 
+	 * @return the number of readings drained
+	 */
+	public int drain(SampleHandler handler) {
+		checkWidth(1);
+		long h = head.get();
+		long t = tail.get();
+		for(long i = h; i < t; ++i) {
+			int slot = (int)i & mask;
+			handler.onSample(times[slot], values[slot]);
+		}
+		// Release the slots back to the producer only after they've been read
+		head.lazySet(t);
+		return (int)(t - h);
+	}
+
+	/**
+	 * As drain(SampleHandler), for a three-axis ring.  Consumer thread only.
+	 */
+	public int drain(VectorSampleHandler handler) {
+		checkWidth(3);
+		long h = head.get();
+		long t = tail.get();
+		for(long i = h; i < t; ++i) {
+			int slot = (int)i & mask;
+			handler.onSample(times[slot], values[3 * slot], values[3 * slot + 1], values[3 * slot + 2]);
+		}
+		head.lazySet(t);
+		return (int)(t - h);
+	}
+
+	private void checkWidth(int expected) {
+		if(width != expected) {
+			throw new IllegalStateException("Ring holds " + width + " values per reading, not " + expected);
+		}
+	}
+
+	public int size() {
+		return (int)(tail.get() - head.get());
+	}
+
+	/** Values per reading, 1 or 3 */
+	public int width() {
+		return width;
+	}
+
+	public int capacity() {
+		return mask + 1;
+	}
+
+	/** Readings dropped because the ring was full */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+}
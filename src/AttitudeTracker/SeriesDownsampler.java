@@ -0,0 +1,79 @@
+package AttitudeTracker;
+
+/**
+ * Reduces a series to a few points per pixel for charting, with the
+ * Largest-Triangle-Three-Buckets algorithm (Steinarsson, 2013).  The first and last
+ * points are kept and the rest are split into equal buckets, and from each bucket
+ * it keeps the point making the largest triangle with the point kept from the
+ * previous bucket and the average of the next.  Unlike taking every n-th sample
+ * this keeps peaks and steps, so a 100,000 sample recording drawn from 2,000
+ * points looks the same at chart size.
+ *
+ * Linear in the input and allocates nothing.
+ */
+public class SeriesDownsampler {
+	/**
+	 * @param x         x values, increasing
+	 * @param y         y values
+	 * @param count     number of input points, starting at index 0
+	 * @param threshold number of points wanted, at least 3
+	 * @param xOut      receives the kept x values; at least min(count, threshold) long
+	 * @param yOut      receives the kept y values
+	 * @return the number of points written, which is count if count <= threshold
+	 */
+	public static int lttb(double[] x, double[] y, int count, int threshold, double[] xOut, double[] yOut) {
+		if(count <= threshold) {
+			System.arraycopy(x, 0, xOut, 0, count);
+			System.arraycopy(y, 0, yOut, 0, count);
+			return count;
+		}
+		if(threshold < 3) {
+			throw new IllegalArgumentException("LTTB needs a threshold of at least 3, not " + threshold);
+		}
+		// The first and last points are buckets of their own
+		double bucket_size = (double)(count - 2) / (threshold - 2);
+		int kept = 0;
+		int a = 0;
+		xOut[kept] = x[a];
+		yOut[kept] = y[a];
+		++kept;
+		for(int b = 0; b < threshold - 2; ++b) {
+			int start = (int)(b * bucket_size) + 1;
+			int end   = (int)((b + 1) * bucket_size) + 1;
+
+			// Average of the next bucket, or the last point
+			int next_start = end;
+			int next_end = Math.min((int)((b + 2) * bucket_size) + 1, count);
+			if(b == threshold - 3) {
+				next_start = count - 1;
+				next_end = count;
+			}
+			double avg_x = 0, avg_y = 0;
+			for(int i = next_start; i < next_end; ++i) {
+				avg_x += x[i];
+				avg_y += y[i];
+			}
+			avg_x /= (next_end - next_start);
+			avg_y /= (next_end - next_start);
+
+			// Twice the area of the triangle (a, i, average); the factor doesn't matter
+			double ax = x[a], ay = y[a];
+			double max_area = -1;
+			int chosen = start;
+			for(int i = start; i < end; ++i) {
+				double area = Math.abs((ax - avg_x) * (y[i] - ay) - (ax - x[i]) * (avg_y - ay));
+				if(area > max_area) {
+					max_area = area;
+					chosen = i;
+				}
+			}
+			xOut[kept] = x[chosen];
+			yOut[kept] = y[chosen];
+			++kept;
+			a = chosen;
+		}
+		xOut[kept] = x[count - 1];
+		yOut[kept] = y[count - 1];
+		return kept + 1;
+	}
+}
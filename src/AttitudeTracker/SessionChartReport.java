@@ -0,0 +1,145 @@
+package AttitudeTracker;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.jfree.chart.ChartFactory;
+import org.jfree.chart.ChartUtilities;
+import org.jfree.chart.JFreeChart;
+import org.jfree.data.xy.XYSeries;
+import org.jfree.data.xy.XYSeriesCollection;
+import org.jfree.graphics2d.svg.SVGGraphics2D;
+import org.jfree.graphics2d.svg.SVGUtils;
+
+/**
+ * Writes a chart of FilteredCompassReader's output for every bundled recording, as
+ * PNG and SVG files, without a display.  The charts show the same series as
+ * AttitudeTrackerTests.testKfWithRecordedData(), but each series is reduced with
+ * SeriesDownsampler first, so drawing costs the same however long the recording
+ * is.  Recordings are processed in parallel on the common fork-join pool.
+ *
+ * Usage: java AttitudeTracker.SessionChartReport [output directory] [points per series]
+ */
+public class SessionChartReport {
+	public static final String DEFAULT_OUTPUT_DIR = "reports";
+	public static final int DEFAULT_POINTS = 2000;
+	public static final int WIDTH = 1200, HEIGHT = 600;
+
+	final File outputDir;
+	final int points;
+
+	public SessionChartReport(File output_dir, int points) {
+		outputDir = output_dir;
+		this.points = points;
+	}
+
+	public static void main(String[] args) throws IOException {
+		// No display on the build machines; must be set before AWT loads
+		System.setProperty("java.awt.headless", "true");
+		File dir = new File((args.length > 0) ? args[0] : DEFAULT_OUTPUT_DIR);
+		int points = (args.length > 1) ? Integer.parseInt(args[1]) : DEFAULT_POINTS;
+
+		long start = System.nanoTime();
+		new SessionChartReport(dir, points).writeAll(RecordedSession.ALL, ForkJoinPool.commonPool());
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.println("Wrote charts for " + RecordedSession.ALL.length + " recordings to " + dir + " in " + seconds + " s");
+	}
+
+	/**
+	 * Chart every session, one task per session.
+	 */
+	public void writeAll(RecordedSession[] sessions, ForkJoinPool pool) throws IOException {
+		if(!outputDir.isDirectory() && !outputDir.mkdirs()) {
+			throw new IOException("Can't create " + outputDir);
+		}
+		final List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+		for(final RecordedSession session : sessions) {
+			tasks.add(new RecursiveAction() {
+				@Override
+				protected void compute() {
+					try {
+						write(session);
+					} catch(IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				}
+			});
+		}
+		try {
+			pool.invoke(new RecursiveAction() {
+				@Override
+				protected void compute() {
+					invokeAll(tasks);
+				}
+			});
+		} catch(UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * Run the filter over one session and write its chart as name.png and name.svg,
+	 * where name is the recording's filename without ".csv".
+	 */
+	public void write(RecordedSession session) throws IOException {
+		CsvDataPlayer player = session.openPreparsedPlayer();
+		// The last record is never played back; see CsvDataPlayer.hasMoreData()
+		int n = player.getNumRecords() - 1;
+		double[] time        = new double[n];
+		double[] t_measured  = new double[n];
+		double[] w_measured  = new double[n];
+		double[] t_estimated = new double[n];
+		double[] w_estimated = new double[n];
+		double[] t_err       = new double[n];
+		for(int i = 0; i < n; ++i) {
+			time[i]       = player.getTime();
+			t_measured[i] = player.getHeading();
+			w_measured[i] = player.getW();
+			player.advancePlayback();
+		}
+		new FilteredCompassReader().updateEstimates(time, t_measured, w_measured, n, t_estimated, w_estimated);
+		for(int i = 0; i < n; ++i) {
+			t_err[i] = t_estimated[i] - t_measured[i];
+		}
+
+		double[] x_out = new double[Math.min(n, points)];
+		double[] y_out = new double[Math.min(n, points)];
+		XYSeriesCollection sc = new XYSeriesCollection();
+		sc.addSeries(series("Estimated position", time, t_estimated, n, x_out, y_out));
+		sc.addSeries(series("Measured position", time, t_measured, n, x_out, y_out));
+		sc.addSeries(series("Position \"error\"", time, t_err, n, x_out, y_out));
+		sc.addSeries(series("Estimated speed", time, w_estimated, n, x_out, y_out));
+		sc.addSeries(series("Measured speed", time, w_measured, n, x_out, y_out));
+		JFreeChart chart = ChartFactory.createXYLineChart(session.filename, "Time (s)", "Value", sc);
+
+		String name = session.filename.replaceFirst("\\.csv$", "");
+		writePng(chart, new File(outputDir, name + ".png"));
+		writeSvg(chart, new File(outputDir, name + ".svg"));
+	}
+
+	private XYSeries series(String name, double[] x, double[] y, int count, double[] x_out, double[] y_out) {
+		int kept = SeriesDownsampler.lttb(x, y, count, points, x_out, y_out);
+		// Not sorted or checked for duplicates, so add() doesn't search the series
+		XYSeries series = new XYSeries(name, false, true);
+		for(int i = 0; i < kept; ++i) {
+			series.add(x_out[i], y_out[i], false);
+		}
+		return series;
+	}
+
+	public static void writePng(JFreeChart chart, File file) throws IOException {
+		ChartUtilities.saveChartAsPNG(file, chart, WIDTH, HEIGHT);
+	}
+
+	public static void writeSvg(JFreeChart chart, File file) throws IOException {
+		SVGGraphics2D g2 = new SVGGraphics2D(WIDTH, HEIGHT);
+		chart.draw(g2, new Rectangle(0, 0, WIDTH, HEIGHT));
+		SVGUtils.writeToSVG(file, g2.getSVGElement());
+	}
+}
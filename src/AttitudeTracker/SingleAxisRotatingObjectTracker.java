@@ -25,14 +25,31 @@
  */
 package AttitudeTracker;
 
-import org.ejml.data.DenseMatrix64F;
-
 /**
+ * Tracks the angle and angular rate of an object rotating about one axis, from an
+ * absolute angle sensor (compass) and a rate sensor (gyro).  This is a two-state
+ * Kalman filter, x = [angle, rate], with both states measured directly, written out
+ * on primitive fields in closed form as ScalarKalmanFilter is for one state.  An
+ * update costs a fixed, small number of flops and one division, and allocates nothing.
+ * 
+ * Compass readings wrap at +/-pi; each one is unwrapped to the turn nearest the
+ * current estimate, so the internal angle is continuous.
+ * 
  * @author John Walthour
  *
  */
 public class SingleAxisRotatingObjectTracker {
-	private KalmanFilterSimple filter = new KalmanFilterSimple();
+	// Default noise figures.  Process noise is per second and scaled by dt.
+	public static final double DEFAULT_Q_ANGLE = 1e-4;  // rad^2/s
+	public static final double DEFAULT_Q_RATE  = 1.0;   // (rad/s)^2/s, unmodeled angular acceleration
+	public static final double DEFAULT_R_COMPASS = 0.0076; // rad^2, about 5 degrees
+	public static final double DEFAULT_R_GYRO    = 4e-4;   // (rad/s)^2
+	
+	private double qAngle, qRate, rCompass, rGyro;
+	// State: angle (unwrapped) and rate
+	private double x0, x1;
+	// Covariance, symmetric so p10 == p01
+	private double p00 = 1, p01 = 0, p11 = 1;
 
 	/**
 	 * 
@@ -42,25 +59,101 @@ public class SingleAxisRotatingObjectTracker {
 		// TODO: When you start incorporating the control model,
 		// you may wish to take into account the vehicle's moment
 		// of inertia along this axis. 
-		// TODO: configure filter object
+		this(DEFAULT_Q_ANGLE, DEFAULT_Q_RATE, DEFAULT_R_COMPASS, DEFAULT_R_GYRO);
+	}
+	
+	public SingleAxisRotatingObjectTracker(double q_angle, double q_rate, double r_compass, double r_gyro) {
+		qAngle = q_angle;
+		qRate = q_rate;
+		rCompass = r_compass;
+		rGyro = r_gyro;
 	}
 	
+	/**
+	 * Start tracking from a first sensor reading.
+	 * 
+	 * @param gyro The angular rate reading, in radians per second
+	 * @param compass The angular position reading, in radians
+	 */
 	public void initTracker(double gyro, double compass) {
-		// TODO
+		x0 = compass;
+		x1 = gyro;
+		p00 = rCompass;
+		p01 = 0;
+		p11 = rGyro;
 	}
 	
 	/**
 	 * Register a new sensor reading.
 	 * 
+	 * @param dt Time since the previous reading, in seconds
 	 * @param gyro The angular rate reading, in radians per second
 	 * @param compass The angular position reading, in radians
 	 */
 	public void updateSensorData(double dt, double gyro, double compass) {
-		// TODO
+		// Predict, F = [1 dt; 0 1]
+		x0 += dt * x1;
+		double p00_ = p00 + dt * (2 * p01 + dt * p11) + qAngle * dt;
+		double p01_ = p01 + dt * p11;
+		double p11_ = p11 + qRate * dt;
+		
+		// Unwrap the compass reading to the turn nearest the prediction
+		double z0 = compass + 2 * Math.PI * Math.rint((x0 - compass) / (2 * Math.PI));
+		double y0 = z0 - x0;
+		double y1 = gyro - x1;
+		
+		// Update, H = I: S = P + R, K = P S^(-1)
+		double s00 = p00_ + rCompass;
+		double s11 = p11_ + rGyro;
+		double inv_det = 1.0 / (s00 * s11 - p01_ * p01_);
+		double k00 = (p00_ * s11 - p01_ * p01_) * inv_det;
+		double k01 = p01_ * rCompass * inv_det;
+		double k10 = p01_ * rGyro * inv_det;
+		double k11 = (p11_ * s00 - p01_ * p01_) * inv_det;
+		x0 += k00 * y0 + k01 * y1;
+		x1 += k10 * y0 + k11 * y1;
+		
+		// P = (I - K) P
+		p00 = p00_ - (k00 * p00_ + k01 * p01_);
+		p01 = p01_ - (k00 * p01_ + k01 * p11_);
+		p11 = p11_ - (k10 * p01_ + k11 * p11_);
 	}
 
+	/**
+	 * @return the compass innovation (measured minus predicted angle) that
+	 * updateSensorData() would see for these arguments.  Nothing is changed; this
+	 * is for monitoring.
+	 */
+	public double innovation(double dt, double compass) {
+		double predicted = x0 + dt * x1;
+		return Math.IEEEremainder(compass - predicted, 2 * Math.PI);
+	}
+	
+	/**
+	 * @return the normalized innovation squared, y' S^(-1) y, that updateSensorData()
+	 * would see for these arguments.  Nothing is changed; this is for monitoring.
+	 */
+	public double nis(double dt, double gyro, double compass) {
+		double y0 = innovation(dt, compass);
+		double y1 = gyro - x1;
+		double s00 = p00 + dt * (2 * p01 + dt * p11) + qAngle * dt + rCompass;
+		double s01 = p01 + dt * p11;
+		double s11 = p11 + qRate * dt + rGyro;
+		return (y0 * y0 * s11 - 2 * y0 * y1 * s01 + y1 * y1 * s00) / (s00 * s11 - s01 * s01);
+	}
+
+	/** @return the angle, from -pi to pi */
 	public double getAngleEstimate() {
-		// TODO
-		return 0;
+		return x0 - 2 * Math.PI * Math.rint(x0 / (2 * Math.PI));
+	}
+	
+	/** @return the angle without wrapping, so it keeps counting up through full turns */
+	public double getUnwrappedAngleEstimate() {
+		return x0;
+	}
+	
+	/** @return the angular rate, in radians per second */
+	public double getRateEstimate() {
+		return x1;
 	}
 }
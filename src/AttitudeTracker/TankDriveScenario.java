@@ -0,0 +1,254 @@
+package AttitudeTracker;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntFunction;
+
+/**
+ * Simulated yaw and yaw rate of a tank-drive robot following a script of drive
+ * segments, with process and sensor noise, for testing the filters against a known
+ * truth.  Each segment sets the two wheel speeds for a while, and how much the
+ * wheels slip: a robot held in place while trying to turn has slip 1.
+ *
+ * Samples are generated one at a time into a caller-owned TankDriveSample, so a run
+ * of any length needs no arrays.  Every run draws from its own SplittableRandom, so
+ * the same seed always gives the same samples whatever thread runs it, and
+ * generate() runs many independent streams across a fork-join pool, each seeded by
+ * splitting one generator in stream order.
+ */
+public class TankDriveScenario {
+	public enum NoiseModel {
+		/** Uniform on +/- the magnitude, as the original test used */
+		UNIFORM,
+		/** Gaussian with the magnitude as standard deviation */
+		GAUSSIAN,
+	}
+
+	/** One step of a run; mutable so it can be reused for every sample */
+	public static class TankDriveSample {
+		public double time;
+		public double leftWheelSpeed, rightWheelSpeed;
+		/** Yaw and yaw rate the script commands, the robot's actual ones, and what the sensors report */
+		public double yawIdeal, yawActual, yawMeasured;
+		public double yawRateIdeal, yawRateActual, yawRateMeasured;
+		/** Whether the robot is trying to move, which is when process noise applies */
+		public boolean moving;
+	}
+
+	/** Receives the samples of one stream, in order, on whatever thread generates it */
+	public interface SampleHandler {
+		void onSample(TankDriveSample sample);
+	}
+
+	final double dt;
+	double maxPivotRate = Math.PI;
+	NoiseModel noiseModel = NoiseModel.UNIFORM;
+	double yawProcessNoise = 5 * Math.PI / 180;
+	double yawRateProcessNoise = 5 * Math.PI / 180;
+	double yawMeasurementNoise = 15 * Math.PI / 180;
+	double yawRateMeasurementNoise = 10 * Math.PI / 180;
+	private final List<double[]> segments = new ArrayList<double[]>();
+	private double duration = 0;
+
+	/**
+	 * @param dt time between samples, in seconds
+	 */
+	public TankDriveScenario(double dt) {
+		this.dt = dt;
+	}
+
+	/**
+	 * The script testTankSteerWithControl() has always used, 15s long.  Sits still
+	 * for 1s, pivots right for 2s, goes straight for 2s, curves left for 3s, backs
+	 * up for 1s, tries to pivot for 2s while held in place, then goes forward.
+	 */
+	public static TankDriveScenario standard(double dt) {
+		TankDriveScenario scenario = new TankDriveScenario(dt);
+		scenario.addSegment(1,  0.0,  0.0, 0.0);
+		scenario.addSegment(2, +1.0, -1.0, 0.0);
+		scenario.addSegment(2, +1.0, +1.0, 0.0);
+		scenario.addSegment(3,  0.0, +1.0, 0.0);
+		scenario.addSegment(1, -1.0, -1.0, 0.0);
+		scenario.addSegment(2, -1.0, +1.0, 1.0);
+		scenario.addSegment(4, +1.0, +1.0, 0.0);
+		return scenario;
+	}
+
+	/**
+	 * Add a segment to the end of the script.
+	 *
+	 * @param seconds how long it lasts, more than 0
+	 * @param left    left wheel speed, -1 to 1
+	 * @param right   right wheel speed, -1 to 1
+	 * @param slip    fraction of the commanded turn lost to wheel slip, 0 to 1
+	 */
+	public void addSegment(double seconds, double left, double right, double slip) {
+		if(!(seconds > 0)) {
+			throw new IllegalArgumentException("Segment length must be more than 0 s, got " + seconds);
+		}
+		duration += seconds;
+		segments.add(new double[]{ duration, left, right, slip });
+	}
+
+	/** Yaw rate in rad/s when the wheels are at full speed in opposite directions */
+	public void setMaxPivotRate(double rad_per_s) {
+		maxPivotRate = rad_per_s;
+	}
+
+	/**
+	 * @param model          how the noise is distributed
+	 * @param yaw_process    deviation of the actual yaw from the ideal while moving, rad
+	 * @param rate_process   deviation of the actual yaw rate from the ideal while moving, rad/s
+	 * @param yaw_sensor     compass noise, rad
+	 * @param rate_sensor    gyro noise, rad/s
+	 */
+	public void setNoise(NoiseModel model, double yaw_process, double rate_process, double yaw_sensor, double rate_sensor) {
+		noiseModel = model;
+		yawProcessNoise = yaw_process;
+		yawRateProcessNoise = rate_process;
+		yawMeasurementNoise = yaw_sensor;
+		yawRateMeasurementNoise = rate_sensor;
+	}
+
+	/** @return the length of one pass of the script, in seconds */
+	public double getDuration() {
+		return duration;
+	}
+
+	/** @return the number of samples in one pass of the script */
+	public int getSamplesPerPass() {
+		// Samples are at i * dt for every i with i * dt < duration, computed as next() does
+		int n = (int)Math.ceil(duration / dt);
+		while(n > 0 && (n - 1) * dt >= duration) { --n; }
+		while(n * dt < duration) { ++n; }
+		return n;
+	}
+
+	/**
+	 * Start a run.
+	 *
+	 * @param random source of the noise; the run uses it exclusively
+	 * @param repeat whether to start the script again, with the yaw carried on,
+	 *               when it ends rather than stopping
+	 */
+	public Run start(SplittableRandom random, boolean repeat) {
+		if(segments.isEmpty()) {
+			throw new IllegalStateException("The scenario has no segments");
+		}
+		return new Run(random, repeat);
+	}
+
+	public class Run {
+		private final SplittableRandom random;
+		private final boolean repeat;
+		private long index = 0;
+		private int segment = 0;
+		private double passStart = 0;
+		private double yawIdeal = 0;
+
+		Run(SplittableRandom random, boolean repeat) {
+			this.random = random;
+			this.repeat = repeat;
+		}
+
+		/**
+		 * Generate the next sample into out.
+		 *
+		 * @return false, leaving out unchanged, if the script has ended
+		 */
+		public boolean next(TankDriveSample out) {
+			double time = index * dt;
+			while(time - passStart >= segments.get(segment)[0]) {
+				if(++segment == segments.size()) {
+					if(!repeat) {
+						--segment;
+						return false;
+					}
+					segment = 0;
+					passStart += duration;
+				}
+			}
+			double[] seg = segments.get(segment);
+			double left = seg[1], right = seg[2], slip = seg[3];
+			++index;
+
+			double rate_ideal = (1 - slip) * maxPivotRate * (left - right) / 2;
+			yawIdeal += rate_ideal * dt;
+			boolean moving = (left != 0 || right != 0);
+			double yaw_actual = yawIdeal;
+			double rate_actual = rate_ideal;
+			if(moving) {
+				// No wobbling when the robot is stationary
+				yaw_actual  += noise(yawProcessNoise);
+				rate_actual += noise(yawRateProcessNoise);
+			}
+
+			out.time = time;
+			out.leftWheelSpeed = left;
+			out.rightWheelSpeed = right;
+			out.moving = moving;
+			out.yawIdeal = yawIdeal;
+			out.yawActual = yaw_actual;
+			out.yawMeasured = yaw_actual + noise(yawMeasurementNoise);
+			out.yawRateIdeal = rate_ideal;
+			out.yawRateActual = rate_actual;
+			out.yawRateMeasured = rate_actual + noise(yawRateMeasurementNoise);
+			return true;
+		}
+
+		private double noise(double magnitude) {
+			if(noiseModel == NoiseModel.GAUSSIAN) {
+				return magnitude * gaussian();
+			}
+			return magnitude * (2 * random.nextDouble() - 1);
+		}
+
+		// SplittableRandom has no nextGaussian(); Marsaglia's polar method, one of the pair
+		private double gaussian() {
+			double u, v, s;
+			do {
+				u = 2 * random.nextDouble() - 1;
+				v = 2 * random.nextDouble() - 1;
+				s = u * u + v * v;
+			} while(s >= 1 || s == 0);
+			return u * Math.sqrt(-2 * Math.log(s) / s);
+		}
+	}
+
+	/**
+	 * Generate several independent streams in parallel, repeating the script as
+	 * needed.  Stream k is seeded with the k-th split of a SplittableRandom made from
+	 * seed, so the samples each handler sees depend only on the seed and k.
+	 *
+	 * @param handlers makes the handler for stream k; called on the calling thread
+	 */
+	public void generate(ForkJoinPool pool, long seed, int streams, final long samplesPerStream,
+			IntFunction<SampleHandler> handlers) {
+		SplittableRandom root = new SplittableRandom(seed);
+		final List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+		for(int k = 0; k < streams; ++k) {
+			final SplittableRandom random = root.split();
+			final SampleHandler handler = handlers.apply(k);
+			tasks.add(new RecursiveAction() {
+				@Override
+				protected void compute() {
+					Run run = start(random, true);
+					TankDriveSample sample = new TankDriveSample();
+					for(long i = 0; i < samplesPerStream; ++i) {
+						run.next(sample);
+						handler.onSample(sample);
+					}
+				}
+			});
+		}
+		pool.invoke(new RecursiveAction() {
+			@Override
+			protected void compute() {
+				invokeAll(tasks);
+			}
+		});
+	}
+}
@@ -0,0 +1,22 @@
+package AttitudeTracker;
+
+import org.ejml.data.DenseMatrix64F;
+
+/**
+ * The two-state, three-measurement Kalman filter FilteredCompassReader runs, in
+ * double (TwoStateKalmanFilter) or single (TwoStateKalmanFilter32) precision.
+ */
+interface TwoStateFilter {
+	void configure(DenseMatrix64F F, DenseMatrix64F Q, DenseMatrix64F H);
+	void setF(double f00, double f01, double f10, double f11);
+	void setState(DenseMatrix64F x, DenseMatrix64F P);
+	void predict();
+	void update(double z0, double z1, double z2, DenseMatrix64F R);
+	void updateDirect(double z0, double z1, double r0, double r1);
+	double nis(double z0, double z1, double z2, DenseMatrix64F R);
+	double nisDirect(double z0, double z1, double r0, double r1);
+	double getX0();
+	double getX1();
+	DenseMatrix64F getState();
+	DenseMatrix64F getCovariance();
+}
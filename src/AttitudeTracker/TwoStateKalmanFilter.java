@@ -0,0 +1,215 @@
+package AttitudeTracker;
+
+import org.ejml.data.DenseMatrix64F;
+
+/**
+ * A Kalman filter with exactly two state variables and three measurements, written
+ * out element by element on primitive fields.  It computes the same thing as
+ * KalmanFilterSimple configured with a 2x2 F and Q and a 3x2 H, but the 3x3
+ * innovation covariance is inverted in closed form and nothing is allocated after
+ * construction, so it can run in a control loop without producing garbage.
+ *
+ * Matrices are stored row-major in the field names, so f01 is row 0, column 1 of F.
+ */
+public class TwoStateKalmanFilter implements TwoStateFilter {
+	// kinematics description
+	private double f00 = 1, f01 = 0, f10 = 0, f11 = 1;
+	private double q00 = 0, q01 = 0, q10 = 0, q11 = 0;
+	private double h00 = 1, h01 = 0, h10 = 0, h11 = 1, h20 = 0, h21 = 1;
+
+	// system state estimate
+	private double x0, x1;
+	private double p00 = 1, p01 = 0, p10 = 0, p11 = 1;
+
+	// Returned by getState() and getCovariance(); refreshed on each call rather than allocated
+	private final DenseMatrix64F stateView = new DenseMatrix64F(2, 1);
+	private final DenseMatrix64F covarianceView = new DenseMatrix64F(2, 2);
+
+	public void configure(DenseMatrix64F F, DenseMatrix64F Q, DenseMatrix64F H) {
+		setF(F.get(0, 0), F.get(0, 1), F.get(1, 0), F.get(1, 1));
+		q00 = Q.get(0, 0); q01 = Q.get(0, 1);
+		q10 = Q.get(1, 0); q11 = Q.get(1, 1);
+		h00 = H.get(0, 0); h01 = H.get(0, 1);
+		h10 = H.get(1, 0); h11 = H.get(1, 1);
+		h20 = H.get(2, 0); h21 = H.get(2, 1);
+	}
+
+	/**
+	 * Update system model.  The system model includes dt, which is
+	 * why this is not fixed at initialization.
+	 */
+	public void setF(double f00, double f01, double f10, double f11) {
+		this.f00 = f00; this.f01 = f01;
+		this.f10 = f10; this.f11 = f11;
+	}
+
+	public void setState(DenseMatrix64F x, DenseMatrix64F P) {
+		setState(x.get(0, 0), x.get(1, 0), P.get(0, 0), P.get(0, 1), P.get(1, 0), P.get(1, 1));
+	}
+
+	public void setState(double x0, double x1, double p00, double p01, double p10, double p11) {
+		this.x0 = x0; this.x1 = x1;
+		this.p00 = p00; this.p01 = p01;
+		this.p10 = p10; this.p11 = p11;
+	}
+
+	public void predict() {
+		// x = F x
+		double nx0 = f00 * x0 + f01 * x1;
+		double nx1 = f10 * x0 + f11 * x1;
+		x0 = nx0;
+		x1 = nx1;
+
+		// P = F P F' + Q
+		double fp00 = f00 * p00 + f01 * p10;
+		double fp01 = f00 * p01 + f01 * p11;
+		double fp10 = f10 * p00 + f11 * p10;
+		double fp11 = f10 * p01 + f11 * p11;
+		p00 = fp00 * f00 + fp01 * f01 + q00;
+		p01 = fp00 * f10 + fp01 * f11 + q01;
+		p10 = fp10 * f00 + fp11 * f01 + q10;
+		p11 = fp10 * f10 + fp11 * f11 + q11;
+	}
+
+	/**
+	 * Incorporate a measurement.  R is read in place and must be 3x3.
+	 */
+	public void update(double z0, double z1, double z2, DenseMatrix64F R) {
+		double[] r = R.data;
+
+		// y = z - H x
+		double y0 = z0 - (h00 * x0 + h01 * x1);
+		double y1 = z1 - (h10 * x0 + h11 * x1);
+		double y2 = z2 - (h20 * x0 + h21 * x1);
+
+		// HP = H P, the 3x2 product used for both S and the covariance update
+		double hp00 = h00 * p00 + h01 * p10, hp01 = h00 * p01 + h01 * p11;
+		double hp10 = h10 * p00 + h11 * p10, hp11 = h10 * p01 + h11 * p11;
+		double hp20 = h20 * p00 + h21 * p10, hp21 = h20 * p01 + h21 * p11;
+
+		// PH' = P H', 2x3
+		double ph00 = p00 * h00 + p01 * h01, ph01 = p00 * h10 + p01 * h11, ph02 = p00 * h20 + p01 * h21;
+		double ph10 = p10 * h00 + p11 * h01, ph11 = p10 * h10 + p11 * h11, ph12 = p10 * h20 + p11 * h21;
+
+		// S = H P H' + R
+		double s00 = hp00 * h00 + hp01 * h01 + r[0], s01 = hp00 * h10 + hp01 * h11 + r[1], s02 = hp00 * h20 + hp01 * h21 + r[2];
+		double s10 = hp10 * h00 + hp11 * h01 + r[3], s11 = hp10 * h10 + hp11 * h11 + r[4], s12 = hp10 * h20 + hp11 * h21 + r[5];
+		double s20 = hp20 * h00 + hp21 * h01 + r[6], s21 = hp20 * h10 + hp21 * h11 + r[7], s22 = hp20 * h20 + hp21 * h21 + r[8];
+
+		// S^(-1) by cofactors
+		double c00 = s11 * s22 - s12 * s21;
+		double c01 = s12 * s20 - s10 * s22;
+		double c02 = s10 * s21 - s11 * s20;
+		double invDet = 1.0 / (s00 * c00 + s01 * c01 + s02 * c02);
+		double i00 = c00 * invDet;
+		double i01 = (s02 * s21 - s01 * s22) * invDet;
+		double i02 = (s01 * s12 - s02 * s11) * invDet;
+		double i10 = c01 * invDet;
+		double i11 = (s00 * s22 - s02 * s20) * invDet;
+		double i12 = (s02 * s10 - s00 * s12) * invDet;
+		double i20 = c02 * invDet;
+		double i21 = (s01 * s20 - s00 * s21) * invDet;
+		double i22 = (s00 * s11 - s01 * s10) * invDet;
+
+		// K = PH'S^(-1)
+		double k00 = ph00 * i00 + ph01 * i10 + ph02 * i20;
+		double k01 = ph00 * i01 + ph01 * i11 + ph02 * i21;
+		double k02 = ph00 * i02 + ph01 * i12 + ph02 * i22;
+		double k10 = ph10 * i00 + ph11 * i10 + ph12 * i20;
+		double k11 = ph10 * i01 + ph11 * i11 + ph12 * i21;
+		double k12 = ph10 * i02 + ph11 * i12 + ph12 * i22;
+
+		// x = x + Ky
+		x0 += k00 * y0 + k01 * y1 + k02 * y2;
+		x1 += k10 * y0 + k11 * y1 + k12 * y2;
+
+		// P = (I-kH)P = P - KHP
+		double np00 = p00 - (k00 * hp00 + k01 * hp10 + k02 * hp20);
+		double np01 = p01 - (k00 * hp01 + k01 * hp11 + k02 * hp21);
+		double np10 = p10 - (k10 * hp00 + k11 * hp10 + k12 * hp20);
+		double np11 = p11 - (k10 * hp01 + k11 * hp11 + k12 * hp21);
+		p00 = np00; p01 = np01;
+		p10 = np10; p11 = np11;
+	}
+
+	/**
+	 * Incorporate a direct measurement of both state variables (H = I) with
+	 * independent noise (diagonal R).  This needs only a 2x2 inverse, so it is much
+	 * cheaper than the general update.
+	 */
+	public void updateDirect(double z0, double z1, double r0, double r1) {
+		// y = z - x
+		double y0 = z0 - x0;
+		double y1 = z1 - x1;
+
+		// S = P + R, and K = P S^(-1)
+		double s00 = p00 + r0, s01 = p01;
+		double s10 = p10, s11 = p11 + r1;
+		double invDet = 1.0 / (s00 * s11 - s01 * s10);
+		double k00 = (p00 * s11 - p01 * s10) * invDet;
+		double k01 = (p01 * s00 - p00 * s01) * invDet;
+		double k10 = (p10 * s11 - p11 * s10) * invDet;
+		double k11 = (p11 * s00 - p10 * s01) * invDet;
+
+		// x = x + Ky
+		x0 += k00 * y0 + k01 * y1;
+		x1 += k10 * y0 + k11 * y1;
+
+		// P = P - KP
+		double np00 = p00 - (k00 * p00 + k01 * p10);
+		double np01 = p01 - (k00 * p01 + k01 * p11);
+		double np10 = p10 - (k10 * p00 + k11 * p10);
+		double np11 = p11 - (k10 * p01 + k11 * p11);
+		p00 = np00; p01 = np01;
+		p10 = np10; p11 = np11;
+	}
+
+	/**
+	 * Normalized innovation squared, y' S^(-1) y, of a measurement against the current
+	 * state, as update() would see it.  Nothing is changed; this is for monitoring.
+	 */
+	public double nis(double z0, double z1, double z2, DenseMatrix64F R) {
+		double[] r = R.data;
+		double y0 = z0 - (h00 * x0 + h01 * x1);
+		double y1 = z1 - (h10 * x0 + h11 * x1);
+		double y2 = z2 - (h20 * x0 + h21 * x1);
+		double hp00 = h00 * p00 + h01 * p10, hp01 = h00 * p01 + h01 * p11;
+		double hp10 = h10 * p00 + h11 * p10, hp11 = h10 * p01 + h11 * p11;
+		double hp20 = h20 * p00 + h21 * p10, hp21 = h20 * p01 + h21 * p11;
+		double s00 = hp00 * h00 + hp01 * h01 + r[0], s01 = hp00 * h10 + hp01 * h11 + r[1], s02 = hp00 * h20 + hp01 * h21 + r[2];
+		double s10 = hp10 * h00 + hp11 * h01 + r[3], s11 = hp10 * h10 + hp11 * h11 + r[4], s12 = hp10 * h20 + hp11 * h21 + r[5];
+		double s20 = hp20 * h00 + hp21 * h01 + r[6], s21 = hp20 * h10 + hp21 * h11 + r[7], s22 = hp20 * h20 + hp21 * h21 + r[8];
+		// y' adj(S) y / det(S)
+		double c00 = s11 * s22 - s12 * s21, c01 = s12 * s20 - s10 * s22, c02 = s10 * s21 - s11 * s20;
+		double det = s00 * c00 + s01 * c01 + s02 * c02;
+		double a0 = c00 * y0 + (s02 * s21 - s01 * s22) * y1 + (s01 * s12 - s02 * s11) * y2;
+		double a1 = c01 * y0 + (s00 * s22 - s02 * s20) * y1 + (s02 * s10 - s00 * s12) * y2;
+		double a2 = c02 * y0 + (s01 * s20 - s00 * s21) * y1 + (s00 * s11 - s01 * s10) * y2;
+		return (y0 * a0 + y1 * a1 + y2 * a2) / det;
+	}
+
+	/** As nis(), for a measurement that updateDirect() would incorporate */
+	public double nisDirect(double z0, double z1, double r0, double r1) {
+		double y0 = z0 - x0;
+		double y1 = z1 - x1;
+		double s00 = p00 + r0, s01 = p01;
+		double s10 = p10, s11 = p11 + r1;
+		return (y0 * (s11 * y0 - s01 * y1) + y1 * (s00 * y1 - s10 * y0)) / (s00 * s11 - s01 * s10);
+	}
+
+	public double getX0() { return x0; }
+	public double getX1() { return x1; }
+
+	public DenseMatrix64F getState() {
+		stateView.data[0] = x0;
+		stateView.data[1] = x1;
+		return stateView;
+	}
+
+	public DenseMatrix64F getCovariance() {
+		double[] d = covarianceView.data;
+		d[0] = p00; d[1] = p01;
+		d[2] = p10; d[3] = p11;
+		return covarianceView;
+	}
+}
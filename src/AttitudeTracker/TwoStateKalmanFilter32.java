@@ -0,0 +1,241 @@
+package AttitudeTracker;
+
+import org.ejml.data.DenseMatrix64F;
+
+/**
+ * TwoStateKalmanFilter in single precision: the state, covariance and model are
+ * floats and so is all the arithmetic, for targets where memory bandwidth or
+ * float-only hardware make doubles costly.  Arguments and results are still
+ * doubles, so it can stand in for TwoStateKalmanFilter anywhere; see
+ * FilteredCompassReader.setSinglePrecision().
+ *
+ * A float carries about 7 significant digits.  The heading is demodulated, growing
+ * by 2 pi per turn, so its resolution falls as the robot turns: about 0.002 degrees
+ * after 100 turns and 0.014 after 1000.  RegressionRunner checks the estimates
+ * against double precision on every recording.
+ */
+public class TwoStateKalmanFilter32 implements TwoStateFilter {
+	// kinematics description
+	private float f00 = 1, f01 = 0, f10 = 0, f11 = 1;
+	private float q00 = 0, q01 = 0, q10 = 0, q11 = 0;
+	private float h00 = 1, h01 = 0, h10 = 0, h11 = 1, h20 = 0, h21 = 1;
+
+	// system state estimate
+	private float x0, x1;
+	private float p00 = 1, p01 = 0, p10 = 0, p11 = 1;
+
+	// R narrowed to float by update() and nis()
+	private final float[] rNarrow = new float[9];
+
+	// Returned by getState() and getCovariance(); refreshed on each call rather than allocated
+	private final DenseMatrix64F stateView = new DenseMatrix64F(2, 1);
+	private final DenseMatrix64F covarianceView = new DenseMatrix64F(2, 2);
+
+	@Override
+	public void configure(DenseMatrix64F F, DenseMatrix64F Q, DenseMatrix64F H) {
+		setF(F.get(0, 0), F.get(0, 1), F.get(1, 0), F.get(1, 1));
+		q00 = (float)Q.get(0, 0); q01 = (float)Q.get(0, 1);
+		q10 = (float)Q.get(1, 0); q11 = (float)Q.get(1, 1);
+		h00 = (float)H.get(0, 0); h01 = (float)H.get(0, 1);
+		h10 = (float)H.get(1, 0); h11 = (float)H.get(1, 1);
+		h20 = (float)H.get(2, 0); h21 = (float)H.get(2, 1);
+	}
+
+	/**
+	 * Update system model.  The system model includes dt, which is
+	 * why this is not fixed at initialization.
+	 */
+	@Override
+	public void setF(double f00, double f01, double f10, double f11) {
+		this.f00 = (float)f00; this.f01 = (float)f01;
+		this.f10 = (float)f10; this.f11 = (float)f11;
+	}
+
+	@Override
+	public void setState(DenseMatrix64F x, DenseMatrix64F P) {
+		setState(x.get(0, 0), x.get(1, 0), P.get(0, 0), P.get(0, 1), P.get(1, 0), P.get(1, 1));
+	}
+
+	public void setState(double x0, double x1, double p00, double p01, double p10, double p11) {
+		this.x0 = (float)x0; this.x1 = (float)x1;
+		this.p00 = (float)p00; this.p01 = (float)p01;
+		this.p10 = (float)p10; this.p11 = (float)p11;
+	}
+
+	@Override
+	public void predict() {
+		// x = F x
+		float nx0 = f00 * x0 + f01 * x1;
+		float nx1 = f10 * x0 + f11 * x1;
+		x0 = nx0;
+		x1 = nx1;
+
+		// P = F P F' + Q
+		float fp00 = f00 * p00 + f01 * p10;
+		float fp01 = f00 * p01 + f01 * p11;
+		float fp10 = f10 * p00 + f11 * p10;
+		float fp11 = f10 * p01 + f11 * p11;
+		p00 = fp00 * f00 + fp01 * f01 + q00;
+		p01 = fp00 * f10 + fp01 * f11 + q01;
+		p10 = fp10 * f00 + fp11 * f01 + q10;
+		p11 = fp10 * f10 + fp11 * f11 + q11;
+	}
+
+	/**
+	 * Incorporate a measurement.  R is read in place and must be 3x3.
+	 */
+	@Override
+	public void update(double z0, double z1, double z2, DenseMatrix64F R) {
+		float[] r = narrow(R);
+
+		// y = z - H x
+		float y0 = (float)z0 - (h00 * x0 + h01 * x1);
+		float y1 = (float)z1 - (h10 * x0 + h11 * x1);
+		float y2 = (float)z2 - (h20 * x0 + h21 * x1);
+
+		// HP = H P, the 3x2 product used for both S and the covariance update
+		float hp00 = h00 * p00 + h01 * p10, hp01 = h00 * p01 + h01 * p11;
+		float hp10 = h10 * p00 + h11 * p10, hp11 = h10 * p01 + h11 * p11;
+		float hp20 = h20 * p00 + h21 * p10, hp21 = h20 * p01 + h21 * p11;
+
+		// PH' = P H', 2x3
+		float ph00 = p00 * h00 + p01 * h01, ph01 = p00 * h10 + p01 * h11, ph02 = p00 * h20 + p01 * h21;
+		float ph10 = p10 * h00 + p11 * h01, ph11 = p10 * h10 + p11 * h11, ph12 = p10 * h20 + p11 * h21;
+
+		// S = H P H' + R
+		float s00 = hp00 * h00 + hp01 * h01 + r[0], s01 = hp00 * h10 + hp01 * h11 + r[1], s02 = hp00 * h20 + hp01 * h21 + r[2];
+		float s10 = hp10 * h00 + hp11 * h01 + r[3], s11 = hp10 * h10 + hp11 * h11 + r[4], s12 = hp10 * h20 + hp11 * h21 + r[5];
+		float s20 = hp20 * h00 + hp21 * h01 + r[6], s21 = hp20 * h10 + hp21 * h11 + r[7], s22 = hp20 * h20 + hp21 * h21 + r[8];
+
+		// S^(-1) by cofactors
+		float c00 = s11 * s22 - s12 * s21;
+		float c01 = s12 * s20 - s10 * s22;
+		float c02 = s10 * s21 - s11 * s20;
+		float invDet = 1.0f / (s00 * c00 + s01 * c01 + s02 * c02);
+		float i00 = c00 * invDet;
+		float i01 = (s02 * s21 - s01 * s22) * invDet;
+		float i02 = (s01 * s12 - s02 * s11) * invDet;
+		float i10 = c01 * invDet;
+		float i11 = (s00 * s22 - s02 * s20) * invDet;
+		float i12 = (s02 * s10 - s00 * s12) * invDet;
+		float i20 = c02 * invDet;
+		float i21 = (s01 * s20 - s00 * s21) * invDet;
+		float i22 = (s00 * s11 - s01 * s10) * invDet;
+
+		// K = PH'S^(-1)
+		float k00 = ph00 * i00 + ph01 * i10 + ph02 * i20;
+		float k01 = ph00 * i01 + ph01 * i11 + ph02 * i21;
+		float k02 = ph00 * i02 + ph01 * i12 + ph02 * i22;
+		float k10 = ph10 * i00 + ph11 * i10 + ph12 * i20;
+		float k11 = ph10 * i01 + ph11 * i11 + ph12 * i21;
+		float k12 = ph10 * i02 + ph11 * i12 + ph12 * i22;
+
+		// x = x + Ky
+		x0 += k00 * y0 + k01 * y1 + k02 * y2;
+		x1 += k10 * y0 + k11 * y1 + k12 * y2;
+
+		// P = (I-kH)P = P - KHP
+		float np00 = p00 - (k00 * hp00 + k01 * hp10 + k02 * hp20);
+		float np01 = p01 - (k00 * hp01 + k01 * hp11 + k02 * hp21);
+		float np10 = p10 - (k10 * hp00 + k11 * hp10 + k12 * hp20);
+		float np11 = p11 - (k10 * hp01 + k11 * hp11 + k12 * hp21);
+		p00 = np00; p01 = np01;
+		p10 = np10; p11 = np11;
+	}
+
+	/**
+	 * Incorporate a direct measurement of both state variables (H = I) with
+	 * independent noise (diagonal R).  This needs only a 2x2 inverse, so it is much
+	 * cheaper than the general update.
+	 */
+	@Override
+	public void updateDirect(double z0, double z1, double r0, double r1) {
+		// y = z - x
+		float y0 = (float)z0 - x0;
+		float y1 = (float)z1 - x1;
+
+		// S = P + R, and K = P S^(-1)
+		float s00 = p00 + (float)r0, s01 = p01;
+		float s10 = p10, s11 = p11 + (float)r1;
+		float invDet = 1.0f / (s00 * s11 - s01 * s10);
+		float k00 = (p00 * s11 - p01 * s10) * invDet;
+		float k01 = (p01 * s00 - p00 * s01) * invDet;
+		float k10 = (p10 * s11 - p11 * s10) * invDet;
+		float k11 = (p11 * s00 - p10 * s01) * invDet;
+
+		// x = x + Ky
+		x0 += k00 * y0 + k01 * y1;
+		x1 += k10 * y0 + k11 * y1;
+
+		// P = P - KP
+		float np00 = p00 - (k00 * p00 + k01 * p10);
+		float np01 = p01 - (k00 * p01 + k01 * p11);
+		float np10 = p10 - (k10 * p00 + k11 * p10);
+		float np11 = p11 - (k10 * p01 + k11 * p11);
+		p00 = np00; p01 = np01;
+		p10 = np10; p11 = np11;
+	}
+
+	/**
+	 * Normalized innovation squared, y' S^(-1) y, of a measurement against the current
+	 * state, as update() would see it.  Nothing is changed; this is for monitoring.
+	 */
+	@Override
+	public double nis(double z0, double z1, double z2, DenseMatrix64F R) {
+		float[] r = narrow(R);
+		float y0 = (float)z0 - (h00 * x0 + h01 * x1);
+		float y1 = (float)z1 - (h10 * x0 + h11 * x1);
+		float y2 = (float)z2 - (h20 * x0 + h21 * x1);
+		float hp00 = h00 * p00 + h01 * p10, hp01 = h00 * p01 + h01 * p11;
+		float hp10 = h10 * p00 + h11 * p10, hp11 = h10 * p01 + h11 * p11;
+		float hp20 = h20 * p00 + h21 * p10, hp21 = h20 * p01 + h21 * p11;
+		float s00 = hp00 * h00 + hp01 * h01 + r[0], s01 = hp00 * h10 + hp01 * h11 + r[1], s02 = hp00 * h20 + hp01 * h21 + r[2];
+		float s10 = hp10 * h00 + hp11 * h01 + r[3], s11 = hp10 * h10 + hp11 * h11 + r[4], s12 = hp10 * h20 + hp11 * h21 + r[5];
+		float s20 = hp20 * h00 + hp21 * h01 + r[6], s21 = hp20 * h10 + hp21 * h11 + r[7], s22 = hp20 * h20 + hp21 * h21 + r[8];
+		// y' adj(S) y / det(S)
+		float c00 = s11 * s22 - s12 * s21, c01 = s12 * s20 - s10 * s22, c02 = s10 * s21 - s11 * s20;
+		float det = s00 * c00 + s01 * c01 + s02 * c02;
+		float a0 = c00 * y0 + (s02 * s21 - s01 * s22) * y1 + (s01 * s12 - s02 * s11) * y2;
+		float a1 = c01 * y0 + (s00 * s22 - s02 * s20) * y1 + (s02 * s10 - s00 * s12) * y2;
+		float a2 = c02 * y0 + (s01 * s20 - s00 * s21) * y1 + (s00 * s11 - s01 * s10) * y2;
+		return (y0 * a0 + y1 * a1 + y2 * a2) / det;
+	}
+
+	/** As nis(), for a measurement that updateDirect() would incorporate */
+	@Override
+	public double nisDirect(double z0, double z1, double r0, double r1) {
+		float y0 = (float)z0 - x0;
+		float y1 = (float)z1 - x1;
+		float s00 = p00 + (float)r0, s01 = p01;
+		float s10 = p10, s11 = p11 + (float)r1;
+		return (y0 * (s11 * y0 - s01 * y1) + y1 * (s00 * y1 - s10 * y0)) / (s00 * s11 - s01 * s10);
+	}
+
+	private float[] narrow(DenseMatrix64F R) {
+		double[] d = R.data;
+		for(int i = 0; i < 9; ++i) {
+			rNarrow[i] = (float)d[i];
+		}
+		return rNarrow;
+	}
+
+	@Override
+	public double getX0() { return x0; }
+	@Override
+	public double getX1() { return x1; }
+
+	@Override
+	public DenseMatrix64F getState() {
+		stateView.data[0] = x0;
+		stateView.data[1] = x1;
+		return stateView;
+	}
+
+	@Override
+	public DenseMatrix64F getCovariance() {
+		double[] d = covarianceView.data;
+		d[0] = p00; d[1] = p01;
+		d[2] = p10; d[3] = p11;
+		return covarianceView;
+	}
+}